@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model.likelihood;
+
+import beast.evolution.likelihood.BeerLikelihoodCore4;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Four-state likelihood core whose partials-by-matrix products and
+ * category integration use the jdk.incubator.vector API.  Each
+ * transition matrix is transposed into four column vectors so that the
+ * four partials of a pattern are produced by a single vector
+ * multiply-add sequence.  The order of floating point operations
+ * matches BeerLikelihoodCore4, so results are identical.
+ *
+ * This class is only used on Java 17 and later, and requires the JVM to
+ * be started with --add-modules jdk.incubator.vector.  Elsewhere the
+ * Java 8 version of the class (which inherits the scalar kernels) is
+ * loaded instead.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class VectorLikelihoodCore4 extends BeerLikelihoodCore4 {
+
+    private static final VectorSpecies<Double> SPECIES4 = DoubleVector.SPECIES_256;
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private double[] columns1 = new double[0], columns2 = new double[0];
+
+    /**
+     * @return true if this class provides vectorized kernels
+     */
+    public static boolean isVectorized() {
+        return true;
+    }
+
+    /**
+     * Transpose each 4x4 matrix in a block of transition matrices.
+     *
+     * @param matrices matrices in row-major order
+     * @param columns array to hold result, replaced if too small
+     * @return matrices in column-major order
+     */
+    private double[] transpose(double[] matrices, double[] columns) {
+        int size = nrOfMatrices * 16;
+        if (columns.length < size)
+            columns = new double[size];
+
+        for (int w = 0; w < size; w += 16) {
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 4; j++)
+                    columns[w + 4*j + i] = matrices[w + 4*i + j];
+            }
+        }
+
+        return columns;
+    }
+
+    /**
+     * @param columns column-major matrices
+     * @param w offset of matrix
+     * @param partials partials
+     * @param v offset of pattern partials
+     * @return product of matrix and partials of a single pattern
+     */
+    private static DoubleVector multiply(double[] columns, int w, double[] partials, int v) {
+        return DoubleVector.fromArray(SPECIES4, columns, w).mul(partials[v])
+                .add(DoubleVector.fromArray(SPECIES4, columns, w + 4).mul(partials[v + 1]))
+                .add(DoubleVector.fromArray(SPECIES4, columns, w + 8).mul(partials[v + 2]))
+                .add(DoubleVector.fromArray(SPECIES4, columns, w + 12).mul(partials[v + 3]));
+    }
+
+    @Override
+    protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matrices1,
+                                                  double[] partials2, double[] matrices2,
+                                                  double[] partials3) {
+        columns1 = transpose(matrices1, columns1);
+        columns2 = transpose(matrices2, columns2);
+
+        DoubleVector ones = DoubleVector.broadcast(SPECIES4, 1.0);
+
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int w = l * 16;
+            for (int k = 0; k < nrOfPatterns; k++) {
+                int state1 = stateIndex1[k];
+
+                DoubleVector tmp = state1 < 4
+                        ? DoubleVector.fromArray(SPECIES4, columns1, w + 4*state1)
+                        : ones;
+
+                tmp.mul(multiply(columns2, w, partials2, v)).intoArray(partials3, v);
+                v += 4;
+            }
+        }
+    }
+
+    @Override
+    protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+                                                    double[] partials2, double[] matrices2,
+                                                    double[] partials3) {
+        columns1 = transpose(matrices1, columns1);
+        columns2 = transpose(matrices2, columns2);
+
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int w = l * 16;
+            for (int k = 0; k < nrOfPatterns; k++) {
+                multiply(columns1, w, partials1, v)
+                        .mul(multiply(columns2, w, partials2, v))
+                        .intoArray(partials3, v);
+                v += 4;
+            }
+        }
+    }
+
+    @Override
+    protected void calculateIntegratePartials(double[] inPartials, double[] proportions,
+                                              double[] outPartials) {
+        int n = nrOfPatterns * 4;
+        int bound = SPECIES.loopBound(n);
+
+        int u = 0;
+        for (; u < bound; u += SPECIES.length())
+            DoubleVector.fromArray(SPECIES, inPartials, u)
+                    .mul(proportions[0])
+                    .intoArray(outPartials, u);
+        for (; u < n; u++)
+            outPartials[u] = inPartials[u] * proportions[0];
+
+        for (int l = 1; l < nrOfMatrices; l++) {
+            int v = l * n;
+            u = 0;
+            for (; u < bound; u += SPECIES.length())
+                DoubleVector.fromArray(SPECIES, outPartials, u)
+                        .add(DoubleVector.fromArray(SPECIES, inPartials, v + u).mul(proportions[l]))
+                        .intoArray(outPartials, u);
+            for (; u < n; u++)
+                outPartials[u] += inPartials[v + u] * proportions[l];
+        }
+    }
+}
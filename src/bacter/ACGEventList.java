@@ -71,14 +71,25 @@ public class ACGEventList {
     }
 
     /**
-     * Event list.
+     * Conversion graph and (optional) locus the list is associated with.
      */
-    private final List<Event> events; 
+    private final ConversionGraph acg;
+    private final Locus locus;
 
     /**
-     * Construct a new event list for the given ACG.  There should only
-     * be one of these objects per ACG object, created during the ACG
-     * initAndValidate().
+     * Separately sorted CF and conversion events, together with the
+     * merged event list.
+     */
+    private final List<Event> cfEvents;
+    private final List<Event> convEvents;
+    private final List<Event> events;
+
+    private boolean cfDirty, convsDirty;
+
+    /**
+     * Construct a new event list for the given ACG.  Rather than creating
+     * these directly, use the cached lists available from
+     * ConversionGraph.getACGEventList().
      * 
      * @param acg Conversion graph from which to compute event list.
      */
@@ -93,40 +104,31 @@ public class ACGEventList {
      * @param locus conversions for this event only are included
      */
     public ACGEventList(ConversionGraph acg, Locus locus) {
-        this.events = new ArrayList<>();
-
-        // Create unsorted event list.
+        this.acg = acg;
+        this.locus = locus;
 
-        // Add CF events:
-        for (Node node : acg.getNodesAsArray()) {
-            events.add(new Event(node));
-        }
-
-        // Add conversion events:
-        if (locus == null) {
-            for (Locus l : acg.getLoci()) {
-                for (Conversion conv : acg.getConversions(l)) {
-                    events.add(new Event(conv, true));
-                    events.add(new Event(conv, false));
-                }
-            }
-        } else {
-            for (Conversion conv : acg.getConversions(locus)) {
-                events.add(new Event(conv, true));
-                events.add(new Event(conv, false));
-            }
-        }
+        cfEvents = new ArrayList<>();
+        convEvents = new ArrayList<>();
+        events = new ArrayList<>();
 
+        cfDirty = true;
+        convsDirty = true;
+    }
 
-        // Sort event list:
+    /**
+     * Mark the entire event list as dirty.
+     */
+    public void makeDirty() {
+        cfDirty = true;
+        convsDirty = true;
+    }
 
-        events.sort((Event o1, Event o2) -> {
-            if (o1.t < o2.t)
-                return -1;
-            if (o1.t > o2.t)
-                return 1;
-            return 0;
-        });
+    /**
+     * Mark only the conversion events as dirty. The CF events are reused
+     * during the next update.
+     */
+    public void makeConversionsDirty() {
+        convsDirty = true;
     }
 
     /**
@@ -135,6 +137,64 @@ public class ACGEventList {
      * @return ACG event list.
      */
     public synchronized List<Event> getACGEvents() {
+        updateEvents();
+
         return events;
     }
+
+    /**
+     * Bring event list up to date.  CF events are taken in order from the
+     * CF event list, conversion events are sorted separately, and the two
+     * sorted lists are then merged.
+     */
+    private void updateEvents() {
+        if (!cfDirty && !convsDirty)
+            return;
+
+        if (cfDirty) {
+            cfEvents.clear();
+            for (CFEventList.Event cfEvent : acg.getCFEvents())
+                cfEvents.add(new Event(cfEvent.getNode()));
+
+            cfDirty = false;
+        }
+
+        if (convsDirty) {
+            convEvents.clear();
+            if (locus == null) {
+                for (Locus l : acg.getLoci()) {
+                    for (Conversion conv : acg.getConversions(l)) {
+                        convEvents.add(new Event(conv, true));
+                        convEvents.add(new Event(conv, false));
+                    }
+                }
+            } else {
+                for (Conversion conv : acg.getConversions(locus)) {
+                    convEvents.add(new Event(conv, true));
+                    convEvents.add(new Event(conv, false));
+                }
+            }
+
+            convEvents.sort((Event o1, Event o2) -> {
+                if (o1.t < o2.t)
+                    return -1;
+                if (o1.t > o2.t)
+                    return 1;
+                return 0;
+            });
+
+            convsDirty = false;
+        }
+
+        // Merge sorted lists, placing CF events first in the case of ties
+        events.clear();
+        int i = 0, j = 0;
+        while (i < cfEvents.size() || j < convEvents.size()) {
+            if (j == convEvents.size()
+                    || (i < cfEvents.size() && cfEvents.get(i).t <= convEvents.get(j).t))
+                events.add(cfEvents.get(i++));
+            else
+                events.add(convEvents.get(j++));
+        }
+    }
 }
@@ -24,7 +24,7 @@ public class AffectedSiteList {
     public AffectedSiteList(ConversionGraph acg) {
         this.acg = acg;
 
-        acgEventList = new ACGEventList(acg);
+        acgEventList = acg.getACGEventList();
         affectedSites = new HashMap<>();
         affectedSiteCount = new HashMap<>();
         affectedSiteFraction = new HashMap<>();
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of SiteAncestry and Coalescence objects which are reused between
+ * evaluations of a likelihood.  Objects handed out by the pool remain
+ * valid until the next call to reset(), after which their storage is
+ * recycled.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class AncestryPool {
+
+    private final int wordsPerSet;
+
+    private final List<SiteAncestry> siteAncestries = new ArrayList<>();
+    private final List<Coalescence> coalescences = new ArrayList<>();
+    private int nextSiteAncestry, nextCoalescence;
+
+    /**
+     * @param nLeaves number of leaves whose ancestry is to be tracked
+     */
+    public AncestryPool(int nLeaves) {
+        wordsPerSet = Math.max(1, (nLeaves + 63)/64);
+    }
+
+    /**
+     * Return all objects to the pool.  Objects previously obtained from
+     * the pool must not be used after calling this method.
+     */
+    public void reset() {
+        nextSiteAncestry = 0;
+        nextCoalescence = 0;
+    }
+
+    /**
+     * @return an empty SiteAncestry
+     */
+    public SiteAncestry getSiteAncestry() {
+        SiteAncestry siteAncestry;
+        if (nextSiteAncestry < siteAncestries.size()) {
+            siteAncestry = siteAncestries.get(nextSiteAncestry);
+            siteAncestry.clear(wordsPerSet);
+        } else {
+            siteAncestry = new SiteAncestry(wordsPerSet);
+            siteAncestries.add(siteAncestry);
+        }
+        nextSiteAncestry += 1;
+
+        return siteAncestry;
+    }
+
+    /**
+     * @param leafNr number of leaf node
+     * @param siteCount number of sites in locus
+     * @return SiteAncestry describing every site of the given leaf
+     */
+    public SiteAncestry getLeafSiteAncestry(int leafNr, int siteCount) {
+        SiteAncestry siteAncestry = getSiteAncestry();
+        siteAncestry.setLeaf(leafNr, siteCount);
+        return siteAncestry;
+    }
+
+    /**
+     * @return an empty Coalescence
+     */
+    public Coalescence getCoalescence() {
+        Coalescence coalescence;
+        if (nextCoalescence < coalescences.size()) {
+            coalescence = coalescences.get(nextCoalescence);
+            coalescence.clear(wordsPerSet);
+        } else {
+            coalescence = new Coalescence(wordsPerSet);
+            coalescences.add(coalescence);
+        }
+        nextCoalescence += 1;
+
+        return coalescence;
+    }
+}
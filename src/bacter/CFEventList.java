@@ -17,8 +17,11 @@
 
 package bacter;
 
+import bacter.model.pop.BatchPopulationFunction;
 import beast.evolution.tree.Node;
-import java.util.ArrayList;
+import beast.evolution.tree.coalescent.PopulationFunction;
+
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -100,16 +103,55 @@ public class CFEventList {
     private final ConversionGraph acg;
 
     /**
-     * List of events on clonal frame.
+     * Sorted array of events on clonal frame, together with a list
+     * view of the same array.
      */
-    private final List<Event> events;
+    private Event[] events;
+    private List<Event> eventList;
     private boolean dirty;
 
+    /**
+     * Incremented whenever the list is marked dirty, so that objects
+     * caching quantities derived from the clonal frame can detect edits
+     * made since the quantities were computed.
+     */
+    private long version;
+
+    /**
+     * Index used to locate CF edges extant at a given time.  Heights
+     * of events (for binary searches), the index of the event associated
+     * with each node, and the lineages extant within each inter-event
+     * interval.  The latter are assembled on demand.
+     */
+    private double[] heights;
+    private int[] nodeEventIdx;
+    private Node[][] intervalLineages;
+
+    /**
+     * Table of population sizes and intensities at each event time,
+     * together with the cumulative lineage-weighted intensity (the
+     * integral of the lineage count with respect to intensity) at each
+     * event time.  The table is refreshed when the events or the
+     * population function change.
+     */
+    private double[] popSizes, intensities, lineageIntensities;
+    private PopulationFunction intensityPopFunc;
+    private boolean intensitiesDirty;
+
+    /**
+     * If more than this fraction of the events have moved since the
+     * last update, the whole array is re-sorted rather than repaired
+     * one event at a time.
+     */
+    private static final double MAX_LOCAL_REPAIR_FRACTION = 0.25;
+
     public CFEventList(ConversionGraph acg) {
         this.acg = acg;
         
-        events = new ArrayList<>();
+        events = null;
+        eventList = Collections.emptyList();
         dirty = true;
+        intensitiesDirty = true;
     }
 
     /**
@@ -122,7 +164,7 @@ public class CFEventList {
     public List<Event> getCFEvents() {
         updateEvents();
         
-        return events;
+        return eventList;
     }
 
     /**
@@ -130,26 +172,305 @@ public class CFEventList {
      */
     public void makeDirty() {
         dirty = true;
+        intensitiesDirty = true;
+        version += 1;
+    }
+
+    /**
+     * @return version stamp of the clonal frame.  The stamp changes
+     * whenever the clonal frame may have been modified.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Mark the intensity table as dirty.  Must be called whenever the
+     * population function used to compute the table may have changed.
+     */
+    public void makeIntensitiesDirty() {
+        intensitiesDirty = true;
     }
 
     /**
-     * Assemble sorted list of events on clonal frame and a map from nodes
-     * to these events.
+     * Bring the sorted list of events on the clonal frame up to date.
+     * If the list has already been assembled, it is repaired in place by
+     * moving only those events whose node heights have changed.
      */
     public void updateEvents() {
         if (!dirty)
             return;
-        
-        events.clear();
-        
-        // Create event list
-        for (Node node : acg.getNodesAsArray()) {
-            Event event = new Event(node);
-            events.add(event);
+
+        if (events == null || events.length != acg.getNodeCount()) {
+            rebuildEvents();
+            updateIndex();
+            return;
         }
-        
-        // Sort events in increasing order of their times
-        Collections.sort(events, (Event o1, Event o2) -> {
+
+        // Re-associate events with current node objects (these are swapped
+        // by Tree.restore()) and count events whose heights have changed.
+        int movedCount = 0;
+        for (Event event : events) {
+            Node node = acg.getNode(event.node.getNr());
+
+            if (node.isLeaf() != (event.type == EventType.SAMPLE)) {
+                rebuildEvents();
+                updateIndex();
+                return;
+            }
+
+            event.node = node;
+            if (event.t != node.getHeight())
+                movedCount += 1;
+        }
+
+        if (movedCount > MAX_LOCAL_REPAIR_FRACTION*events.length) {
+            for (Event event : events)
+                event.t = event.node.getHeight();
+
+            sortAndCountLineages();
+        } else if (movedCount > 0) {
+            int i = 0;
+            while (i < events.length) {
+                if (events[i].t != events[i].node.getHeight()
+                        && moveEvent(i) > i)
+                    continue; // events[i] has not yet been examined
+
+                i += 1;
+            }
+        }
+
+        // Topology may have changed even if no events moved.
+        updateIndex();
+
+        dirty = false;
+    }
+
+    /**
+     * Obtain index of the inter-event interval containing time t.  That is,
+     * the index of the last event strictly younger than t, or 0 if no such
+     * event exists.
+     *
+     * @param t time
+     * @return index of event at the bottom of the interval containing t
+     */
+    public int getIntervalIndex(double t) {
+        updateEvents();
+
+        int lower = 0, upper = heights.length;
+        while (lower < upper) {
+            int mid = (lower + upper) >>> 1;
+            if (heights[mid] < t)
+                lower = mid + 1;
+            else
+                upper = mid;
+        }
+
+        return Math.max(lower - 1, 0);
+    }
+
+    /**
+     * Obtain the clonal frame lineages extant in the interval between
+     * the given event and the next.  Lineages are identified by the node
+     * at the base of the corresponding CF edge.  The length of the
+     * returned array is equal to the lineage count of the event.
+     *
+     * @param intervalIdx index of event at the bottom of the interval
+     * @return array of nodes below extant CF edges
+     */
+    public Node[] getLineages(int intervalIdx) {
+        updateEvents();
+
+        if (intervalLineages[intervalIdx] == null) {
+            Node[] nodes = acg.getNodesAsArray();
+
+            int count = 0;
+            for (Node node : nodes) {
+                if (isExtant(node, intervalIdx))
+                    count += 1;
+            }
+
+            Node[] lineages = new Node[count];
+            int z = 0;
+            for (Node node : nodes) {
+                if (isExtant(node, intervalIdx))
+                    lineages[z++] = node;
+            }
+
+            intervalLineages[intervalIdx] = lineages;
+        }
+
+        return intervalLineages[intervalIdx];
+    }
+
+    /**
+     * Obtain population intensities at the time of every event on the
+     * clonal frame.  The returned array belongs to the intensity table
+     * and must not be modified.
+     *
+     * @param popFunc population function
+     * @return array of intensities, indexed by event
+     */
+    public double[] getIntensities(PopulationFunction popFunc) {
+        updateIntensities(popFunc);
+
+        return intensities;
+    }
+
+    /**
+     * Obtain population sizes at the time of every event on the clonal
+     * frame.  The returned array belongs to the intensity table and must
+     * not be modified.
+     *
+     * @param popFunc population function
+     * @return array of population sizes, indexed by event
+     */
+    public double[] getPopSizes(PopulationFunction popFunc) {
+        updateIntensities(popFunc);
+
+        return popSizes;
+    }
+
+    /**
+     * Obtain the integral of the CF lineage count with respect to the
+     * population intensity between the oldest sample and time t.
+     *
+     * @param popFunc population function
+     * @param t time
+     * @return cumulative lineage-weighted intensity at t
+     */
+    public double getLineageIntensity(PopulationFunction popFunc, double t) {
+        return getLineageIntensity(popFunc, t, popFunc.getIntensity(t));
+    }
+
+    /**
+     * Variant of getLineageIntensity() for use when the population
+     * intensity at t has already been computed.
+     *
+     * @param popFunc population function
+     * @param t time
+     * @param intensity population intensity at t
+     * @return cumulative lineage-weighted intensity at t
+     */
+    public double getLineageIntensity(PopulationFunction popFunc, double t,
+                                      double intensity) {
+        updateIntensities(popFunc);
+
+        if (t <= heights[0])
+            return 0.0;
+
+        int i = getIntervalIndex(t);
+        return lineageIntensities[i]
+                + events[i].lineages*(intensity - intensities[i]);
+    }
+
+    /**
+     * Obtain the integral of the CF lineage count with respect to the
+     * population intensity between times t1 and t2.  This is the
+     * dimensionless area over which a recombinant edge spanning these
+     * times may coalesce with the clonal frame.
+     *
+     * @param popFunc population function
+     * @param t1 lower time
+     * @param t2 upper time
+     * @return lineage-weighted intensity integral
+     */
+    public double getLineageIntensityIntegral(PopulationFunction popFunc,
+                                              double t1, double t2) {
+        return getLineageIntensity(popFunc, t2) - getLineageIntensity(popFunc, t1);
+    }
+
+    /**
+     * Refresh the intensity table if the events or population function
+     * have changed since it was last computed.
+     *
+     * @param popFunc population function
+     */
+    private void updateIntensities(PopulationFunction popFunc) {
+        updateEvents();
+
+        if (!intensitiesDirty && popFunc == intensityPopFunc)
+            return;
+
+        if (intensities == null || intensities.length != heights.length) {
+            popSizes = new double[heights.length];
+            intensities = new double[heights.length];
+            lineageIntensities = new double[heights.length];
+        }
+
+        // Event heights are sorted, so batch evaluation can be used
+        if (popFunc instanceof BatchPopulationFunction) {
+            ((BatchPopulationFunction) popFunc).getPopSizes(heights, popSizes);
+            ((BatchPopulationFunction) popFunc).getIntensities(heights, intensities);
+        } else {
+            for (int i=0; i<heights.length; i++) {
+                popSizes[i] = popFunc.getPopSize(heights[i]);
+                intensities[i] = popFunc.getIntensity(heights[i]);
+            }
+        }
+
+        lineageIntensities[0] = 0.0;
+        for (int i=1; i<heights.length; i++)
+            lineageIntensities[i] = lineageIntensities[i-1]
+                    + events[i-1].lineages*(intensities[i] - intensities[i-1]);
+
+        intensityPopFunc = popFunc;
+        intensitiesDirty = false;
+    }
+
+    /**
+     * @param node node at base of CF edge
+     * @param intervalIdx index of event at bottom of interval
+     * @return true iff edge above node spans the given interval
+     */
+    private boolean isExtant(Node node, int intervalIdx) {
+        return nodeEventIdx[node.getNr()] <= intervalIdx
+                && (node.isRoot()
+                || nodeEventIdx[node.getParent().getNr()] > intervalIdx);
+    }
+
+    /**
+     * Refresh height array and node-to-event map, and discard any
+     * previously assembled interval lineage arrays.
+     */
+    private void updateIndex() {
+        if (heights == null || heights.length != events.length) {
+            heights = new double[events.length];
+            nodeEventIdx = new int[events.length];
+            intervalLineages = new Node[events.length][];
+        } else {
+            Arrays.fill(intervalLineages, null);
+        }
+
+        for (int i=0; i<events.length; i++) {
+            heights[i] = events[i].t;
+            nodeEventIdx[events[i].node.getNr()] = i;
+        }
+    }
+
+    /**
+     * Assemble sorted list of events on clonal frame from scratch.
+     */
+    private void rebuildEvents() {
+
+        // Create event list
+        Node[] nodes = acg.getNodesAsArray();
+        events = new Event[nodes.length];
+        for (int i=0; i<nodes.length; i++)
+            events[i] = new Event(nodes[i]);
+        eventList = Arrays.asList(events);
+
+        sortAndCountLineages();
+
+        dirty = false;
+    }
+
+    /**
+     * Sort events in increasing order of their times and compute lineage
+     * counts for the entire list.
+     */
+    private void sortAndCountLineages() {
+        Arrays.sort(events, (Event o1, Event o2) -> {
             if (o1.t<o2.t)
                 return -1;
             
@@ -158,19 +479,55 @@ public class CFEventList {
             
             return 0;
         });
-        
-        // Compute lineage counts:
-        int k=0;
-        for (Event event : events) {
-            if (event.type == EventType.SAMPLE)
+
+        updateLineageCounts(0, events.length-1);
+    }
+
+    /**
+     * Update time of event at index idx to the current height of its node
+     * and shift it to its new position in the sorted array.  Only the lineage
+     * counts of events between the old and new positions are recomputed.
+     *
+     * @param idx index of event to move
+     * @return new index of event
+     */
+    private int moveEvent(int idx) {
+        Event event = events[idx];
+        event.t = event.node.getHeight();
+
+        int newIdx = idx;
+        while (newIdx > 0 && events[newIdx-1].t > event.t) {
+            events[newIdx] = events[newIdx-1];
+            newIdx -= 1;
+        }
+        while (newIdx < events.length-1 && events[newIdx+1].t < event.t) {
+            events[newIdx] = events[newIdx+1];
+            newIdx += 1;
+        }
+        events[newIdx] = event;
+
+        if (newIdx != idx)
+            updateLineageCounts(Math.min(idx, newIdx), Math.max(idx, newIdx));
+
+        return newIdx;
+    }
+
+    /**
+     * Recompute lineage counts for events between the given indices
+     * (inclusive), assuming the counts of all earlier events are correct.
+     *
+     * @param fromIdx index of first event to update
+     * @param toIdx index of last event to update
+     */
+    private void updateLineageCounts(int fromIdx, int toIdx) {
+        int k = fromIdx > 0 ? events[fromIdx-1].lineages : 0;
+        for (int i=fromIdx; i<=toIdx; i++) {
+            if (events[i].type == EventType.SAMPLE)
                 k += 1;
             else
                 k -= 1;
-            
-            event.lineages = k;
-        }
-
 
-        dirty = false;
+            events[i].lineages = k;
+        }
     }
 }
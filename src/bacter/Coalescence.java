@@ -17,31 +17,41 @@
 
 package bacter;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.List;
 
 /**
  * Class of objects indicating lineages which are coalescing and at which
  * sites.
  *
+ * Like SiteAncestry, intervals are held in primitive arrays: interval i
+ * covers sites [boundaries[2i], boundaries[2i+1]) and the two coalescing
+ * leaf sets occupy words [i*wordsPerSet, (i+1)*wordsPerSet) of leafWords1
+ * and leafWords2 respectively.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class Coalescence {
-    public List<BitSet> descendantLeaves1, descendantLeaves2;
-    public List<Integer> siteRanges;
+
+    int[] boundaries;
+    long[] leafWords1, leafWords2;
+    int wordsPerSet;
+    int intervalCount;
 
     public Coalescence() {
-        descendantLeaves1 = new ArrayList<>();
-        descendantLeaves2 = new ArrayList<>();
-        siteRanges = new ArrayList<>();
+        this(1);
     }
 
-    public Coalescence(String string) {
+    public Coalescence(int wordsPerSet) {
+        this.wordsPerSet = wordsPerSet;
+        boundaries = new int[8];
+        leafWords1 = new long[4*wordsPerSet];
+        leafWords2 = new long[4*wordsPerSet];
+        intervalCount = 0;
+    }
 
-        siteRanges = new ArrayList<>();
-        descendantLeaves1 = new ArrayList<>();
-        descendantLeaves2 = new ArrayList<>();
+    public Coalescence(String string) {
+        this(1);
 
         string = string.replaceAll("\\s+","");
 
@@ -55,62 +65,239 @@ public class Coalescence {
             String[] split2 = aSplit1.split("]\\{");
             String[] rangeStr = split2[0].split(",");
 
-            siteRanges.add(Integer.parseInt(rangeStr[0]));
-            siteRanges.add(Integer.parseInt(rangeStr[1]));
-
             String[] split3 = split2[1].split("\\}\\{");
 
             String[] bitStrA = split3[0].split(",");
             BitSet theseDecendentsA = new BitSet();
             for (String aBitStr : bitStrA)
                 theseDecendentsA.set(Integer.parseInt(aBitStr));
-            descendantLeaves1.add(theseDecendentsA);
 
             String[] bitStrB = split3[1].split(",");
             BitSet theseDecendentsB = new BitSet();
             for (String aBitStr : bitStrB)
                 theseDecendentsB.set(Integer.parseInt(aBitStr));
-            descendantLeaves2.add(theseDecendentsB);
 
+            addInterval(Integer.parseInt(rangeStr[0]),
+                    Integer.parseInt(rangeStr[1]),
+                    theseDecendentsA, theseDecendentsB, false);
         }
     }
 
+    /**
+     * Forget all intervals, retaining allocated storage.
+     *
+     * @param wordsPerSet number of 64-bit words used to hold each leaf set
+     */
+    public void clear(int wordsPerSet) {
+        this.wordsPerSet = wordsPerSet;
+        intervalCount = 0;
+        ensureCapacity(1);
+    }
+
+    /**
+     * @return copy of this coalescence with storage trimmed to its
+     * current contents
+     */
+    public Coalescence copy() {
+        Coalescence copy = new Coalescence(wordsPerSet);
+        copy.intervalCount = intervalCount;
+        copy.boundaries = Arrays.copyOf(boundaries, 2*intervalCount);
+        copy.leafWords1 = Arrays.copyOf(leafWords1, intervalCount*wordsPerSet);
+        copy.leafWords2 = Arrays.copyOf(leafWords2, intervalCount*wordsPerSet);
+
+        return copy;
+    }
+
     public int getIntervalCount() {
-        return descendantLeaves1.size();
+        return intervalCount;
+    }
+
+    /**
+     * @param i interval index
+     * @return first site of interval i
+     */
+    public int getIntervalStart(int i) {
+        return boundaries[2*i];
+    }
+
+    /**
+     * @param i interval index
+     * @return one past the last site of interval i
+     */
+    public int getIntervalEnd(int i) {
+        return boundaries[2*i+1];
+    }
+
+    /**
+     * @param i interval index
+     * @param fromIdx leaf number at which to start search
+     * @return number of first leaf in the first coalescing set of interval
+     * i with number at least fromIdx, or -1 if there is none.
+     */
+    public int nextDescendantLeaf1(int i, int fromIdx) {
+        return SiteAncestry.nextSetBit(leafWords1, i*wordsPerSet, wordsPerSet, fromIdx);
+    }
+
+    /**
+     * @param i interval index
+     * @param fromIdx leaf number at which to start search
+     * @return number of first leaf in the second coalescing set of interval
+     * i with number at least fromIdx, or -1 if there is none.
+     */
+    public int nextDescendantLeaf2(int i, int fromIdx) {
+        return SiteAncestry.nextSetBit(leafWords2, i*wordsPerSet, wordsPerSet, fromIdx);
+    }
+
+    /**
+     * @param i interval index
+     * @return size of first coalescing leaf set of interval i
+     */
+    public int getDescendantLeafCount1(int i) {
+        return SiteAncestry.cardinality(leafWords1, i*wordsPerSet, wordsPerSet);
+    }
+
+    /**
+     * @param i interval index
+     * @return size of second coalescing leaf set of interval i
+     */
+    public int getDescendantLeafCount2(int i) {
+        return SiteAncestry.cardinality(leafWords2, i*wordsPerSet, wordsPerSet);
+    }
+
+    /**
+     * @param i interval index
+     * @param words words of a set of leaf numbers
+     * @param offset index of first word of set
+     * @param nWords number of words in set
+     * @return number of leaves in first coalescing leaf set of interval i
+     * which also belong to the given set
+     */
+    public int getDescendantLeafCount1(int i, long[] words, int offset, int nWords) {
+        return SiteAncestry.intersectionCardinality(leafWords1, i*wordsPerSet,
+                words, offset, Math.min(wordsPerSet, nWords));
+    }
+
+    /**
+     * @param i interval index
+     * @param words words of a set of leaf numbers
+     * @param offset index of first word of set
+     * @param nWords number of words in set
+     * @return number of leaves in second coalescing leaf set of interval i
+     * which also belong to the given set
+     */
+    public int getDescendantLeafCount2(int i, long[] words, int offset, int nWords) {
+        return SiteAncestry.intersectionCardinality(leafWords2, i*wordsPerSet,
+                words, offset, Math.min(wordsPerSet, nWords));
     }
 
     @Override
     public String toString() {
-        String res = "";
+        StringBuilder sb = new StringBuilder();
 
-        for (int i=0; i<getIntervalCount(); i++) {
+        for (int i=0; i<intervalCount; i++) {
             if (i>0)
-                res += " ";
+                sb.append(" ");
 
-            res += "[" + siteRanges.get(2*i) + "," + siteRanges.get(2*i+1) + "]"
-                    + descendantLeaves1.get(i).toString().replaceAll("\\s","")
-                    + descendantLeaves2.get(i).toString().replaceAll("\\s","");
+            sb.append("[").append(boundaries[2*i])
+                    .append(",").append(boundaries[2*i+1]).append("]");
+            SiteAncestry.appendSet(sb, leafWords1, i*wordsPerSet, wordsPerSet);
+            SiteAncestry.appendSet(sb, leafWords2, i*wordsPerSet, wordsPerSet);
         }
 
-        return res;
+        return sb.toString();
     }
 
     public void addInterval(int x, int y, BitSet dl1, BitSet dl2) {
-        if (getIntervalCount()>0
-                && x == siteRanges.get(siteRanges.size()-1)
-                && ((descendantLeaves1.get(descendantLeaves1.size()-1).equals(dl1)
-                && descendantLeaves2.get(descendantLeaves2.size()-1).equals(dl2))
-                || (descendantLeaves1.get(descendantLeaves1.size()-1).equals(dl2)
-                && descendantLeaves2.get(descendantLeaves2.size()-1).equals(dl1))))
-            siteRanges.set(siteRanges.size()-1, y);
-        else {
-            siteRanges.add(x);
-            siteRanges.add(y);
-            descendantLeaves1.add(dl1);
-            descendantLeaves2.add(dl2);
+        addInterval(x, y, dl1, dl2, true);
+    }
+
+    private void addInterval(int x, int y, BitSet dl1, BitSet dl2, boolean mergeAdjacent) {
+        long[] words1 = dl1.toLongArray();
+        long[] words2 = dl2.toLongArray();
+        ensureWordsPerSet(Math.max(words1.length, words2.length));
+
+        ensureCapacity(intervalCount + 1);
+        int offset = intervalCount*wordsPerSet;
+        SiteAncestry.copyWords(words1, 0, words1.length, leafWords1, offset, wordsPerSet);
+        SiteAncestry.copyWords(words2, 0, words2.length, leafWords2, offset, wordsPerSet);
+
+        if (mergeAdjacent) {
+            commitInterval(x, y, offset);
+        } else {
+            boundaries[2*intervalCount] = x;
+            boundaries[2*intervalCount+1] = y;
+            intervalCount += 1;
         }
     }
 
+    /**
+     * Add interval recording the coalescence of interval i of a with
+     * interval j of b, merging it with the preceding interval where
+     * possible.
+     */
+    void addInterval(int x, int y, SiteAncestry a, int i, SiteAncestry b, int j) {
+        ensureCapacity(intervalCount + 1);
+        int offset = intervalCount*wordsPerSet;
+        SiteAncestry.copyWords(a.leafWords, i*a.wordsPerSet, a.wordsPerSet,
+                leafWords1, offset, wordsPerSet);
+        SiteAncestry.copyWords(b.leafWords, j*b.wordsPerSet, b.wordsPerSet,
+                leafWords2, offset, wordsPerSet);
+        commitInterval(x, y, offset);
+    }
+
+    /**
+     * Complete the addition of the interval whose leaf sets have been
+     * written at the given offset, extending the previous interval
+     * instead if it abuts this one and involves the same pair of sets.
+     */
+    private void commitInterval(int x, int y, int offset) {
+        if (intervalCount>0 && boundaries[2*intervalCount-1] == x) {
+            int prev = offset - wordsPerSet;
+            if ((SiteAncestry.wordsEqual(leafWords1, prev, leafWords1, offset, wordsPerSet)
+                    && SiteAncestry.wordsEqual(leafWords2, prev, leafWords2, offset, wordsPerSet))
+                    || (SiteAncestry.wordsEqual(leafWords1, prev, leafWords2, offset, wordsPerSet)
+                    && SiteAncestry.wordsEqual(leafWords2, prev, leafWords1, offset, wordsPerSet))) {
+                boundaries[2*intervalCount-1] = y;
+                return;
+            }
+        }
+
+        boundaries[2*intervalCount] = x;
+        boundaries[2*intervalCount+1] = y;
+        intervalCount += 1;
+    }
+
+    private void ensureCapacity(int nIntervals) {
+        if (boundaries.length < 2*nIntervals)
+            boundaries = Arrays.copyOf(boundaries,
+                    Math.max(2*nIntervals, 2*boundaries.length));
+
+        if (leafWords1.length < nIntervals*wordsPerSet) {
+            int newLength = Math.max(nIntervals*wordsPerSet, 2*leafWords1.length);
+            leafWords1 = Arrays.copyOf(leafWords1, newLength);
+            leafWords2 = Arrays.copyOf(leafWords2, newLength);
+        }
+    }
+
+    /**
+     * Ensure leaf sets of at least the given width can be stored.
+     */
+    void ensureWordsPerSet(int minWordsPerSet) {
+        if (wordsPerSet >= minWordsPerSet)
+            return;
+
+        int length = Math.max(intervalCount+1, 4)*minWordsPerSet;
+        long[] newWords1 = new long[length];
+        long[] newWords2 = new long[length];
+        for (int i=0; i<intervalCount; i++) {
+            System.arraycopy(leafWords1, i*wordsPerSet, newWords1, i*minWordsPerSet, wordsPerSet);
+            System.arraycopy(leafWords2, i*wordsPerSet, newWords2, i*minWordsPerSet, wordsPerSet);
+        }
+        leafWords1 = newWords1;
+        leafWords2 = newWords2;
+        wordsPerSet = minWordsPerSet;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -118,14 +305,21 @@ public class Coalescence {
 
         Coalescence that = (Coalescence) o;
 
-        if (!siteRanges.equals(that.siteRanges))
+        if (intervalCount != that.intervalCount)
             return false;
 
-        for (int i=0; i<getIntervalCount(); i++) {
-            if ((!descendantLeaves1.get(i).equals(that.descendantLeaves1.get(i))
-                    && !descendantLeaves1.get(i).equals(that.descendantLeaves2.get(i)))
-                    || (!descendantLeaves2.get(i).equals(that.descendantLeaves2.get(i))
-                    && !descendantLeaves2.get(i).equals(that.descendantLeaves1.get(i))))
+        for (int i=0; i<intervalCount; i++) {
+            if (boundaries[2*i] != that.boundaries[2*i]
+                    || boundaries[2*i+1] != that.boundaries[2*i+1])
+                return false;
+
+            int off = i*wordsPerSet, thatOff = i*that.wordsPerSet;
+            int n = wordsPerSet, thatN = that.wordsPerSet;
+
+            if ((!SiteAncestry.setsEqual(leafWords1, off, n, that.leafWords1, thatOff, thatN)
+                    && !SiteAncestry.setsEqual(leafWords1, off, n, that.leafWords2, thatOff, thatN))
+                    || (!SiteAncestry.setsEqual(leafWords2, off, n, that.leafWords2, thatOff, thatN)
+                    && !SiteAncestry.setsEqual(leafWords2, off, n, that.leafWords1, thatOff, thatN)))
                 return false;
         }
 
@@ -134,11 +328,14 @@ public class Coalescence {
 
     @Override
     public int hashCode() {
-        int result = siteRanges.hashCode();
+        int result = 0;
+
+        for (int i=0; i<intervalCount; i++) {
+            result = 31*result + boundaries[2*i];
+            result = 31*result + boundaries[2*i+1];
 
-        for (int i=0; i<getIntervalCount(); i++) {
-            int dl1hash = descendantLeaves1.get(i).hashCode();
-            int dl2hash = descendantLeaves2.get(i).hashCode();
+            int dl1hash = SiteAncestry.setHash(leafWords1, i*wordsPerSet, wordsPerSet);
+            int dl2hash = SiteAncestry.setHash(leafWords2, i*wordsPerSet, wordsPerSet);
 
             if (dl1hash < dl2hash)
                 result = 31*(31 * result + dl1hash) + dl2hash;
@@ -21,6 +21,7 @@ import beast.evolution.tree.Node;
 
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class representing recombination events that are one-edge
@@ -67,7 +68,16 @@ public class Conversion {
      */
     public int acgIndex;
 
-    public Conversion() { }
+    /**
+     * Identifier preserved by copies, including those made when the ACG
+     * is stored.  Used to key per-conversion caches.
+     */
+    protected long id;
+    private static final AtomicLong nextID = new AtomicLong();
+
+    public Conversion() {
+        id = nextID.getAndIncrement();
+    }
 
     /**
      * Construct new recombination with specified properties.
@@ -82,6 +92,7 @@ public class Conversion {
      */
     public Conversion(Node node1, double height1, Node node2, double height2,
             int startSite, int endSite, ConversionGraph acg, Locus locus) {
+        this();
         this.node1 = node1;
         this.node2 = node2;
         this.height1 = height1;
@@ -263,6 +274,13 @@ public class Conversion {
         return true;
     }
     
+    /**
+     * @return identifier shared by this conversion and its copies
+     */
+    public long getID() {
+        return id;
+    }
+
     /**
      * Assign conversion graph.
      * @param acg 
@@ -272,11 +290,12 @@ public class Conversion {
     }
 
     /**
-     * Mark ARG statenode as dirty if available.
+     * Mark ARG statenode as dirty if available.  Conversion edits do not
+     * affect the clonal frame, so the CF event list is left alone.
      */
     public void startEditing() {
         if (acg != null)
-            acg.startEditing(null);
+            acg.startEditingConversion(this);
     }
     
     /**
@@ -295,6 +314,7 @@ public class Conversion {
         copy.node2 = node2;
         copy.height1 = height1;
         copy.height2 = height2;
+        copy.id = id;
 
         return copy;
     }
@@ -73,10 +73,21 @@ public class ConversionGraph extends Tree {
      */
     protected Map<Locus, RegionList> regionLists;
     protected CFEventList cfEventList;
+    protected Map<Locus, ACGEventList> acgEventLists;
+    protected ACGEventList acgEventList;
+    protected Map<Locus, ConversionStatistics> conversionStatistics;
 
     protected List<Locus> loci;
     protected int totalSequenceLength;
 
+    /**
+     * Record of edits made since the last call to store().  Used by
+     * distributions which update their densities incrementally.
+     */
+    protected boolean clonalFrameEdited = true;
+    protected Map<Long, Conversion> editedConversions = new HashMap<>();
+    protected Set<Long> deletedConversionIDs = new HashSet<>();
+
     @Override
     public void initAndValidate() {
 
@@ -155,10 +166,13 @@ public class ConversionGraph extends Tree {
      * @param conv conversion to add
      */
     public void addConversion(Conversion conv) {
-        startEditing(null);
+        startEditingConversions(null);
         
         conv.setConversionGraph(this);
 
+        deletedConversionIDs.remove(conv.getID());
+        editedConversions.put(conv.getID(), conv);
+
         Locus locus = conv.getLocus();
 
         int i;
@@ -175,9 +189,12 @@ public class ConversionGraph extends Tree {
      * @param conv conversion to remove.
      */
     public void deleteConversion(Conversion conv) {
-        startEditing(null);
+        startEditingConversions(null);
         
         convs.get(conv.getLocus()).remove(conv);
+
+        editedConversions.remove(conv.getID());
+        deletedConversionIDs.add(conv.getID());
     }
     
     /**
@@ -275,7 +292,62 @@ public class ConversionGraph extends Tree {
      * @return List of events.
      */
     public List<CFEventList.Event> getCFEvents() {
-        return cfEventList.getCFEvents();
+        return getCFEventList().getCFEvents();
+    }
+
+    /**
+     * Obtain the clonal frame event list itself, which additionally
+     * provides an index of the CF lineages extant at any given time.
+     *
+     * @return CF event list object
+     */
+    public CFEventList getCFEventList() {
+        if (cfEventList == null)
+            cfEventList = new CFEventList(this);
+
+        return cfEventList;
+    }
+
+    /**
+     * Obtain cached list of CF and conversion events for all loci.
+     *
+     * @return ACG event list object
+     */
+    public ACGEventList getACGEventList() {
+        if (acgEventList == null)
+            acgEventList = new ACGEventList(this);
+
+        return acgEventList;
+    }
+
+    /**
+     * Obtain cached list of CF events and conversion events belonging
+     * to a particular locus.
+     *
+     * @param locus locus with which conversions are associated
+     * @return ACG event list object
+     */
+    public ACGEventList getACGEventList(Locus locus) {
+        if (acgEventLists == null)
+            acgEventLists = new HashMap<>();
+
+        return acgEventLists.computeIfAbsent(locus,
+                l -> new ACGEventList(this, l));
+    }
+
+    /**
+     * Obtain sufficient statistics of the sites affected by the
+     * conversions belonging to a particular locus.
+     *
+     * @param locus locus with which conversions are associated
+     * @return conversion statistics object
+     */
+    public ConversionStatistics getConversionStatistics(Locus locus) {
+        if (conversionStatistics == null)
+            conversionStatistics = new HashMap<>();
+
+        return conversionStatistics.computeIfAbsent(locus,
+                l -> new ConversionStatistics(this, l));
     }
 
     /**
@@ -515,6 +587,11 @@ public class ConversionGraph extends Tree {
 
             if (cfEventList == null)
                 cfEventList = new CFEventList(this);
+            else
+                cfEventList.makeDirty();
+
+            makeACGEventListsDirty(false);
+            clonalFrameEdited = true;
 
             regionLists.clear();
             for (Locus locus : loci) {
@@ -547,7 +624,12 @@ public class ConversionGraph extends Tree {
             }
 
             if (cfEventList == null)
-                cfEventList = new CFEventList(null);
+                cfEventList = new CFEventList(this);
+            else
+                cfEventList.makeDirty();
+
+            makeACGEventListsDirty(false);
+            clonalFrameEdited = true;
 
             regionLists.clear();
             for (Locus locus : loci)
@@ -952,6 +1034,11 @@ public class ConversionGraph extends Tree {
         for (Conversion conv : convIDMap.values())
             addConversion(conv);
 
+        if (cfEventList != null)
+            cfEventList.makeDirty();
+
+        makeACGEventListsDirty(false);
+        clonalFrameEdited = true;
     }
 
     /*
@@ -961,6 +1048,10 @@ public class ConversionGraph extends Tree {
     @Override
     protected void store () {
         super.store();
+
+        clonalFrameEdited = false;
+        editedConversions.clear();
+        deletedConversionIDs.clear();
         
         for (Locus locus : getLoci()) {
             storedConvs.get(locus).clear();
@@ -981,6 +1072,7 @@ public class ConversionGraph extends Tree {
                 convCopy.setNode2(m_storedNodes[conv.getNode2().getNr()]);
 
                 convCopy.setConversionGraph(this);
+                convCopy.id = conv.id;
 
                 storedConvs.get(locus).add(convCopy);
             }
@@ -996,8 +1088,11 @@ public class ConversionGraph extends Tree {
         convs = tmp;
 
         cfEventList.makeDirty();
+        makeACGEventListsDirty(false);
         for (Locus locus : loci)
             regionLists.get(locus).makeDirty();
+
+        clonalFrameEdited = true;
     }
 
     @Override
@@ -1008,11 +1103,106 @@ public class ConversionGraph extends Tree {
         if (cfEventList != null)
             cfEventList.makeDirty();
 
+        makeACGEventListsDirty(false);
+
+        if (regionLists != null)
+            for (RegionList regionList : regionLists.values())
+                regionList.makeDirty();
+
+        clonalFrameEdited = true;
+    }
+
+    /**
+     * Variant of startEditing() used when only conversions are modified.
+     * Such edits leave the clonal frame untouched, so the CF event list
+     * is not invalidated.
+     *
+     * @param operator operator performing the edit (may be null)
+     */
+    public void startEditingConversions(Operator operator) {
+        if (state != null)
+            super.startEditing(operator);
+
+        makeACGEventListsDirty(true);
+
         if (regionLists != null)
             for (RegionList regionList : regionLists.values())
                 regionList.makeDirty();
     }
 
+    /**
+     * Variant of startEditingConversions() used when a single conversion
+     * already attached to the graph is modified.  The conversion is
+     * recorded so that incremental density calculations can locate it.
+     *
+     * @param conv conversion being edited
+     */
+    public void startEditingConversion(Conversion conv) {
+        startEditingConversions(null);
+
+        if (!deletedConversionIDs.contains(conv.getID()))
+            editedConversions.put(conv.getID(), conv);
+    }
+
+    /**
+     * @return true if edit records are maintained for this graph.  This
+     * is only the case when the graph belongs to a State, as records are
+     * cleared by store().
+     */
+    public boolean editsAreRecorded() {
+        return state != null;
+    }
+
+    /**
+     * @return true if the clonal frame may have been modified since the
+     * last call to store().
+     */
+    public boolean clonalFrameWasEdited() {
+        return clonalFrameEdited;
+    }
+
+    /**
+     * @return conversions currently attached to the graph which have been
+     * added or modified since the last call to store().
+     */
+    public Collection<Conversion> getEditedConversions() {
+        return editedConversions.values();
+    }
+
+    /**
+     * @return IDs of conversions removed since the last call to store().
+     */
+    public Set<Long> getDeletedConversionIDs() {
+        return deletedConversionIDs;
+    }
+
+    /**
+     * Mark cached ACG event lists and conversion statistics as dirty.
+     *
+     * @param conversionsOnly if true, only conversion events are marked dirty
+     */
+    protected void makeACGEventListsDirty(boolean conversionsOnly) {
+        if (conversionStatistics != null)
+            for (ConversionStatistics stats : conversionStatistics.values())
+                stats.makeDirty();
+
+        if (acgEventList != null) {
+            if (conversionsOnly)
+                acgEventList.makeConversionsDirty();
+            else
+                acgEventList.makeDirty();
+        }
+
+        if (acgEventLists != null) {
+            for (ACGEventList list : acgEventLists.values()) {
+                if (conversionsOnly)
+                    list.makeConversionsDirty();
+                else
+                    list.makeDirty();
+            }
+        }
+    }
+
     /**
      * @return true iff clonal frame is dirty
      */
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+/**
+ * Sufficient statistics of the affected sites of the conversions
+ * belonging to a given locus.  These are all that the rho and delta
+ * dependent terms of the ACG prior require of the conversions.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ConversionStatistics {
+
+    private final ConversionGraph acg;
+    private final Locus locus;
+    private boolean dirty;
+
+    private int convCount, startAtLocusStartCount, endAtLocusEndCount;
+    private long totalTractLength;
+
+    /**
+     * Construct statistics object for the given ACG and locus.  There
+     * should only be one of these per ACG and locus, obtained via
+     * ConversionGraph.getConversionStatistics().
+     *
+     * @param acg conversion graph
+     * @param locus locus with which conversions are associated
+     */
+    public ConversionStatistics(ConversionGraph acg, Locus locus) {
+        this.acg = acg;
+        this.locus = locus;
+        dirty = true;
+    }
+
+    /**
+     * Mark statistics as requiring recomputation.
+     */
+    public void makeDirty() {
+        dirty = true;
+    }
+
+    /**
+     * @return number of conversions
+     */
+    public int getConvCount() {
+        update();
+        return convCount;
+    }
+
+    /**
+     * @return number of conversions whose tract begins at the first site
+     */
+    public int getStartAtLocusStartCount() {
+        update();
+        return startAtLocusStartCount;
+    }
+
+    /**
+     * @return number of conversions whose tract ends at the last site
+     */
+    public int getEndAtLocusEndCount() {
+        update();
+        return endAtLocusEndCount;
+    }
+
+    /**
+     * @return sum over conversions of the number of sites in each tract
+     */
+    public long getTotalTractLength() {
+        update();
+        return totalTractLength;
+    }
+
+    private void update() {
+        if (!dirty)
+            return;
+
+        convCount = 0;
+        startAtLocusStartCount = 0;
+        endAtLocusEndCount = 0;
+        totalTractLength = 0;
+
+        for (Conversion conv : acg.getConversions(locus)) {
+            convCount += 1;
+
+            if (conv.getStartSite() == 0)
+                startAtLocusStartCount += 1;
+
+            if (conv.getEndSite() == locus.getSiteCount()-1)
+                endAtLocusEndCount += 1;
+
+            totalTractLength += conv.getEndSite() - conv.getStartSite() + 1;
+        }
+
+        dirty = false;
+    }
+}
@@ -34,11 +34,15 @@ public class Locus extends BEASTObject {
 
     public Input<Alignment> alignmentInput = new Input<>(
             "alignment",
-            "Initialize locus using this alignment.",
-            Input.Validate.XOR, siteCountInput);
+            "Initialize locus using this alignment.");
+
+    public Input<SNPAlignment> snpAlignmentInput = new Input<>(
+            "snpAlignment",
+            "Initialize locus using this SNP-only alignment.");
 
     protected int siteCount;
     protected Alignment alignment;
+    protected SNPAlignment snpAlignment;
 
     public Locus() { }
 
@@ -53,6 +57,17 @@ public class Locus extends BEASTObject {
         setID(name);
     }
 
+    /**
+     * Construct locus corresponding to given SNP-only alignment.
+     *
+     * @param snpAlignment SNP alignment object
+     */
+    public Locus(String name, SNPAlignment snpAlignment) {
+        this.snpAlignment = snpAlignment;
+        this.siteCount = snpAlignment.getSiteCount();
+        setID(name);
+    }
+
     /**
      * Construct locus with given site count
      *
@@ -66,11 +81,24 @@ public class Locus extends BEASTObject {
 
     @Override
     public void initAndValidate() {
+        int nSpecified = (siteCountInput.get() != null ? 1 : 0)
+                + (alignmentInput.get() != null ? 1 : 0)
+                + (snpAlignmentInput.get() != null ? 1 : 0);
+        if (nSpecified != 1)
+            throw new IllegalArgumentException("Exactly one of siteCount, " +
+                    "alignment and snpAlignment must be specified for locus "
+                    + getID() + ".");
+
+        alignment = null;
+        snpAlignment = null;
+
         if (alignmentInput.get() != null) {
             alignment = alignmentInput.get();
             siteCount = alignment.getSiteCount();
+        } else if (snpAlignmentInput.get() != null) {
+            snpAlignment = snpAlignmentInput.get();
+            siteCount = snpAlignment.getSiteCount();
         } else {
-            alignment = null;
             siteCount = siteCountInput.get();
         }
     }
@@ -95,4 +123,18 @@ public class Locus extends BEASTObject {
     public boolean hasAlignment() {
         return alignment != null;
     }
+
+    /**
+     * @return SNP-only alignment associated with locus
+     */
+    public SNPAlignment getSNPAlignment() {
+        return snpAlignment;
+    }
+
+    /**
+     * @return true if locus is associated with a SNP-only alignment.
+     */
+    public boolean hasSNPAlignment() {
+        return snpAlignment != null;
+    }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.datatype.DataType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact representation of a long alignment in which most sites are
+ * invariant.  Only the variable columns are held in an Alignment.  For
+ * the remaining sites just the shared state is kept, packed into a few
+ * bits per site, along with per-state counts at regular checkpoints so
+ * that the number of invariant sites having each state in any range of
+ * sites can be found in constant time.
+ *
+ * Columns which are constant but contain an ambiguous character are
+ * treated as variable, so the full alignment can be reconstructed
+ * exactly.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Alignment which stores only the variable columns of a " +
+        "larger alignment, together with the states of its invariant sites.")
+public class SNPAlignment extends BEASTObject {
+
+    public Input<Alignment> alignmentInput = new Input<>(
+            "alignment",
+            "Alignment containing only the variable columns.",
+            Input.Validate.REQUIRED);
+
+    public Input<String> positionsInput = new Input<>(
+            "positions",
+            "Whitespace-delimited zero-based positions of the columns of " +
+                    "the variable site alignment within the full alignment.",
+            Input.Validate.REQUIRED);
+
+    public Input<String> invariantSequenceInput = new Input<>(
+            "invariantSequence",
+            "Sequence with one character per site of the full alignment, " +
+                    "giving the state shared by all taxa at each invariant " +
+                    "site.  Characters at variable positions are ignored.",
+            Input.Validate.REQUIRED);
+
+    private static final int BLOCK_SIZE = 64;
+
+    protected Alignment alignment;
+    protected int[] positions;
+    protected int siteCount, nStates;
+
+    protected int bitsPerSite, sitesPerWord;
+    protected long[] packedStates;
+    protected int[][] blockCounts;
+
+    @Override
+    public void initAndValidate() {
+        alignment = alignmentInput.get();
+        nStates = alignment.getDataType().getStateCount();
+
+        if (positionsInput.get().trim().isEmpty())
+            throw new IllegalArgumentException("SNPAlignment must have at " +
+                    "least one variable position.");
+
+        String[] positionStrings = positionsInput.get().trim().split("\\s+");
+        positions = new int[positionStrings.length];
+        for (int i=0; i<positions.length; i++) {
+            positions[i] = Integer.parseInt(positionStrings[i]);
+            if (i>0 && positions[i] <= positions[i-1])
+                throw new IllegalArgumentException("SNPAlignment positions " +
+                        "must be strictly increasing.");
+        }
+
+        if (positions.length != alignment.getSiteCount())
+            throw new IllegalArgumentException("Number of SNPAlignment " +
+                    "positions does not match number of alignment sites.");
+
+        String invariantSequence = invariantSequenceInput.get().trim();
+        siteCount = invariantSequence.length();
+
+        if (positions.length>0 && positions[positions.length-1] >= siteCount)
+            throw new IllegalArgumentException("SNPAlignment position " +
+                    "exceeds length of invariant sequence.");
+
+        // States 0..nStates-1 mark invariant sites, nStates marks
+        // variable sites.
+        bitsPerSite = 32 - Integer.numberOfLeadingZeros(nStates);
+        sitesPerWord = 64 / bitsPerSite;
+        packedStates = new long[(siteCount + sitesPerWord - 1) / sitesPerWord];
+        blockCounts = new int[nStates][siteCount/BLOCK_SIZE + 1];
+
+        DataType dataType = alignment.getDataType();
+        Map<Character, Integer> charStates = new HashMap<>();
+        int[] counts = new int[nStates];
+        int nextPosition = 0;
+        for (int site=0; site<siteCount; site++) {
+            if (site % BLOCK_SIZE == 0) {
+                for (int s=0; s<nStates; s++)
+                    blockCounts[s][site/BLOCK_SIZE] = counts[s];
+            }
+
+            int state;
+            if (nextPosition < positions.length && positions[nextPosition] == site) {
+                state = nStates;
+                nextPosition += 1;
+            } else {
+                char c = invariantSequence.charAt(site);
+                Integer charState = charStates.get(c);
+                if (charState == null) {
+                    charState = getInvariantState(dataType, c);
+                    charStates.put(c, charState);
+                }
+                state = charState;
+                counts[state] += 1;
+            }
+
+            packedStates[site / sitesPerWord] |=
+                    (long)state << ((site % sitesPerWord) * bitsPerSite);
+        }
+
+        if (siteCount % BLOCK_SIZE == 0) {
+            for (int s=0; s<nStates; s++)
+                blockCounts[s][siteCount/BLOCK_SIZE] = counts[s];
+        }
+    }
+
+    /**
+     * @param dataType data type of alignment
+     * @param c character
+     * @return state corresponding to character
+     */
+    private static int getInvariantState(DataType dataType, char c) {
+        List<Integer> codes;
+        try {
+            codes = dataType.stringToEncoding(String.valueOf(c));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid character '" + c
+                    + "' in SNPAlignment invariant sequence.", e);
+        }
+
+        int[] states = dataType.getStatesForCode(codes.get(0));
+        if (states.length != 1)
+            throw new IllegalArgumentException("Ambiguous character '" + c
+                    + "' at invariant site in SNPAlignment.");
+
+        return states[0];
+    }
+
+    /**
+     * @return alignment containing only the variable sites
+     */
+    public Alignment getAlignment() {
+        return alignment;
+    }
+
+    /**
+     * @return number of sites in full alignment
+     */
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    /**
+     * @param position site in full alignment
+     * @return index of first variable site at or beyond position
+     */
+    public int getVariableSiteIndex(int position) {
+        int idx = Arrays.binarySearch(positions, position);
+        return idx >= 0 ? idx : -idx - 1;
+    }
+
+    /**
+     * @param idx index of variable site
+     * @return position of variable site in full alignment
+     */
+    public int getVariableSitePosition(int idx) {
+        return positions[idx];
+    }
+
+    /**
+     * @param site site in full alignment
+     * @return state shared by all taxa at site, or the state count if
+     * site is variable
+     */
+    protected int getPackedState(int site) {
+        return (int)(packedStates[site / sitesPerWord]
+                >>> ((site % sitesPerWord) * bitsPerSite))
+                & ((1 << bitsPerSite) - 1);
+    }
+
+    /**
+     * @param state state
+     * @param end end of range (exclusive)
+     * @return number of invariant sites before end having given state
+     */
+    private int getPrefixCount(int state, int end) {
+        int block = end / BLOCK_SIZE;
+        int count = blockCounts[state][block];
+        for (int site=block*BLOCK_SIZE; site<end; site++) {
+            if (getPackedState(site) == state)
+                count += 1;
+        }
+
+        return count;
+    }
+
+    /**
+     * @param state state
+     * @param start start of range (inclusive)
+     * @param end end of range (exclusive)
+     * @return number of invariant sites in range having given state
+     */
+    public int getInvariantSiteCount(int state, int start, int end) {
+        return getPrefixCount(state, end) - getPrefixCount(state, start);
+    }
+
+    /**
+     * Identify the columns of a set of aligned nucleotide sequences which
+     * cannot be represented as invariant sites: those containing more
+     * than one character or any character other than A, C, G or T.
+     *
+     * @param sequences aligned sequences
+     * @return positions of variable columns
+     */
+    public static List<Integer> getVariablePositions(List<String> sequences) {
+        List<Integer> variablePositions = new ArrayList<>();
+
+        int length = sequences.get(0).length();
+        for (int site=0; site<length; site++) {
+            char c = Character.toUpperCase(sequences.get(0).charAt(site));
+            boolean variable = "ACGT".indexOf(c) < 0;
+            for (int i=1; i<sequences.size() && !variable; i++) {
+                if (Character.toUpperCase(sequences.get(i).charAt(site)) != c)
+                    variable = true;
+            }
+
+            if (variable)
+                variablePositions.add(site);
+        }
+
+        return variablePositions;
+    }
+}
@@ -2,40 +2,45 @@ package bacter;
 
 import beast.evolution.tree.Node;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.List;
 
 /**
  * Class of objects representing the site ancestry of a given lineage.
  *
+ * Intervals are stored in primitive arrays: interval i covers the sites
+ * [boundaries[2i], boundaries[2i+1]) and its descendant leaf set occupies
+ * words [i*wordsPerSet, (i+1)*wordsPerSet) of leafWords.  Instances are
+ * intended to be recycled via an AncestryPool, so the arrays only ever
+ * grow and clear() simply forgets the stored intervals.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class SiteAncestry {
 
-    public List<Integer> siteRanges;
-    public List<BitSet> descendantLeaves;
+    int[] boundaries;
+    long[] leafWords;
+    int wordsPerSet;
+    int intervalCount;
 
     public SiteAncestry() {
-        siteRanges = new ArrayList<>();
-        descendantLeaves = new ArrayList<>();
+        this(1);
     }
 
-    public SiteAncestry(Node node, Locus locus) {
-        siteRanges = new ArrayList<>();
-        siteRanges.add(0);
-        siteRanges.add(locus.getSiteCount());
+    public SiteAncestry(int wordsPerSet) {
+        this.wordsPerSet = wordsPerSet;
+        boundaries = new int[8];
+        leafWords = new long[4*wordsPerSet];
+        intervalCount = 0;
+    }
 
-        descendantLeaves = new ArrayList<>();
-        BitSet bitSet = new BitSet();
-        bitSet.set(node.getNr());
-        descendantLeaves.add(bitSet);
+    public SiteAncestry(Node node, Locus locus) {
+        this(node.getNr()/64 + 1);
+        setLeaf(node.getNr(), locus.getSiteCount());
     }
 
     public SiteAncestry(String string) {
-
-        siteRanges = new ArrayList<>();
-        descendantLeaves = new ArrayList<>();
+        this(1);
 
         string = string.replaceAll("\\s+","");
 
@@ -49,34 +54,209 @@ public class SiteAncestry {
             String[] split2 = aSplit1.split("]\\{");
             String[] rangeStr = split2[0].split(",");
 
-            siteRanges.add(Integer.parseInt(rangeStr[0]));
-            siteRanges.add(Integer.parseInt(rangeStr[1]));
-
             String[] bitStr = split2[1].split(",");
             BitSet theseDecendents = new BitSet();
             for (String aBitStr : bitStr) {
                 theseDecendents.set(Integer.parseInt(aBitStr));
             }
-            descendantLeaves.add(theseDecendents);
+
+            addInterval(Integer.parseInt(rangeStr[0]),
+                    Integer.parseInt(rangeStr[1]),
+                    theseDecendents, false);
         }
     }
 
+    /**
+     * Forget all intervals, retaining allocated storage.
+     *
+     * @param wordsPerSet number of 64-bit words used to hold each leaf set
+     */
+    public void clear(int wordsPerSet) {
+        this.wordsPerSet = wordsPerSet;
+        intervalCount = 0;
+        ensureCapacity(1);
+    }
+
+    /**
+     * Set this object to describe the ancestry of every site of a leaf.
+     *
+     * @param leafNr number of leaf node
+     * @param siteCount number of sites in locus
+     */
+    public void setLeaf(int leafNr, int siteCount) {
+        if (leafNr/64 >= wordsPerSet)
+            clear(leafNr/64 + 1);
+        else
+            clear(wordsPerSet);
+
+        boundaries[0] = 0;
+        boundaries[1] = siteCount;
+        for (int w=0; w<wordsPerSet; w++)
+            leafWords[w] = 0L;
+        leafWords[leafNr/64] = 1L << (leafNr % 64);
+        intervalCount = 1;
+    }
+
     public int getIntervalCount() {
-        return descendantLeaves.size();
+        return intervalCount;
+    }
+
+    /**
+     * @param i interval index
+     * @return first site of interval i
+     */
+    public int getIntervalStart(int i) {
+        return boundaries[2*i];
+    }
+
+    /**
+     * @param i interval index
+     * @return one past the last site of interval i
+     */
+    public int getIntervalEnd(int i) {
+        return boundaries[2*i+1];
+    }
+
+    /**
+     * @param i interval index
+     * @param fromIdx leaf number at which to start search
+     * @return number of first descendant leaf of interval i with number
+     * at least fromIdx, or -1 if there is none.
+     */
+    public int nextDescendantLeaf(int i, int fromIdx) {
+        return nextSetBit(leafWords, i*wordsPerSet, wordsPerSet, fromIdx);
+    }
+
+    /**
+     * @param i interval index
+     * @return number of leaves descending from interval i
+     */
+    public int getDescendantLeafCount(int i) {
+        return cardinality(leafWords, i*wordsPerSet, wordsPerSet);
     }
 
     public void addInterval(int x, int y, BitSet dl) {
-        if (getIntervalCount()>0
-                && siteRanges.get(siteRanges.size()-1)==x
-                && descendantLeaves.get(descendantLeaves.size()-1).equals(dl))
-            siteRanges.set(siteRanges.size()-1, y);
-        else {
-            siteRanges.add(x);
-            siteRanges.add(y);
-            descendantLeaves.add(dl);
+        addInterval(x, y, dl, true);
+    }
+
+    private void addInterval(int x, int y, BitSet dl, boolean mergeAdjacent) {
+        long[] words = dl.toLongArray();
+        if (words.length > wordsPerSet)
+            widen(words.length);
+
+        int offset = beginInterval();
+        for (int w=0; w<wordsPerSet; w++)
+            leafWords[offset + w] = w < words.length ? words[w] : 0L;
+
+        if (mergeAdjacent) {
+            commitInterval(x, y, offset);
+        } else {
+            boundaries[2*intervalCount] = x;
+            boundaries[2*intervalCount+1] = y;
+            intervalCount += 1;
+        }
+    }
+
+    /**
+     * Add interval with leaf set copied from interval i of src, merging
+     * it with the preceding interval where possible.
+     */
+    private void addInterval(int x, int y, SiteAncestry src, int i) {
+        int offset = beginInterval();
+        copyWords(src.leafWords, i*src.wordsPerSet, src.wordsPerSet,
+                leafWords, offset, wordsPerSet);
+        commitInterval(x, y, offset);
+    }
+
+    /**
+     * Add interval with leaf set given by the union of interval i of a
+     * and interval j of b, merging it with the preceding interval where
+     * possible.
+     */
+    private void addUnionInterval(int x, int y,
+                                  SiteAncestry a, int i,
+                                  SiteAncestry b, int j) {
+        int offset = beginInterval();
+        copyWords(a.leafWords, i*a.wordsPerSet, a.wordsPerSet,
+                leafWords, offset, wordsPerSet);
+        int n = Math.min(b.wordsPerSet, wordsPerSet);
+        for (int w=0; w<n; w++)
+            leafWords[offset + w] |= b.leafWords[j*b.wordsPerSet + w];
+        commitInterval(x, y, offset);
+    }
+
+    /**
+     * Append interval with leaf set copied from interval i of src without
+     * attempting to merge it with the preceding interval.
+     */
+    private void appendInterval(int x, int y, SiteAncestry src, int i) {
+        int offset = beginInterval();
+        copyWords(src.leafWords, i*src.wordsPerSet, src.wordsPerSet,
+                leafWords, offset, wordsPerSet);
+        boundaries[2*intervalCount] = x;
+        boundaries[2*intervalCount+1] = y;
+        intervalCount += 1;
+    }
+
+    /**
+     * Reserve storage for a new interval.
+     *
+     * @return offset into leafWords of the new interval's leaf set
+     */
+    private int beginInterval() {
+        ensureCapacity(intervalCount + 1);
+        return intervalCount*wordsPerSet;
+    }
+
+    /**
+     * Complete the addition of the interval whose leaf set has been
+     * written at the given offset, extending the previous interval
+     * instead if it abuts this one and has the same leaf set.
+     */
+    private void commitInterval(int x, int y, int offset) {
+        if (intervalCount>0
+                && boundaries[2*intervalCount-1] == x
+                && wordsEqual(leafWords, offset - wordsPerSet,
+                leafWords, offset, wordsPerSet)) {
+            boundaries[2*intervalCount-1] = y;
+        } else {
+            boundaries[2*intervalCount] = x;
+            boundaries[2*intervalCount+1] = y;
+            intervalCount += 1;
         }
     }
 
+    private void ensureCapacity(int nIntervals) {
+        if (boundaries.length < 2*nIntervals)
+            boundaries = Arrays.copyOf(boundaries,
+                    Math.max(2*nIntervals, 2*boundaries.length));
+
+        if (leafWords.length < nIntervals*wordsPerSet)
+            leafWords = Arrays.copyOf(leafWords,
+                    Math.max(nIntervals*wordsPerSet, 2*leafWords.length));
+    }
+
+    /**
+     * Increase the number of words used to store each leaf set,
+     * preserving existing intervals.
+     */
+    private void widen(int newWordsPerSet) {
+        long[] newWords = new long[Math.max(intervalCount+1, 4)*newWordsPerSet];
+        for (int i=0; i<intervalCount; i++)
+            System.arraycopy(leafWords, i*wordsPerSet,
+                    newWords, i*newWordsPerSet, wordsPerSet);
+        leafWords = newWords;
+        wordsPerSet = newWordsPerSet;
+    }
+
+    /**
+     * Ensure leaf sets of at least the given width can be stored.
+     */
+    void ensureWordsPerSet(int minWordsPerSet) {
+        if (wordsPerSet < minWordsPerSet)
+            widen(minWordsPerSet);
+    }
+
     /**
      * Computes the union between this ancestry and another, additionally
      * producing a SiteAncestry representing the those sites and samples
@@ -94,27 +274,32 @@ public class SiteAncestry {
      */
     public void merge(SiteAncestry other, Coalescence coalescence, SiteAncestry union) {
 
+        int width = Math.max(wordsPerSet, other.wordsPerSet);
+        union.ensureWordsPerSet(width);
+        coalescence.ensureWordsPerSet(width);
+
+        int[] otherBoundaries = other.boundaries;
+        int otherCount = other.intervalCount;
+
         int i = 0, j = 0;
 
         int last=0;
 
-        while (i<getIntervalCount()) {
+        while (i<intervalCount) {
 
-            int x = siteRanges.get(2*i);
-            int y = siteRanges.get(2*i + 1);
-            BitSet dl = descendantLeaves.get(i);
+            int x = boundaries[2*i];
+            int y = boundaries[2*i + 1];
 
-            while (j<other.getIntervalCount()
-                    && other.siteRanges.get(2*j) < x) {
+            while (j<otherCount && otherBoundaries[2*j] < x) {
 
-                int xp = other.siteRanges.get(2*j);
-                int yp = other.siteRanges.get(2*j + 1);
+                int xp = otherBoundaries[2*j];
+                int yp = otherBoundaries[2*j + 1];
                 xp = xp < last ? last : xp;
                 yp = yp > x ? x : yp;
 
-                union.addInterval(xp, yp, other.descendantLeaves.get(j));
+                union.addInterval(xp, yp, other, j);
 
-                if (other.siteRanges.get(2*j+1) <= x)
+                if (otherBoundaries[2*j+1] <= x)
                     j += 1;
                 else
                     break;
@@ -122,47 +307,43 @@ public class SiteAncestry {
 
             last = x;
 
-            while (j<other.getIntervalCount()
-                    && other.siteRanges.get(2*j) < y) {
+            while (j<otherCount && otherBoundaries[2*j] < y) {
 
-                int xp = other.siteRanges.get(2*j);
-                int yp = other.siteRanges.get(2*j + 1);
+                int xp = otherBoundaries[2*j];
+                int yp = otherBoundaries[2*j + 1];
                 xp = xp < x ? x : xp;
                 yp = yp > y ? y : yp;
 
                 if (last < xp)
-                    union.addInterval(last, xp, dl);
+                    union.addInterval(last, xp, this, i);
 
                 last = yp;
 
-                BitSet mergedDescendants = (BitSet)dl.clone();
-                mergedDescendants.or(other.descendantLeaves.get(j));
-                union.addInterval(xp, yp, mergedDescendants);
-
-                coalescence.addInterval(xp, yp, dl, other.descendantLeaves.get(j));
+                union.addUnionInterval(xp, yp, this, i, other, j);
+                coalescence.addInterval(xp, yp, this, i, other, j);
 
-                if (other.siteRanges.get(2*j+1) <= y)
+                if (otherBoundaries[2*j+1] <= y)
                     j += 1;
                 else
                     break;
             }
 
             if (last < y)
-                union.addInterval(last, y, dl);
+                union.addInterval(last, y, this, i);
 
             last = y;
 
             i += 1;
         }
 
-        while (j < other.getIntervalCount()) {
+        while (j < otherCount) {
 
-            int xp = other.siteRanges.get(2*j);
-            if (!siteRanges.isEmpty() && xp < siteRanges.get(siteRanges.size()-1))
-                xp = siteRanges.get(siteRanges.size()-1);
-            int yp = other.siteRanges.get(2*j + 1);
+            int xp = otherBoundaries[2*j];
+            if (intervalCount>0 && xp < boundaries[2*intervalCount-1])
+                xp = boundaries[2*intervalCount-1];
+            int yp = otherBoundaries[2*j + 1];
 
-            union.addInterval(xp, yp, other.descendantLeaves.get(j));
+            union.addInterval(xp, yp, other, j);
 
             j += 1;
         }
@@ -181,47 +362,44 @@ public class SiteAncestry {
      */
     public void split(int x, int y, SiteAncestry inside, SiteAncestry outside) {
 
+        inside.ensureWordsPerSet(wordsPerSet);
+        outside.ensureWordsPerSet(wordsPerSet);
+
         int i=0;
 
-        while (i<getIntervalCount() && siteRanges.get(2*i)<x) {
-            int xp = siteRanges.get(2*i);
-            int yp = siteRanges.get(2*i+1);
+        while (i<intervalCount && boundaries[2*i]<x) {
+            int xp = boundaries[2*i];
+            int yp = boundaries[2*i+1];
             yp = yp > x ? x : yp;
 
-            outside.siteRanges.add(xp);
-            outside.siteRanges.add(yp);
-            outside.descendantLeaves.add(descendantLeaves.get(i));
+            outside.appendInterval(xp, yp, this, i);
 
-            if (siteRanges.get(2*i+1) <= x)
+            if (boundaries[2*i+1] <= x)
                 i += 1;
             else
                 break;
         }
 
-        while (i<getIntervalCount() && siteRanges.get(2*i)<y) {
-            int xp = siteRanges.get(2*i);
-            int yp = siteRanges.get(2*i+1);
+        while (i<intervalCount && boundaries[2*i]<y) {
+            int xp = boundaries[2*i];
+            int yp = boundaries[2*i+1];
             xp = xp < x ? x : xp;
             yp = yp > y ? y : yp;
 
-            inside.siteRanges.add(xp);
-            inside.siteRanges.add(yp);
-            inside.descendantLeaves.add(descendantLeaves.get(i));
+            inside.appendInterval(xp, yp, this, i);
 
-            if (siteRanges.get(2*i+1) <=y)
+            if (boundaries[2*i+1] <=y)
                 i += 1;
             else
                 break;
         }
 
-        while (i<getIntervalCount()) {
-            int xp = siteRanges.get(2*i);
-            int yp = siteRanges.get(2*i+1);
+        while (i<intervalCount) {
+            int xp = boundaries[2*i];
+            int yp = boundaries[2*i+1];
             xp = xp < y ? y : xp;
 
-            outside.siteRanges.add(xp);
-            outside.siteRanges.add(yp);
-            outside.descendantLeaves.add(descendantLeaves.get(i));
+            outside.appendInterval(xp, yp, this, i);
 
             i += 1;
         }
@@ -234,30 +412,134 @@ public class SiteAncestry {
 
         SiteAncestry that = (SiteAncestry) o;
 
-        return siteRanges.equals(that.siteRanges)
-                && descendantLeaves.equals(that.descendantLeaves);
+        if (intervalCount != that.intervalCount)
+            return false;
+
+        for (int i=0; i<intervalCount; i++) {
+            if (boundaries[2*i] != that.boundaries[2*i]
+                    || boundaries[2*i+1] != that.boundaries[2*i+1]
+                    || !setsEqual(leafWords, i*wordsPerSet, wordsPerSet,
+                    that.leafWords, i*that.wordsPerSet, that.wordsPerSet))
+                return false;
+        }
+
+        return true;
     }
 
     @Override
     public int hashCode() {
-        int result = siteRanges.hashCode();
-        result = 31 * result + descendantLeaves.hashCode();
+        int result = 0;
+        for (int i=0; i<intervalCount; i++) {
+            result = 31*result + boundaries[2*i];
+            result = 31*result + boundaries[2*i+1];
+            result = 31*result + setHash(leafWords, i*wordsPerSet, wordsPerSet);
+        }
         return result;
     }
 
     @Override
     public String toString() {
-        String res = "";
+        StringBuilder sb = new StringBuilder();
 
-        for (int i=0; i<getIntervalCount(); i++) {
+        for (int i=0; i<intervalCount; i++) {
             if (i>0)
-                res += " ";
+                sb.append(" ");
 
-            res += "[" + siteRanges.get(2*i) + "," + siteRanges.get(2*i+1) + "]"
-                    + descendantLeaves.get(i).toString().replaceAll("\\s","");
+            sb.append("[").append(boundaries[2*i])
+                    .append(",").append(boundaries[2*i+1]).append("]");
+            appendSet(sb, leafWords, i*wordsPerSet, wordsPerSet);
         }
 
-        return res;
+        return sb.toString();
+    }
+
+    /*
+     * Leaf set helpers.  Sets are stored as runs of 64-bit words within
+     * larger arrays, bit b of word w representing leaf 64*w + b.
+     */
+
+    static int nextSetBit(long[] words, int offset, int nWords, int fromIdx) {
+        int w = fromIdx >> 6;
+        if (w >= nWords)
+            return -1;
+
+        long word = words[offset + w] & (-1L << fromIdx);
+        while (true) {
+            if (word != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            w += 1;
+            if (w == nWords)
+                return -1;
+            word = words[offset + w];
+        }
+    }
+
+    static int cardinality(long[] words, int offset, int nWords) {
+        int count = 0;
+        for (int w=0; w<nWords; w++)
+            count += Long.bitCount(words[offset + w]);
+        return count;
+    }
+
+    static int intersectionCardinality(long[] a, int offsetA, long[] b, int offsetB, int nWords) {
+        int count = 0;
+        for (int w=0; w<nWords; w++)
+            count += Long.bitCount(a[offsetA + w] & b[offsetB + w]);
+        return count;
+    }
+
+    static boolean wordsEqual(long[] a, int offsetA, long[] b, int offsetB, int nWords) {
+        for (int w=0; w<nWords; w++) {
+            if (a[offsetA + w] != b[offsetB + w])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare two sets which may be stored using different widths.
+     */
+    static boolean setsEqual(long[] a, int offsetA, int nWordsA,
+                             long[] b, int offsetB, int nWordsB) {
+        int n = Math.max(nWordsA, nWordsB);
+        for (int w=0; w<n; w++) {
+            long wa = w < nWordsA ? a[offsetA + w] : 0L;
+            long wb = w < nWordsB ? b[offsetB + w] : 0L;
+            if (wa != wb)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Width-independent hash of a set.
+     */
+    static int setHash(long[] words, int offset, int nWords) {
+        long h = 1234;
+        for (int w=nWords; --w>=0; )
+            h ^= words[offset + w] * (w + 1);
+        return (int)((h >> 32) ^ h);
+    }
+
+    static void copyWords(long[] src, int srcOffset, int srcWords,
+                          long[] dest, int destOffset, int destWords) {
+        int n = Math.min(srcWords, destWords);
+        System.arraycopy(src, srcOffset, dest, destOffset, n);
+        for (int w=n; w<destWords; w++)
+            dest[destOffset + w] = 0L;
+    }
+
+    static void appendSet(StringBuilder sb, long[] words, int offset, int nWords) {
+        sb.append("{");
+        boolean first = true;
+        for (int b = nextSetBit(words, offset, nWords, 0); b>=0;
+             b = nextSetBit(words, offset, nWords, b+1)) {
+            if (!first)
+                sb.append(",");
+            sb.append(b);
+            first = false;
+        }
+        sb.append("}");
     }
 
     /**
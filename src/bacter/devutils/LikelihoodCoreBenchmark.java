@@ -0,0 +1,137 @@
+package bacter.devutils;
+
+import bacter.model.ACGLikelihood;
+import bacter.model.likelihood.VectorLikelihoodCore4;
+import beast.evolution.likelihood.BeerLikelihoodCore4;
+import beast.evolution.likelihood.LikelihoodCore;
+import beast.util.Randomizer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Compares the time taken by BeerLikelihoodCore4 and
+ * VectorLikelihoodCore4 to prune random nucleotide data over a balanced
+ * tree, for a range of region sizes (pattern counts).  Run on Java 17
+ * with --add-modules jdk.incubator.vector to exercise the vectorized
+ * kernels.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class LikelihoodCoreBenchmark {
+
+    private static final int[] PATTERN_COUNTS = {1, 10, 100, 1000, 10000, 100000};
+
+    public static void main(String[] args) {
+        int nLeaves = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int nCategories = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        if (!ACGLikelihood.vectorCoreIsAvailable())
+            System.out.println("Warning: vectorized core unavailable, " +
+                    "comparing Beer core against itself.");
+
+        System.out.println(String.format("%10s %15s %15s %10s",
+                "Patterns", "Beer (ms)", "Vector (ms)", "Speedup"));
+
+        for (int nPatterns : PATTERN_COUNTS) {
+            int nEvals = Math.max(1, 2000000 / (nPatterns * nLeaves));
+
+            LikelihoodCore beerCore = new BeerLikelihoodCore4();
+            LikelihoodCore vectorCore = ACGLikelihood.vectorCoreIsAvailable()
+                    ? new VectorLikelihoodCore4()
+                    : new BeerLikelihoodCore4();
+
+            setUpCore(beerCore, nLeaves, nPatterns, nCategories, 1);
+            setUpCore(vectorCore, nLeaves, nPatterns, nCategories, 1);
+
+            // Warm up before timing
+            prune(beerCore, nLeaves, nPatterns, nCategories, nEvals);
+            prune(vectorCore, nLeaves, nPatterns, nCategories, nEvals);
+
+            double beerTime = prune(beerCore, nLeaves, nPatterns, nCategories, nEvals);
+            double vectorTime = prune(vectorCore, nLeaves, nPatterns, nCategories, nEvals);
+
+            System.out.println(String.format("%10d %15.6f %15.6f %10.3f",
+                    nPatterns, beerTime, vectorTime, beerTime/vectorTime));
+        }
+    }
+
+    /**
+     * Initialize core with random leaf states and transition matrices.
+     *
+     * @param core core to initialize
+     * @param nLeaves number of leaves
+     * @param nPatterns number of patterns
+     * @param nCategories number of rate categories
+     * @param seed random number seed
+     */
+    private static void setUpCore(LikelihoodCore core, int nLeaves,
+                                  int nPatterns, int nCategories, long seed) {
+        Randomizer.setSeed(seed);
+
+        int nNodes = 2*nLeaves - 1;
+        core.initialize(nNodes, nPatterns, nCategories, true, false);
+
+        int[] states = new int[nPatterns];
+        for (int leaf = 0; leaf < nLeaves; leaf++) {
+            for (int k = 0; k < nPatterns; k++)
+                states[k] = Randomizer.nextInt(4);
+            core.setNodeStates(leaf, states);
+        }
+
+        for (int node = nLeaves; node < nNodes; node++)
+            core.createNodePartials(node);
+
+        double[] matrix = new double[16];
+        for (int node = 0; node < nNodes - 1; node++) {
+            core.setNodeMatrixForUpdate(node);
+            for (int l = 0; l < nCategories; l++) {
+                for (int i = 0; i < 4; i++) {
+                    double rowSum = 0.0;
+                    for (int j = 0; j < 4; j++) {
+                        matrix[4*i + j] = Randomizer.nextDouble();
+                        rowSum += matrix[4*i + j];
+                    }
+                    for (int j = 0; j < 4; j++)
+                        matrix[4*i + j] /= rowSum;
+                }
+                core.setNodeMatrix(node, l, matrix);
+            }
+        }
+    }
+
+    /**
+     * Repeatedly prune balanced tree and integrate root partials.
+     *
+     * @return mean time per evaluation in milliseconds
+     */
+    private static double prune(LikelihoodCore core, int nLeaves,
+                                int nPatterns, int nCategories, int nEvals) {
+        double[] proportions = new double[nCategories];
+        for (int l = 0; l < nCategories; l++)
+            proportions[l] = 1.0/nCategories;
+
+        double[] rootPartials = new double[nPatterns*4];
+
+        long startTime = System.nanoTime();
+        for (int eval = 0; eval < nEvals; eval++) {
+            Deque<Integer> unpaired = new ArrayDeque<>();
+            for (int leaf = 0; leaf < nLeaves; leaf++)
+                unpaired.add(leaf);
+
+            int nextNode = nLeaves;
+            while (unpaired.size() > 1) {
+                int child1 = unpaired.poll();
+                int child2 = unpaired.poll();
+                core.setNodePartialsForUpdate(nextNode);
+                core.calculatePartials(child1, child2, nextNode);
+                unpaired.add(nextNode);
+                nextNode += 1;
+            }
+
+            core.integratePartials(unpaired.poll(), proportions, rootPartials);
+        }
+
+        return (System.nanoTime() - startTime)*1e-6/nEvals;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.mcmc;
+
+import beast.core.*;
+import beast.core.util.CompoundDistribution;
+import beast.core.util.Evaluator;
+import beast.core.util.Log;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+/**
+ * Base class for MCMC variants which evaluate the posterior in two
+ * stages: first every component except a set of deferred (expensive)
+ * likelihoods, then the deferred likelihoods themselves.  Subclasses
+ * decide, using the first-stage result, whether and how the deferred
+ * likelihoods are evaluated and whether the proposal is accepted.
+ *
+ * Components evaluated in the first stage are not evaluated again in
+ * the second: the densities of enclosing CompoundDistributions are
+ * assembled from the cached densities of their components.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("MCMC in which expensive likelihood components are evaluated " +
+        "after the remainder of the posterior.")
+public abstract class DeferredLikelihoodMCMC extends MCMC {
+
+    /**
+     * Distribution.logP.  CompoundDistribution provides no way to
+     * update its cached density without re-evaluating all dirty
+     * components, so the field is written directly.
+     */
+    private static final Field logPField;
+
+    static {
+        try {
+            logPField = Distribution.class.getDeclaredField("logP");
+            logPField.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Distribution.logP not found.", e);
+        }
+    }
+
+    /**
+     * @param distr posterior component
+     * @return true if distr is to be evaluated in the second stage
+     */
+    protected abstract boolean isDeferred(Distribution distr);
+
+    /**
+     * Evaluate the proposed state and decide whether it is accepted.
+     * Implementations must set newLogLikelihood and logAlpha.  Accepted
+     * proposals have oldLogLikelihood updated by the caller.
+     *
+     * @param operator operator responsible for the proposal
+     * @param logHastingsRatio log Hastings ratio of the proposal
+     * @return true if the proposal is accepted
+     */
+    protected abstract boolean acceptProposal(Operator operator, double logHastingsRatio);
+
+    /**
+     * First evaluation stage: compute the log density of the given
+     * distribution, leaving out deferred components.  Components which
+     * are not dirty contribute their cached log density.
+     *
+     * @param distr distribution to evaluate
+     * @return log density excluding deferred components
+     */
+    protected double calculateLogPExcludingDeferred(Distribution distr) {
+        if (isDeferred(distr))
+            return 0.0;
+
+        if (distr instanceof CompoundDistribution) {
+            double logP = 0.0;
+            for (Distribution childDistr : ((CompoundDistribution) distr).pDistributions.get()) {
+                logP += calculateLogPExcludingDeferred(childDistr);
+                if (logP == Double.NEGATIVE_INFINITY)
+                    break;
+            }
+            return logP;
+        }
+
+        return distr.isDirtyCalculation() ? distr.calculateLogP() : distr.getCurrentLogP();
+    }
+
+    /**
+     * Second evaluation stage: evaluate the deferred components of the
+     * given distribution and combine these with the densities of the
+     * remaining components obtained in the first stage.  Must only be
+     * called after calculateLogPExcludingDeferred() has returned a
+     * finite value for the same distribution, as only then are all of
+     * the remaining components up to date.
+     *
+     * @param distr distribution to evaluate
+     * @return log density of distr
+     */
+    protected double calculateLogPIncludingDeferred(Distribution distr) {
+        if (isDeferred(distr))
+            return distr.isDirtyCalculation() ? distr.calculateLogP() : distr.getCurrentLogP();
+
+        if (distr instanceof CompoundDistribution) {
+            double logP = 0.0;
+            for (Distribution childDistr : ((CompoundDistribution) distr).pDistributions.get()) {
+                logP += calculateLogPIncludingDeferred(childDistr);
+                if (logP == Double.NEGATIVE_INFINITY)
+                    break;
+            }
+
+            try {
+                logPField.setDouble(distr, logP);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return logP;
+        }
+
+        return distr.getCurrentLogP();
+    }
+
+    @Override
+    protected void doLoop() {
+        if (burnIn > 0) {
+            Log.warning.println("Please wait while BEAST takes " + burnIn + " pre-burnin samples");
+        }
+
+        for (int sampleNr = -burnIn; sampleNr <= chainLength; sampleNr++) {
+            final int currentState = sampleNr;
+
+            state.store(currentState);
+
+            final Operator operator = operatorSchedule.selectOperator();
+
+            final Distribution evaluatorDistribution = operator.getEvaluatorDistribution();
+            Evaluator evaluator = null;
+
+            if (evaluatorDistribution != null) {
+                evaluator = () -> {
+                    double logP = 0.0;
+
+                    state.storeCalculationNodes();
+                    state.checkCalculationNodesDirtiness();
+
+                    try {
+                        logP = evaluatorDistribution.calculateLogP();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        System.exit(1);
+                    }
+
+                    state.restore();
+                    state.store(currentState);
+
+                    return logP;
+                };
+            }
+
+            final double logHastingsRatio = operator.proposal(evaluator);
+
+            if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+
+                if (operator.requiresStateInitialisation()) {
+                    state.storeCalculationNodes();
+                    state.checkCalculationNodesDirtiness();
+                }
+
+                if (acceptProposal(operator, logHastingsRatio)) {
+                    // accept
+                    oldLogLikelihood = newLogLikelihood;
+                    state.acceptCalculationNodes();
+
+                    if (sampleNr >= 0) {
+                        operator.accept();
+                    }
+                } else {
+                    // reject
+                    if (sampleNr >= 0) {
+                        operator.reject(newLogLikelihood == Double.NEGATIVE_INFINITY ? -1 : 0);
+                    }
+                    state.restore();
+                    state.restoreCalculationNodes();
+                }
+                state.setEverythingDirty(false);
+            } else {
+                // operation failed
+                if (sampleNr >= 0) {
+                    operator.reject(-2);
+                }
+                state.restore();
+                if (!operator.requiresStateInitialisation()) {
+                    state.setEverythingDirty(false);
+                    state.restoreCalculationNodes();
+                }
+            }
+            log(sampleNr);
+
+            if (sampleNr >= 0)
+                operator.optimize(logAlpha);
+
+            // make sure we always save just before exiting
+            if (storeEvery > 0 && (sampleNr + 1) % storeEvery == 0 || sampleNr == chainLength) {
+                state.robustlyCalcNonStochasticPosterior(posterior);
+                state.storeToFile(sampleNr);
+                try {
+                    operatorSchedule.storeToFile();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.mcmc;
+
+import beast.core.*;
+import beast.core.util.CompoundDistribution;
+import beast.core.util.Log;
+import beast.util.Randomizer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Delayed-acceptance MCMC.  Each proposal is first screened using a
+ * posterior in which an expensive likelihood is replaced by a cheap
+ * approximation (typically ACGLikelihoodApprox).  Only proposals which
+ * survive this screen have the expensive likelihood evaluated, and
+ * these are subject to a second accept/reject step which corrects for
+ * the approximation, so that the chain still targets the exact
+ * posterior.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("MCMC in which proposals are screened using a cheap " +
+        "approximation to an expensive likelihood before the expensive " +
+        "likelihood is evaluated.")
+public class DelayedAcceptanceMCMC extends DeferredLikelihoodMCMC {
+
+    public Input<Distribution> likelihoodInput = new Input<>("likelihood",
+            "Expensive likelihood, which must be a component of the posterior.",
+            Input.Validate.REQUIRED);
+
+    public Input<Distribution> approxLikelihoodInput = new Input<>(
+            "approxLikelihood",
+            "Cheap approximation to the expensive likelihood, used to " +
+                    "screen proposals.  Must not be a component of the " +
+                    "posterior.",
+            Input.Validate.REQUIRED);
+
+    Distribution likelihood, approxLikelihood;
+
+    double oldLikelihoodLogP, oldApproxLogP;
+
+    Map<Operator, OperatorStats> operatorStats = new LinkedHashMap<>();
+
+    /**
+     * Counts and timings of each stage for a single operator.
+     */
+    protected static class OperatorStats {
+        long screened, screenRejected, fullEvaluated;
+        long screenNanos, fullNanos;
+    }
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        likelihood = likelihoodInput.get();
+        approxLikelihood = approxLikelihoodInput.get();
+
+        if (!isComponent(posteriorInput.get(), likelihood))
+            throw new IllegalArgumentException("Likelihood input to " +
+                    "DelayedAcceptanceMCMC must be a component of the " +
+                    "posterior.");
+
+        if (isComponent(posteriorInput.get(), approxLikelihood))
+            throw new IllegalArgumentException("Approximate likelihood " +
+                    "input to DelayedAcceptanceMCMC must not be a " +
+                    "component of the posterior.");
+    }
+
+    /**
+     * @param distr distribution to search
+     * @param target distribution to search for
+     * @return true if target is distr or is contained within it
+     */
+    protected static boolean isComponent(Distribution distr, Distribution target) {
+        if (distr == target)
+            return true;
+
+        if (distr instanceof CompoundDistribution) {
+            for (Distribution childDistr : ((CompoundDistribution) distr).pDistributions.get()) {
+                if (isComponent(childDistr, target))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    protected boolean isDeferred(Distribution distr) {
+        return distr == likelihood;
+    }
+
+    @Override
+    protected void doLoop() {
+        oldLikelihoodLogP = likelihood.getCurrentLogP();
+        // No density has been cached for the approximation yet.
+        oldApproxLogP = approxLikelihood.calculateLogP();
+
+        super.doLoop();
+
+        reportScreeningStatistics();
+    }
+
+    @Override
+    protected boolean acceptProposal(Operator operator, double logHastingsRatio) {
+        OperatorStats stats = operatorStats.computeIfAbsent(operator, op -> new OperatorStats());
+
+        // Stage 1: screen using approximate posterior.
+
+        long startTime = System.nanoTime();
+
+        double oldOtherLogP = oldLogLikelihood - oldLikelihoodLogP;
+        double newOtherLogP = calculateLogPExcludingDeferred(posterior);
+        // The approximation is part of the calculation node graph, so
+        // proposals which leave its inputs untouched reuse its density.
+        double newApproxLogP = Double.NEGATIVE_INFINITY;
+        if (newOtherLogP > Double.NEGATIVE_INFINITY)
+            newApproxLogP = approxLikelihood.isDirtyCalculation()
+                    ? approxLikelihood.calculateLogP()
+                    : approxLikelihood.getCurrentLogP();
+
+        double logAlpha1 = newOtherLogP + newApproxLogP
+                - oldOtherLogP - oldApproxLogP + logHastingsRatio;
+
+        stats.screened += 1;
+        stats.screenNanos += System.nanoTime() - startTime;
+
+        if (!(logAlpha1 >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha1))) {
+            stats.screenRejected += 1;
+            newLogLikelihood = Double.NaN;
+            logAlpha = logAlpha1;
+            return false;
+        }
+
+        // Stage 2: correct for error in approximation.  The remaining
+        // posterior components were evaluated during stage 1.
+
+        startTime = System.nanoTime();
+        newLogLikelihood = calculateLogPIncludingDeferred(posterior);
+        stats.fullEvaluated += 1;
+        stats.fullNanos += System.nanoTime() - startTime;
+
+        double newLikelihoodLogP = likelihood.getCurrentLogP();
+
+        double logAlpha2 = newLikelihoodLogP - oldLikelihoodLogP
+                - (newApproxLogP - oldApproxLogP);
+
+        // Overall acceptance probability, used for operator tuning.
+        logAlpha = Math.min(logAlpha2, 0.0) + Math.min(logAlpha1, 0.0);
+
+        if (logAlpha2 >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha2)) {
+            oldLikelihoodLogP = newLikelihoodLogP;
+            oldApproxLogP = newApproxLogP;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Report, for each operator, the fraction of proposals rejected by
+     * the screening stage and an estimate of the wall-clock time saved
+     * by not evaluating the expensive likelihood for these.
+     */
+    protected void reportScreeningStatistics() {
+        long totalFullEvaluated = 0, totalFullNanos = 0;
+        for (OperatorStats stats : operatorStats.values()) {
+            totalFullEvaluated += stats.fullEvaluated;
+            totalFullNanos += stats.fullNanos;
+        }
+
+        Log.info.println("\nDelayed acceptance screening statistics:");
+        Log.info.println(String.format("%-40s %10s %10s %10s %12s",
+                "Operator", "Screened", "Rejected", "RejRate", "Saved (s)"));
+
+        for (Map.Entry<Operator, OperatorStats> entry : operatorStats.entrySet()) {
+            OperatorStats stats = entry.getValue();
+
+            // Estimate cost of a full evaluation using this operator's
+            // own evaluations where possible.
+            double meanFullNanos;
+            if (stats.fullEvaluated > 0)
+                meanFullNanos = stats.fullNanos/(double)stats.fullEvaluated;
+            else if (totalFullEvaluated > 0)
+                meanFullNanos = totalFullNanos/(double)totalFullEvaluated;
+            else
+                meanFullNanos = 0.0;
+
+            double savedNanos = stats.screenRejected*meanFullNanos - stats.screenNanos;
+
+            Log.info.println(String.format("%-40s %10d %10d %10.4f %12.3f",
+                    entry.getKey().getID(),
+                    stats.screened, stats.screenRejected,
+                    stats.screened > 0 ? stats.screenRejected/(double)stats.screened : 0.0,
+                    savedNanos*1e-9));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.mcmc;
+
+import bacter.model.EarlyTerminatingLikelihood;
+import beast.core.*;
+import beast.core.util.CompoundDistribution;
+import beast.core.util.Log;
+import beast.util.Randomizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MCMC which draws the uniform random variate used in the Metropolis-Hastings
+ * acceptance step before evaluating the posterior.  This determines the
+ * smallest posterior density for which the proposal would be accepted,
+ * allowing components of the posterior implementing
+ * EarlyTerminatingLikelihood to abandon evaluation as soon as it is clear
+ * that this density cannot be reached.  The chain produced is identical
+ * in distribution to that of the standard MCMC.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("MCMC in which likelihood evaluation is abandoned as soon as " +
+        "it is certain that the proposed state will be rejected.")
+public class EarlyTerminationMCMC extends DeferredLikelihoodMCMC {
+
+    List<Distribution> terminatingLikelihoods = new ArrayList<>();
+
+    long evaluationCount, terminationCount;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        collectTerminatingLikelihoods(posteriorInput.get());
+
+        if (terminatingLikelihoods.isEmpty())
+            Log.warning.println("Warning: posterior contains no components " +
+                    "supporting early termination.");
+    }
+
+    /**
+     * Assemble list of posterior components supporting early termination.
+     *
+     * @param distr distribution to search
+     */
+    protected void collectTerminatingLikelihoods(Distribution distr) {
+        if (distr instanceof EarlyTerminatingLikelihood) {
+            terminatingLikelihoods.add(distr);
+            return;
+        }
+
+        if (distr instanceof CompoundDistribution) {
+            for (Distribution childDistr : ((CompoundDistribution) distr).pDistributions.get())
+                collectTerminatingLikelihoods(childDistr);
+        }
+    }
+
+    @Override
+    protected boolean isDeferred(Distribution distr) {
+        return distr instanceof EarlyTerminatingLikelihood;
+    }
+
+    /**
+     * Supply threshold to each terminating likelihood.  Since every
+     * component is non-positive, each one must individually exceed the
+     * posterior threshold less the contribution of the remaining
+     * components.
+     *
+     * @param logPosteriorThreshold posterior below which proposal is rejected
+     * @param otherLogP log density of the non-terminating components
+     */
+    protected void setThresholds(double logPosteriorThreshold, double otherLogP) {
+        double logPThreshold = logPosteriorThreshold - otherLogP;
+
+        for (Distribution distr : terminatingLikelihoods)
+            ((EarlyTerminatingLikelihood)distr).setLogPThreshold(logPThreshold);
+    }
+
+    /**
+     * Disable early termination.
+     *
+     * @return true if any likelihood terminated early since thresholds
+     * were last set
+     */
+    protected boolean clearThresholds() {
+        boolean terminated = false;
+        for (Distribution distr : terminatingLikelihoods) {
+            EarlyTerminatingLikelihood terminatingLikelihood = (EarlyTerminatingLikelihood)distr;
+            terminated = terminated || terminatingLikelihood.evaluationTerminatedEarly();
+            terminatingLikelihood.setLogPThreshold(Double.NEGATIVE_INFINITY);
+        }
+
+        return terminated;
+    }
+
+    @Override
+    protected void doLoop() {
+        super.doLoop();
+
+        Log.info.println("\nLikelihood evaluations terminated early: "
+                + terminationCount + " of " + evaluationCount);
+    }
+
+    @Override
+    protected boolean acceptProposal(Operator operator, double logHastingsRatio) {
+
+        // Draw uniform variate ahead of evaluation: the proposal is
+        // accepted iff logAlpha >= logU.
+        double logU = Math.log(Randomizer.nextDouble());
+
+        double otherLogP = calculateLogPExcludingDeferred(posterior);
+        if (otherLogP == Double.NEGATIVE_INFINITY) {
+            newLogLikelihood = Double.NEGATIVE_INFINITY;
+            logAlpha = Double.NEGATIVE_INFINITY;
+            return false;
+        }
+
+        setThresholds(oldLogLikelihood - logHastingsRatio + logU, otherLogP);
+
+        newLogLikelihood = calculateLogPIncludingDeferred(posterior);
+
+        boolean terminated = clearThresholds();
+        evaluationCount += 1;
+        if (terminated)
+            terminationCount += 1;
+
+        logAlpha = newLogLikelihood - oldLogLikelihood + logHastingsRatio;
+
+        return !terminated && logAlpha >= logU;
+    }
+}
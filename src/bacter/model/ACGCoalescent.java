@@ -16,10 +16,14 @@
  */
 package bacter.model;
 
+import bacter.ACGEventList;
 import bacter.CFEventList;
 import bacter.Conversion;
 import bacter.ConversionGraph;
+import bacter.ConversionStatistics;
 import bacter.Locus;
+import bacter.model.pop.BatchPopulationFunction;
+import beast.core.CalculationNode;
 import beast.core.Description;
 import beast.core.Distribution;
 import beast.core.Input;
@@ -30,7 +34,9 @@ import beast.evolution.tree.coalescent.PopulationFunction;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.PoissonDistributionImpl;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -57,6 +63,24 @@ public class ACGCoalescent extends TreeDistribution {
     ConversionGraph acg;
     PopulationFunction popFunc;
 
+    /*
+     * Cached contributions to the density.  The clonal frame term and
+     * the per-conversion recombinant edge terms (keyed by conversion ID)
+     * are reused while the clonal frame and population function are
+     * unchanged, in which case only conversions recorded as edited by the
+     * ACG are recomputed.  The rho and delta dependent terms are instead
+     * evaluated from per-locus conversion statistics.
+     */
+    protected boolean cacheValid, storedCacheValid;
+    protected double cfLogP, storedCFLogP;
+    protected double convLogPSum, storedConvLogPSum;
+    protected Map<Long, Double> convLogPs = new HashMap<>();
+
+    // Either the complete map replaced since the last store(), or a
+    // journal of the original values of individually modified entries.
+    protected Map<Long, Double> storedConvLogPs;
+    protected Map<Long, Double> convLogPJournal = new HashMap<>();
+
     public ACGCoalescent() {
         treeInput.setRule(Input.Validate.REQUIRED);
     }
@@ -83,9 +107,12 @@ public class ACGCoalescent extends TreeDistribution {
                 || acg.getTotalConvCount()>upperCCBoundInput.get())
             return Double.NEGATIVE_INFINITY;
 
-        logP = calculateClonalFrameLogP();
+        updateCachedLogPs();
+
+        logP = cfLogP;
+        double cfLength = acg.getClonalFrameLength();
         double poissonMean = rhoInput.get().getValue()
-                *acg.getClonalFrameLength()
+                *cfLength
                 *(acg.getTotalSequenceLength()
                 +acg.getLoci().size()*(deltaInput.get().getValue()-1.0));
 
@@ -98,10 +125,10 @@ public class ACGCoalescent extends TreeDistribution {
                 logP = Double.NEGATIVE_INFINITY;
         }
         
+        // Probability density of locations of recombinant edge starts
+        logP += -acg.getTotalConvCount()*Math.log(cfLength);
 
-        for (Locus locus : acg.getLoci())
-            for (Conversion conv : acg.getConversions(locus))
-                logP += calculateConversionLogP(conv);
+        logP += convLogPSum + calculateConversionSitesLogP();
         
         // This N! takes into account the permutation invariance of
         // the individual conversions, and cancels with the N! in the
@@ -123,6 +150,151 @@ public class ACGCoalescent extends TreeDistribution {
         return logP;
     }
 
+    /**
+     * Bring the cached clonal frame and conversion terms up to date,
+     * recomputing only the conversions edited since the last evaluation
+     * when this is possible.
+     */
+    protected void updateCachedLogPs() {
+
+        if (!cacheValid || !acg.editsAreRecorded()
+                || popFuncIsDirty()
+                || (acg.somethingIsDirty() && acg.clonalFrameWasEdited())) {
+
+            if (!acg.editsAreRecorded() || popFuncIsDirty())
+                acg.getCFEventList().makeIntensitiesDirty();
+
+            cfLogP = calculateClonalFrameLogP();
+
+            if (storedConvLogPs == null) {
+                // Entries modified by an earlier incremental pass in this
+                // step must be reverted before the map is kept as the
+                // stored state.
+                revertJournaledConvLogPs();
+                storedConvLogPs = convLogPs;
+            }
+            convLogPs = new HashMap<>();
+
+            if (popFunc instanceof BatchPopulationFunction) {
+                calculateAllConversionEdgeLogPs((BatchPopulationFunction) popFunc);
+            } else {
+                for (Locus locus : acg.getLoci()) {
+                    for (Conversion conv : acg.getConversions(locus))
+                        convLogPs.put(conv.getID(), calculateConversionEdgeLogP(conv));
+                }
+            }
+
+            convLogPSum = 0.0;
+            for (double convLogP : convLogPs.values())
+                convLogPSum += convLogP;
+
+            cacheValid = true;
+            return;
+        }
+
+        if (!acg.somethingIsDirty())
+            return;
+
+        for (long id : acg.getDeletedConversionIDs()) {
+            journalConvLogP(id);
+            Double oldLogP = convLogPs.remove(id);
+            if (oldLogP != null)
+                convLogPSum -= oldLogP;
+        }
+
+        for (Conversion conv : acg.getEditedConversions()) {
+            double convLogP = calculateConversionEdgeLogP(conv);
+
+            journalConvLogP(conv.getID());
+            Double oldLogP = convLogPs.put(conv.getID(), convLogP);
+            convLogPSum += convLogP - (oldLogP != null ? oldLogP : 0.0);
+        }
+    }
+
+    /**
+     * Fill the per-conversion cache with the edge term of every conversion,
+     * evaluating the population function in single passes over the
+     * time-ordered departure and arrival points.  Equivalent to calling
+     * calculateConversionEdgeLogP() for each conversion.
+     *
+     * @param batchPopFunc population function supporting batch evaluation
+     */
+    private void calculateAllConversionEdgeLogPs(BatchPopulationFunction batchPopFunc) {
+
+        int convCount = acg.getTotalConvCount();
+        double[] departTimes = new double[convCount];
+        double[] arriveTimes = new double[convCount];
+        Conversion[] departConvs = new Conversion[convCount];
+        Conversion[] arriveConvs = new Conversion[convCount];
+
+        int nDepart = 0, nArrive = 0;
+        for (ACGEventList.Event event : acg.getACGEventList().getACGEvents()) {
+            if (event.type == ACGEventList.EventType.CONV_DEPART) {
+                departConvs[nDepart] = event.conversion;
+                departTimes[nDepart++] = event.t;
+            } else if (event.type == ACGEventList.EventType.CONV_ARRIVE) {
+                arriveConvs[nArrive] = event.conversion;
+                arriveTimes[nArrive++] = event.t;
+            }
+        }
+
+        double[] departIntensities = new double[convCount];
+        double[] arriveIntensities = new double[convCount];
+        double[] arrivePopSizes = new double[convCount];
+        batchPopFunc.getIntensities(departTimes, departIntensities);
+        batchPopFunc.getIntensities(arriveTimes, arriveIntensities);
+        batchPopFunc.getPopSizes(arriveTimes, arrivePopSizes);
+
+        CFEventList cfEventList = acg.getCFEventList();
+
+        for (int i=0; i<nArrive; i++) {
+            double thisLogP = -cfEventList.getLineageIntensity(popFunc,
+                    arriveTimes[i], arriveIntensities[i]);
+            thisLogP += Math.log(1.0/arrivePopSizes[i]);
+            convLogPs.put(arriveConvs[i].getID(), thisLogP);
+        }
+
+        for (int i=0; i<nDepart; i++) {
+            convLogPs.merge(departConvs[i].getID(),
+                    cfEventList.getLineageIntensity(popFunc,
+                            departTimes[i], departIntensities[i]),
+                    Double::sum);
+        }
+    }
+
+    /**
+     * Record the value of a per-conversion cache entry prior to its first
+     * modification since the last store().
+     *
+     * @param id conversion ID
+     */
+    private void journalConvLogP(long id) {
+        if (storedConvLogPs == null && !convLogPJournal.containsKey(id))
+            convLogPJournal.put(id, convLogPs.get(id));
+    }
+
+    /**
+     * Return each journaled per-conversion cache entry to the value it
+     * had at the last store(), and clear the journal.
+     */
+    private void revertJournaledConvLogPs() {
+        for (Map.Entry<Long, Double> entry : convLogPJournal.entrySet()) {
+            if (entry.getValue() == null)
+                convLogPs.remove(entry.getKey());
+            else
+                convLogPs.put(entry.getKey(), entry.getValue());
+        }
+        convLogPJournal.clear();
+    }
+
+    /**
+     * @return true unless the population function is known to be clean
+     */
+    private boolean popFuncIsDirty() {
+        return !(popFunc instanceof CalculationNode)
+                || ((CalculationNode) popFunc).isDirtyCalculation();
+    }
+
     /**
      * Compute probability of clonal frame under coalescent.
      * 
@@ -131,19 +303,18 @@ public class ACGCoalescent extends TreeDistribution {
     public double calculateClonalFrameLogP() {
         
         List<CFEventList.Event> events = acg.getCFEvents();
+        double[] intensities = acg.getCFEventList().getIntensities(popFunc);
+        double[] popSizes = acg.getCFEventList().getPopSizes(popFunc);
         
         double thisLogP = 0.0;
         
         for (int i=0; i<events.size()-1; i++) {
-            double timeA = events.get(i).getHeight();
-            double timeB = events.get(i+1).getHeight();
-
-            double intervalArea = popFunc.getIntegral(timeA, timeB);
+            double intervalArea = intensities[i+1] - intensities[i];
             int k = events.get(i).getLineageCount();
             thisLogP += -0.5*k*(k-1)*intervalArea;
             
             if (events.get(i+1).getType()==CFEventList.EventType.COALESCENCE)
-                thisLogP += Math.log(1.0/popFunc.getPopSize(timeB));
+                thisLogP += Math.log(1.0/popSizes[i+1]);
         }
         
         return thisLogP;
@@ -156,35 +327,46 @@ public class ACGCoalescent extends TreeDistribution {
      */
     public double calculateConversionLogP(Conversion conv) {
 
-        double thisLogP = 0.0;
-        
-        List<CFEventList.Event> events = acg.getCFEvents();
-        
         // Probability density of location of recombinant edge start
-        thisLogP += Math.log(1.0/acg.getClonalFrameLength());
+        double thisLogP = Math.log(1.0/acg.getClonalFrameLength());
+
+        thisLogP += calculateConversionEdgeLogP(conv);
+        thisLogP += calculateConversionSiteLogP(conv);
+
+        return thisLogP;
+    }
+
+    /**
+     * Compute probability of the arrival time of a recombinant edge under
+     * the conditional coalescent.  This excludes the density of the
+     * departure point and of the affected sites, and is independent of rho
+     * and delta.
+     *
+     * @param conv conversion with which edge is associated
+     * @return log(P)
+     */
+    protected double calculateConversionEdgeLogP(Conversion conv) {
+
+        // Probability of no coalescence between departure and arrival
+        double thisLogP = -acg.getCFEventList().getLineageIntensityIntegral(
+                popFunc, conv.getHeight1(), conv.getHeight2());
 
-        // Identify interval containing the start of the recombinant edge
-        int startIdx = 0;
-        while (events.get(startIdx+1).getHeight() < conv.getHeight1())
-            startIdx += 1;
-        
-        for (int i=startIdx; i<events.size() && events.get(i).getHeight()<conv.getHeight2(); i++) {
-            
-            double timeA = Math.max(events.get(i).getHeight(), conv.getHeight1());
-            
-            double timeB;
-            if (i<events.size()-1)
-                timeB = Math.min(conv.getHeight2(), events.get(i+1).getHeight());
-            else
-                timeB = conv.getHeight2();
-            
-            double intervalArea = popFunc.getIntegral(timeA, timeB);
-            thisLogP += -events.get(i).getLineageCount()*intervalArea;
-        }
-        
         // Probability of single coalescence event
         thisLogP += Math.log(1.0/popFunc.getPopSize(conv.getHeight2()));
 
+        return thisLogP;
+    }
+
+    /**
+     * Compute probability of the sites affected by a conversion.
+     *
+     * @param conv conversion
+     * @return log(P)
+     */
+    protected double calculateConversionSiteLogP(Conversion conv) {
+
+        double thisLogP = 0.0;
+
         // Probability of start site:
         if (conv.getStartSite()==0)
             thisLogP += Math.log(deltaInput.get().getValue()
@@ -208,11 +390,77 @@ public class ACGCoalescent extends TreeDistribution {
         return thisLogP;
     }
 
+    /**
+     * Compute probability of the sites affected by all conversions.  This
+     * is the sum of calculateConversionSiteLogP() over conversions, but is
+     * evaluated from the per-locus conversion statistics in O(loci) time.
+     *
+     * @return log(P)
+     */
+    protected double calculateConversionSitesLogP() {
+
+        double delta = deltaInput.get().getValue();
+        double logDelta = Math.log(delta);
+        double logContinue = Math.log(1.0 - 1.0/delta);
+        double logNorm = Math.log(acg.getLoci().size()*(delta-1)
+                + acg.getTotalSequenceLength());
+
+        double thisLogP = 0.0;
+
+        for (Locus locus : acg.getLoci()) {
+            ConversionStatistics stats = acg.getConversionStatistics(locus);
+            int convCount = stats.getConvCount();
+
+            if (convCount == 0)
+                continue;
+
+            // Probability of start sites:
+            thisLogP += -convCount*logNorm
+                    + stats.getStartAtLocusStartCount()*logDelta;
+
+            // Probability of end sites:
+            thisLogP += (stats.getTotalTractLength() - convCount)*logContinue
+                    - (convCount - stats.getEndAtLocusEndCount())*logDelta;
+        }
+
+        return thisLogP;
+    }
+
     @Override
     protected boolean requiresRecalculation() {
         return true;
     }
 
+    @Override
+    public void store() {
+        storedCacheValid = cacheValid;
+        storedCFLogP = cfLogP;
+        storedConvLogPSum = convLogPSum;
+        storedConvLogPs = null;
+        convLogPJournal.clear();
+
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        // The population function may have been modified
+        acg.getCFEventList().makeIntensitiesDirty();
+
+        cacheValid = storedCacheValid;
+        cfLogP = storedCFLogP;
+        convLogPSum = storedConvLogPSum;
+
+        if (storedConvLogPs != null)
+            convLogPs = storedConvLogPs;
+        else
+            revertJournaledConvLogPs();
+        storedConvLogPs = null;
+        convLogPJournal.clear();
+
+        super.restore();
+    }
+
     @Override
     public List<String> getArguments() {
         throw new UnsupportedOperationException("Not supported yet.");
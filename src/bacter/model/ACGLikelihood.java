@@ -17,12 +17,19 @@
 package bacter.model;
 
 import bacter.*;
+import bacter.model.likelihood.CompactAlignment;
+import bacter.model.likelihood.FloatLikelihoodCore;
+import bacter.model.likelihood.OffHeapArena;
+import bacter.model.likelihood.OffHeapLikelihoodCore;
+import bacter.model.likelihood.VectorLikelihoodCore4;
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.State;
+import beast.core.util.Log;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.branchratemodel.BranchRateModel;
 import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.datatype.DataType;
 import beast.evolution.likelihood.BeerLikelihoodCore;
 import beast.evolution.likelihood.BeerLikelihoodCore4;
 import beast.evolution.likelihood.GenericTreeLikelihood;
@@ -30,16 +37,18 @@ import beast.evolution.likelihood.LikelihoodCore;
 import beast.evolution.sitemodel.SiteModel;
 import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.tree.Node;
-import com.google.common.collect.LinkedHashMultiset;
-import com.google.common.collect.Multiset;
 
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 @Description("Probability of sequence data given recombination graph.")
-public class ACGLikelihood extends GenericTreeLikelihood {
+public class ACGLikelihood extends GenericTreeLikelihood
+        implements EarlyTerminatingLikelihood {
 
     public Input<Locus> locusInput = new Input<>(
             "locus",
@@ -51,28 +60,145 @@ public class ACGLikelihood extends GenericTreeLikelihood {
             "Whether sites containing ambiguous states should be handled " +
                     "instead of ignored (the default)", false);
 
+    public enum CoreType { BEER, OFFHEAP, VECTOR, FLOAT }
+
+    public Input<CoreType> coreTypeInput = new Input<>(
+            "coreType",
+            "Likelihood core used to compute region likelihoods. BEER " +
+                    "(default) uses BEAST's on-heap cores. OFFHEAP keeps " +
+                    "partials and matrices in off-heap memory. VECTOR uses " +
+                    "SIMD kernels for nucleotide data when run on Java 17 " +
+                    "or later with --add-modules jdk.incubator.vector, and " +
+                    "BEER otherwise. FLOAT stores partials in single " +
+                    "precision with automatic rescaling.",
+            CoreType.BEER, CoreType.values());
+
+    public Input<Boolean> validatePrecisionInput = new Input<>(
+            "validatePrecision",
+            "If true, each region evaluated using a FLOAT core is also " +
+                    "evaluated in double precision, and the maximum " +
+                    "absolute difference in region log likelihood is " +
+                    "logged.  Slow: intended for validation only.",
+            false);
+
+    public Input<Integer> maxDirectRegionWidthInput = new Input<>(
+            "maxDirectRegionWidth",
+            "Regions narrower than this many sites are evaluated site by " +
+                    "site without allocating a likelihood core or pattern " +
+                    "set. Default 0 (disabled).",
+            0);
+
+    public Input<Boolean> collapseIdenticalTipsInput = new Input<>(
+            "collapseIdenticalTips",
+            "If true, clades of the marginal tree whose leaves have " +
+                    "identical sequences over a region are not pruned " +
+                    "node by node, but assigned partials computed once " +
+                    "for each character state.  Default false.",
+            false);
+
+    public Input<Double> regionCacheBudgetInput = new Input<>(
+            "regionCacheBudget",
+            "Approximate memory, in MB, which may be held by the pattern " +
+                    "sets and likelihood cores of this locus's regions. " +
+                    "When exceeded, data for the least recently evaluated " +
+                    "regions is discarded and rebuilt when next needed. " +
+                    "Default 0 (unlimited).",
+            0.0);
+
+    public Input<Integer> streamingWindowSizeInput = new Input<>(
+            "streamingWindowSize",
+            "If positive, regions are evaluated in windows of at most this " +
+                    "many sites using a single likelihood core, and only " +
+                    "region log likelihoods are retained.  Intended for " +
+                    "genome-scale loci.  Default 0 (disabled).",
+            0);
+
+    public Input<String> streamingFileNameInput = new Input<>(
+            "streamingFileName",
+            "Name of file used to hold a memory-mapped compact copy of the " +
+                    "alignment when streaming.  If not given, the compact " +
+                    "copy is held on the heap.");
+
+    private static Boolean vectorCoreAvailable;
+
     protected ConversionGraph acg;
 
     protected SiteModel.Base siteModel;
     protected BranchRateModel branchRateModel;
     protected SubstitutionModel.Base substitutionModel;
     protected Alignment alignment;
+    protected SNPAlignment snpAlignment;
     protected Locus locus;
     protected int nStates;
 
-    protected Map<Region, Multiset<int[]>> patterns;
-    protected Map<Region, Multiset<int[]>> storedPatterns;
+    protected PatternDictionary patternDictionary;
+    protected Set<PatternDictionary.Entry> heldPatternEntries;
+    protected Map<Region, PatternDictionary.Entry> patterns;
+    protected Map<Region, PatternDictionary.Entry> storedPatterns;
     protected Map<Region, double[]> patternLogLikelihoods;
     protected Map<Region, double[]> storedPatternLogLikelihoods;
     protected Map<Region, double[]> rootPartials;
     protected Map<Region, double[]> storedRootPartials;
-    protected Map<Region, List<Integer>> constantPatterns;
-    protected Map<Region, List<Integer>> storedConstantPatterns;
     protected Map<Region, LikelihoodCore> likelihoodCores;
     protected Map<Region, LikelihoodCore> storedLikelihoodCores;
     protected Map<Region, Double> regionLogLikelihoods;
     protected Map<Region, Double> storedRegionLogLikelihoods;
 
+    protected double logPThreshold = Double.NEGATIVE_INFINITY;
+    protected boolean terminatedEarly;
+
+    protected OffHeapArena offHeapArena;
+    protected boolean useVectorCore;
+
+    protected boolean validatePrecision;
+    protected double maxPrecisionError;
+
+    protected int maxDirectRegionWidth;
+
+    /**
+     * Scratch memory for direct evaluation of narrow regions.
+     */
+    protected double[][] directPartials, directMatrices;
+    protected int[] leafTaxonIndices;
+
+    protected boolean collapseIdenticalTips;
+    protected long[][] tipHashPrefixes;
+    protected Map<Region, int[]> leafGroups;
+    protected int[] nodeGroups, subtreeSizes;
+
+    /**
+     * Scratch memory for collapsed clade partials.  Clade root partials
+     * are indexed by character code; a code's entry is valid for the
+     * current clade only if its stamp matches cladeStamp.
+     */
+    protected double[] cladePartials;
+    protected double[][] codePartials;
+    protected int[] codePartialsStamps;
+    protected int cladeStamp;
+
+    /**
+     * Estimated memory held for each cached region, in order of last use.
+     */
+    protected LinkedHashMap<Region, Long> regionCacheBytes;
+    protected LinkedHashMap<Region, Long> storedRegionCacheBytes;
+    protected Set<Region> evictedRegions;
+    protected long regionCacheBudget, regionCacheEvictions, regionCacheRebuilds;
+
+    /**
+     * Compact alignment, core and scratch memory used for streaming.
+     */
+    protected int streamingWindowSize;
+    protected CompactAlignment compactAlignment;
+    protected LikelihoodCore streamingCore;
+    protected int streamingCapacity;
+    protected double[] streamingRootPartials, streamingPatternLogLikelihoods;
+    protected Map<ByteBuffer, Integer> streamingPatternIndices;
+    protected ByteBuffer[] streamingSites;
+    protected int[] streamingWeights, streamingTipStates;
+    protected int[][] streamingPatterns;
+    protected List<int[]> streamingPatternList;
+    protected double[] streamingTipPartials;
+
     /**
      * Memory for transition probabilities.
      */
@@ -95,6 +221,9 @@ public class ACGLikelihood extends GenericTreeLikelihood {
         locus = locusInput.get();
         if (locus.hasAlignment()) {
             alignment = locus.getAlignment();
+        } else if (locus.hasSNPAlignment()) {
+            snpAlignment = locus.getSNPAlignment();
+            alignment = snpAlignment.getAlignment();
         } else {
             if (dataInput.get() != null)
                 alignment = dataInput.get();
@@ -118,18 +247,82 @@ public class ACGLikelihood extends GenericTreeLikelihood {
         } else
             branchRateModel = new StrictClockModel();
 
+        patternDictionary = PatternDictionary.getSharedDictionary();
+        heldPatternEntries = Collections.newSetFromMap(new IdentityHashMap<>());
         patterns = new HashMap<>();
         storedPatterns = new HashMap<>();
         patternLogLikelihoods = new HashMap<>();
         storedPatternLogLikelihoods = new HashMap<>();
         rootPartials = new HashMap<>();
         storedRootPartials = new HashMap<>();
-        constantPatterns = new HashMap<>();
-        storedConstantPatterns = new HashMap<>();
         likelihoodCores = new HashMap<>();
         storedLikelihoodCores = new HashMap<>();
         regionLogLikelihoods = new HashMap<>();
         storedRegionLogLikelihoods = new HashMap<>();
+        regionCacheBytes = new LinkedHashMap<>(16, 0.75f, true);
+        storedRegionCacheBytes = new LinkedHashMap<>(16, 0.75f, true);
+        evictedRegions = new HashSet<>();
+
+        regionCacheBudget = (long)(regionCacheBudgetInput.get()*(1 << 20));
+
+        if (coreTypeInput.get() == CoreType.OFFHEAP)
+            offHeapArena = new OffHeapArena();
+
+        if (coreTypeInput.get() == CoreType.VECTOR) {
+            useVectorCore = nStates == 4 && vectorCoreIsAvailable();
+            if (!useVectorCore)
+                Log.warning.println("Vectorized likelihood core unavailable " +
+                        "for locus " + locus.getID() + ": using Beer core.");
+        }
+
+        maxDirectRegionWidth = maxDirectRegionWidthInput.get();
+
+        if (snpAlignment != null
+                && (maxDirectRegionWidth > 0 || collapseIdenticalTipsInput.get()))
+            throw new IllegalArgumentException("Direct region evaluation " +
+                    "and tip collapsing are not available for loci " +
+                    "defined using SNP alignments.");
+
+        leafTaxonIndices = new int[acg.getLeafNodeCount()];
+        for (Node leaf : acg.getExternalNodes())
+            leafTaxonIndices[leaf.getNr()] = alignment.getTaxonIndex(leaf.getID());
+
+        collapseIdenticalTips = collapseIdenticalTipsInput.get();
+        if (collapseIdenticalTips) {
+            if (coreTypeInput.get() == CoreType.FLOAT)
+                throw new IllegalArgumentException("Tip collapsing cannot " +
+                        "be used with the FLOAT core type.");
+
+            computeTipHashPrefixes();
+            leafGroups = new HashMap<>();
+            nodeGroups = new int[acg.getNodeCount()];
+            subtreeSizes = new int[acg.getNodeCount()];
+            codePartials = new double[nStates][];
+            codePartialsStamps = new int[nStates];
+        }
+
+        streamingWindowSize = streamingWindowSizeInput.get();
+        if (streamingWindowSize > 0) {
+            if (snpAlignment != null || collapseIdenticalTips)
+                throw new IllegalArgumentException("Streaming evaluation " +
+                        "is not available for loci defined using SNP " +
+                        "alignments or with tip collapsing.");
+
+            if (streamingFileNameInput.get() != null)
+                compactAlignment = new CompactAlignment(alignment,
+                        new File(streamingFileNameInput.get()));
+            else
+                compactAlignment = new CompactAlignment(alignment);
+
+            streamingPatternIndices = new HashMap<>();
+            streamingSites = new ByteBuffer[streamingWindowSize];
+            streamingWeights = new int[streamingWindowSize];
+        }
+
+        validatePrecision = validatePrecisionInput.get()
+                && coreTypeInput.get() == CoreType.FLOAT
+                && streamingWindowSize == 0;
+        maxPrecisionError = 0.0;
 
         // Allocate transition probability memory:
         // (Only the first nStates*nStates elements are usually used.)
@@ -138,43 +331,597 @@ public class ACGLikelihood extends GenericTreeLikelihood {
 
     @Override
     public double calculateLogP() {
-        updatePatterns();
-        updateCores();
+        regionLogLikelihoods.keySet().retainAll(acg.getRegions(locus));
+
+        // Streamed regions hold no pattern sets or cores between evaluations.
+        if (streamingWindowSize == 0) {
+            updatePatterns();
+            updateCores();
+        }
 
         preComputeCFTransitionProbs();
 
-        logP = 0.0;
+        terminatedEarly = false;
 
-        regionLogLikelihoods.keySet().retainAll(acg.getRegions(locus));
+        logP = sumCachedRegionLogLikelihoods();
 
         for (Region region : acg.getRegions(locus)) {
 
             if (!regionLogLikelihoods.containsKey(region)) {
-                traverseNoRecurse(new MarginalTree(acg, region.activeConversions).getRoot(), region);
+                if (logP < logPThreshold) {
+                    terminatedEarly = true;
+                    break;
+                }
+
+                MarginalNode root = new MarginalTree(acg, region.activeConversions).getRoot();
 
+                if (isDirectRegion(region)) {
+                    double regionLogP = calculateDirectRegionLogLikelihood(root, region);
+                    regionLogLikelihoods.put(region, regionLogP);
+                    logP += regionLogP;
+                    continue;
+                }
 
-                double regionLogP = 0.0;
-                int i = 0;
-                for (int[] pattern : patterns.get(region).elementSet()) {
-                    regionLogP += patternLogLikelihoods.get(region)[i]
-                            * patterns.get(region).count(pattern);
-                    i += 1;
+                if (streamingWindowSize > 0) {
+                    double regionLogP = calculateStreamedRegionLogLikelihood(root, region);
+                    regionLogLikelihoods.put(region, regionLogP);
+                    logP += regionLogP;
+                    continue;
                 }
+
+                regionCacheBytes.get(region); // Mark region as recently used
+                traverseNoRecurse(root, region);
+
+                double regionLogP = getRegionLogLikelihood(region,
+                        patternLogLikelihoods.get(region));
                 regionLogLikelihoods.put(region, regionLogP);
 
+                if (validatePrecision)
+                    validateRegionLogLikelihood(root, region, regionLogP);
+
                 logP += regionLogP;
-            } else {
-                logP += regionLogLikelihoods.get(region);
             }
         }
 
+        if (regionCacheBudget > 0)
+            evictRegions();
+
 //        System.out.println("Cache hit rate: " + cacheHits/(double)(cacheMisses + cacheHits));
 
         return logP;
     }
 
     /**
-     * Ensure pattern counts are up to date.
+     * @param region region
+     * @param logLikelihoods log likelihoods of the region's patterns
+     * @return log likelihood of region
+     */
+    private double getRegionLogLikelihood(Region region, double[] logLikelihoods) {
+        PatternDictionary.Entry entry = patterns.get(region);
+
+        double regionLogP = 0.0;
+        for (int i=0; i<entry.getPatternCount(); i++)
+            regionLogP += logLikelihoods[i] * entry.getWeight(i);
+
+        return regionLogP;
+    }
+
+    /**
+     * Re-evaluate a region in double precision and record the difference
+     * from the log likelihood computed using the region's core.
+     *
+     * @param root root of region's marginal tree
+     * @param region region
+     * @param regionLogP log likelihood computed using region's core
+     */
+    private void validateRegionLogLikelihood(MarginalNode root, Region region,
+                                             double regionLogP) {
+        LikelihoodCore doubleCore = nStates == 4
+                ? new BeerLikelihoodCore4()
+                : new BeerLikelihoodCore(nStates);
+        initializeCore(doubleCore, region);
+
+        // Scaling is needed for the reference to be usable for the large
+        // trees where single precision is most useful.
+        doubleCore.setUseScaling(1.01);
+
+        int nPatterns = patterns.get(region).getPatternCount();
+        double[] doubleLogLikelihoods = new double[nPatterns];
+        traverseNoRecurse(root, region, doubleCore,
+                patterns.get(region).getConstantPatterns(useAmbiguitiesInput.get()),
+                new double[nPatterns*nStates], doubleLogLikelihoods);
+
+        double doubleRegionLogP = getRegionLogLikelihood(region, doubleLogLikelihoods);
+        maxPrecisionError = Math.max(maxPrecisionError,
+                Math.abs(regionLogP - doubleRegionLogP));
+    }
+
+    /**
+     * @return maximum absolute difference between single and double
+     * precision region log likelihoods seen so far (zero unless
+     * precision validation is enabled)
+     */
+    public double getMaxPrecisionError() {
+        return maxPrecisionError;
+    }
+
+    /**
+     * Compute the log likelihood of a region by evaluating consecutive
+     * windows of its sites in genome order.  Each window's patterns are
+     * read from the compact alignment and evaluated using the shared
+     * streaming core, so that the memory used is bounded by the window
+     * size rather than by the region size.
+     *
+     * @param root root of region's marginal tree
+     * @param region region
+     * @return log likelihood of region
+     */
+    private double calculateStreamedRegionLogLikelihood(MarginalNode root, Region region) {
+        double regionLogP = 0.0;
+        for (int start=region.leftBoundary; start<region.rightBoundary; start+=streamingWindowSize) {
+            int end = Math.min(start + streamingWindowSize, region.rightBoundary);
+
+            // Count distinct sites in window, in order of first appearance.
+            streamingPatternIndices.clear();
+            int nPatterns = 0;
+            for (int j=start; j<end; j++) {
+                ByteBuffer site = compactAlignment.getSite(j);
+                Integer k = streamingPatternIndices.putIfAbsent(site, nPatterns);
+                if (k == null) {
+                    streamingSites[nPatterns] = site;
+                    streamingWeights[nPatterns] = 1;
+                    nPatterns += 1;
+                } else
+                    streamingWeights[k] += 1;
+            }
+
+            ensureStreamingCapacity(nPatterns);
+
+            for (int k=0; k<nPatterns; k++)
+                compactAlignment.getPattern(streamingSites[k], streamingPatterns[k]);
+
+            setStreamingTipData(nPatterns);
+
+            traverseNoRecurse(root, region, streamingCore,
+                    PatternDictionary.getConstantPatterns(
+                            streamingPatternList.subList(0, nPatterns),
+                            alignment.getDataType(), useAmbiguitiesInput.get()),
+                    streamingRootPartials, streamingPatternLogLikelihoods);
+
+            for (int k=0; k<nPatterns; k++)
+                regionLogP += streamingWeights[k]*streamingPatternLogLikelihoods[k];
+        }
+
+        return regionLogP;
+    }
+
+    /**
+     * Set the leaf states, or partials if ambiguities are used, of the
+     * streaming core for the patterns of a window.  Unused pattern slots
+     * repeat the first pattern, and are given zero weight.
+     *
+     * @param nPatterns number of patterns in window
+     */
+    private void setStreamingTipData(int nPatterns) {
+        DataType dataType = alignment.getDataType();
+
+        for (Node node : acg.getExternalNodes()) {
+            int taxon = leafTaxonIndices[node.getNr()];
+
+            if (useAmbiguitiesInput.get()) {
+                for (int k=0; k<streamingCapacity; k++) {
+                    int code = streamingPatterns[k < nPatterns ? k : 0][taxon];
+                    boolean[] stateSet = dataType.getStateSet(code);
+                    for (int s=0; s<nStates; s++)
+                        streamingTipPartials[k*nStates + s] = stateSet[s] ? 1.0 : 0.0;
+                }
+                streamingCore.setNodePartials(node.getNr(), streamingTipPartials);
+            } else {
+                for (int k=0; k<streamingCapacity; k++) {
+                    int code = streamingPatterns[k < nPatterns ? k : 0][taxon];
+                    int[] statesForCode = dataType.getStatesForCode(code);
+                    streamingTipStates[k] = statesForCode.length == 1 ? statesForCode[0] : code;
+                }
+                streamingCore.setNodeStates(node.getNr(), streamingTipStates);
+            }
+        }
+    }
+
+    /**
+     * Ensure the streaming core can hold the given number of patterns.
+     * Capacity is grown in powers of two up to the window size, so that
+     * the core is rarely reallocated.
+     *
+     * @param nPatterns number of patterns
+     */
+    private void ensureStreamingCapacity(int nPatterns) {
+        if (streamingCore != null && nPatterns <= streamingCapacity)
+            return;
+
+        streamingCapacity = Math.min(streamingWindowSize,
+                Integer.highestOneBit(Math.max(nPatterns - 1, 1)) << 1);
+        streamingCapacity = Math.max(streamingCapacity, nPatterns);
+
+        if (streamingCore == null)
+            streamingCore = createCore();
+
+        initializeCore(streamingCore, streamingCapacity);
+        streamingRootPartials = new double[streamingCapacity*nStates];
+        streamingPatternLogLikelihoods = new double[streamingCapacity];
+
+        streamingPatterns = new int[streamingCapacity][compactAlignment.getTaxonCount()];
+        streamingPatternList = Arrays.asList(streamingPatterns);
+        streamingTipStates = new int[streamingCapacity];
+        streamingTipPartials = new double[streamingCapacity*nStates];
+    }
+
+    /**
+     * @param region region
+     * @return true if region is narrow enough to be evaluated directly
+     */
+    protected boolean isDirectRegion(Region region) {
+        return region.rightBoundary - region.leftBoundary < maxDirectRegionWidth;
+    }
+
+    /**
+     * Compute the log likelihood of a narrow region by pruning each of
+     * its sites in turn, using scratch memory held by this object in
+     * place of a likelihood core and pattern set.
+     *
+     * @param root root of region's marginal tree
+     * @param region region
+     * @return log likelihood of region
+     */
+    private double calculateDirectRegionLogLikelihood(MarginalNode root, Region region) {
+        int nCategories = siteModel.getCategoryCount();
+
+        allocateDirectScratch();
+        computePostOrder(root);
+
+        // Transition matrices are shared by all sites
+        for (MarginalNode node : postOrderNodes) {
+            if (!node.isRoot())
+                fillEdgeMatrices(node, directMatrices[node.getNr()]);
+        }
+
+        double[] frequencies = substitutionModel.getFrequencies();
+        double[] proportions = siteModel.getCategoryProportions(root);
+        double proportionInvariant = siteModel.getProportionInvariant();
+
+        double regionLogP = 0.0;
+        for (int j=region.leftBoundary; j<region.rightBoundary; j++) {
+            int[] pattern = alignment.getPattern(alignment.getPatternIndex(j));
+
+            for (MarginalNode node : postOrderNodes) {
+                if (node.isLeaf())
+                    setDirectLeafPartials(pattern[leafTaxonIndices[node.getNr()]],
+                            directPartials[node.getNr()]);
+                else
+                    calculateDirectPartials(node);
+            }
+
+            double[] partials = directPartials[root.getNr()];
+            double siteLikelihood = 0.0;
+            for (int c=0; c<nCategories; c++) {
+                for (int i=0; i<nStates; i++)
+                    siteLikelihood += proportions[c]*frequencies[i]*partials[c*nStates + i];
+            }
+
+            if (proportionInvariant > 0.0)
+                siteLikelihood += proportionInvariant
+                        * getInvariantSiteFrequency(pattern, frequencies);
+
+            regionLogP += Math.log(siteLikelihood);
+        }
+
+        return regionLogP;
+    }
+
+    /**
+     * Allocate scratch memory used for direct site-by-site pruning.
+     */
+    private void allocateDirectScratch() {
+        if (directPartials != null)
+            return;
+
+        int nCategories = siteModel.getCategoryCount();
+        directPartials = new double[acg.getNodeCount()][nCategories*nStates];
+        directMatrices = new double[acg.getNodeCount()][nCategories*nStates*nStates];
+    }
+
+    /**
+     * Copy the transition matrices for each rate category along the
+     * edge above a marginal tree node into an array.
+     *
+     * @param node non-root marginal tree node
+     * @param dest destination array
+     */
+    private void fillEdgeMatrices(MarginalNode node, double[] dest) {
+        int matrixSize = nStates*nStates;
+
+        if (isCFEdge(node)) {
+            cacheHits += 1;
+            for (int c=0; c<siteModel.getCategoryCount(); c++)
+                System.arraycopy(cfTransitionProbs[node.cfNodeNr][c], 0,
+                        dest, c*matrixSize, matrixSize);
+        } else {
+            cacheMisses += 1;
+            for (int c=0; c<siteModel.getCategoryCount(); c++) {
+                double jointBranchRate = siteModel.getRateForCategory(c, node)
+                        * branchRateModel.getRateForBranch(node);
+                substitutionModel.getTransitionProbabilities(node,
+                        node.getParent().getHeight(), node.getHeight(),
+                        jointBranchRate, probabilities);
+                System.arraycopy(probabilities, 0,
+                        dest, c*matrixSize, matrixSize);
+            }
+        }
+    }
+
+    /**
+     * Set the partials of a leaf for a single site, for all categories.
+     *
+     * @param code character code of leaf at site
+     * @param partials array to hold partials
+     */
+    private void setDirectLeafPartials(int code, double[] partials) {
+        int[] statesForCode = alignment.getDataType().getStatesForCode(code);
+
+        // Ambiguous states are ignored unless requested.
+        if (statesForCode.length == 1 || useAmbiguitiesInput.get()) {
+            Arrays.fill(partials, 0.0);
+            for (int state : statesForCode) {
+                for (int c=0; c<siteModel.getCategoryCount(); c++)
+                    partials[c*nStates + state] = 1.0;
+            }
+        } else
+            Arrays.fill(partials, 1.0);
+    }
+
+    /**
+     * Compute the partials of an internal node for a single site from
+     * the direct partials and matrices of its children.
+     *
+     * @param node internal marginal tree node
+     */
+    private void calculateDirectPartials(MarginalNode node) {
+        int matrixSize = nStates*nStates;
+
+        double[] nodePartials = directPartials[node.getNr()];
+        double[] partials1 = directPartials[node.getLeft().getNr()];
+        double[] matrices1 = directMatrices[node.getLeft().getNr()];
+        double[] partials2 = directPartials[node.getRight().getNr()];
+        double[] matrices2 = directMatrices[node.getRight().getNr()];
+
+        for (int c=0; c<siteModel.getCategoryCount(); c++) {
+            int v = c*nStates;
+            int w = c*matrixSize;
+            for (int i=0; i<nStates; i++) {
+                double sum1 = 0.0, sum2 = 0.0;
+                for (int k=0; k<nStates; k++) {
+                    sum1 += matrices1[w + k] * partials1[v + k];
+                    sum2 += matrices2[w + k] * partials2[v + k];
+                }
+                nodePartials[v + i] = sum1 * sum2;
+                w += nStates;
+            }
+        }
+    }
+
+    /**
+     * Compute prefix sums of per-site hashes of each taxon's sequence, so
+     * that the hash of any range of sites can be found by subtraction.
+     */
+    private void computeTipHashPrefixes() {
+        int nSites = alignment.getSiteCount();
+        int nTaxa = alignment.getTaxonCount();
+
+        tipHashPrefixes = new long[nTaxa][nSites+1];
+        for (int j=0; j<nSites; j++) {
+            int[] pattern = alignment.getPattern(alignment.getPatternIndex(j));
+            long weight = getSiteHashWeight(j);
+            for (int t=0; t<nTaxa; t++)
+                tipHashPrefixes[t][j+1] = tipHashPrefixes[t][j] + (pattern[t]+1)*weight;
+        }
+    }
+
+    /**
+     * @param site site index
+     * @return pseudo-random weight of site in sequence hashes
+     */
+    private static long getSiteHashWeight(int site) {
+        long z = (site + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Group the leaves having identical sequences over a region.  Range
+     * hashes are used to find candidate groups, and sequences are then
+     * compared directly so that hash collisions cannot affect the
+     * likelihood.
+     *
+     * @param region region
+     * @return array whose elements are, for each leaf node number, the
+     * smallest leaf number in the leaf's group or -1 if no other leaf
+     * shares its sequence
+     */
+    protected int[] getLeafGroups(Region region) {
+        int[] groups = leafGroups.get(region);
+        if (groups != null)
+            return groups;
+
+        int nLeaves = acg.getLeafNodeCount();
+        groups = new int[nLeaves];
+        int[] groupSizes = new int[nLeaves];
+
+        Map<Long, List<Integer>> candidates = new HashMap<>();
+        for (int nr=0; nr<nLeaves; nr++) {
+            int taxon = leafTaxonIndices[nr];
+            long hash = tipHashPrefixes[taxon][region.rightBoundary]
+                    - tipHashPrefixes[taxon][region.leftBoundary];
+
+            groups[nr] = nr;
+            List<Integer> reps = candidates.computeIfAbsent(hash, k -> new ArrayList<>());
+            for (int rep : reps) {
+                if (sequencesIdentical(region, leafTaxonIndices[rep], taxon)) {
+                    groups[nr] = rep;
+                    break;
+                }
+            }
+
+            if (groups[nr] == nr)
+                reps.add(nr);
+
+            groupSizes[groups[nr]] += 1;
+        }
+
+        for (int nr=0; nr<nLeaves; nr++) {
+            if (groupSizes[groups[nr]] < 2)
+                groups[nr] = -1;
+        }
+
+        leafGroups.put(region, groups);
+
+        return groups;
+    }
+
+    /**
+     * @param region region
+     * @param taxon1 index of first taxon
+     * @param taxon2 index of second taxon
+     * @return true if taxa have identical sequences over region
+     */
+    private boolean sequencesIdentical(Region region, int taxon1, int taxon2) {
+        for (int[] pattern : patterns.get(region).getPatterns()) {
+            if (pattern[taxon1] != pattern[taxon2])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Compute the partials of the root of a clade whose leaves share a
+     * single sequence over a region.  As the partials at each pattern
+     * depend only on the character at that pattern, the clade is pruned
+     * once for each distinct character rather than once per pattern.
+     *
+     * @param cladeRoot root of clade
+     * @param cladeEnd index in postOrderNodes of cladeRoot
+     * @param region region
+     * @param lhc likelihood core to which partials are assigned
+     */
+    private void setCollapsedCladePartials(MarginalNode cladeRoot, int cladeEnd,
+                                           Region region, LikelihoodCore lhc) {
+        allocateDirectScratch();
+
+        int cladeStart = cladeEnd - subtreeSizes[cladeRoot.getNr()] + 1;
+        for (int i=cladeStart; i<cladeEnd; i++)
+            fillEdgeMatrices(postOrderNodes[i], directMatrices[postOrderNodes[i].getNr()]);
+
+        int nCategories = siteModel.getCategoryCount();
+        int taxon = leafTaxonIndices[nodeGroups[cladeRoot.getNr()]];
+
+        PatternDictionary.Entry entry = patterns.get(region);
+        int nPatterns = entry.getPatternCount();
+
+        // Beer cores copy the entire array, so its length must match
+        // the core's partials exactly.
+        int partialsSize = nCategories*nPatterns*nStates;
+        if (cladePartials == null || cladePartials.length != partialsSize)
+            cladePartials = new double[partialsSize];
+
+        cladeStamp += 1;
+
+        int k = 0;
+        for (int[] pattern : entry.getPatterns()) {
+            int code = pattern[taxon];
+            if (code >= codePartials.length) {
+                int nCodes = Math.max(code + 1, 2*codePartials.length);
+                codePartials = Arrays.copyOf(codePartials, nCodes);
+                codePartialsStamps = Arrays.copyOf(codePartialsStamps, nCodes);
+            }
+
+            if (codePartialsStamps[code] != cladeStamp) {
+                for (int i=cladeStart; i<=cladeEnd; i++) {
+                    MarginalNode node = postOrderNodes[i];
+                    if (node.isLeaf())
+                        setDirectLeafPartials(code, directPartials[node.getNr()]);
+                    else
+                        calculateDirectPartials(node);
+                }
+
+                if (codePartials[code] == null)
+                    codePartials[code] = new double[nCategories*nStates];
+                System.arraycopy(directPartials[cladeRoot.getNr()], 0,
+                        codePartials[code], 0, nCategories*nStates);
+                codePartialsStamps[code] = cladeStamp;
+            }
+
+            for (int c=0; c<nCategories; c++)
+                System.arraycopy(codePartials[code], c*nStates,
+                        cladePartials, (c*nPatterns + k)*nStates, nStates);
+
+            k += 1;
+        }
+
+        lhc.setNodePartials(cladeRoot.getNr(), cladePartials);
+    }
+
+    /**
+     * Label each marginal tree node with the leaf group shared by all
+     * leaves below it (or -1 if there is no such group), and record the
+     * number of nodes in the subtree below each node.
+     *
+     * @param groups leaf groups for region
+     */
+    private void computeNodeGroups(int[] groups) {
+        for (MarginalNode node : postOrderNodes) {
+            int nr = node.getNr();
+            if (node.isLeaf()) {
+                nodeGroups[nr] = groups[nr];
+                subtreeSizes[nr] = 1;
+            } else {
+                int leftNr = node.getLeft().getNr();
+                int rightNr = node.getRight().getNr();
+                nodeGroups[nr] = nodeGroups[leftNr] == nodeGroups[rightNr]
+                        ? nodeGroups[leftNr]
+                        : -1;
+                subtreeSizes[nr] = 1 + subtreeSizes[leftNr] + subtreeSizes[rightNr];
+            }
+        }
+    }
+
+    /**
+     * @param pattern site pattern
+     * @param frequencies equilibrium state frequencies
+     * @return total frequency of the states consistent with a constant
+     * site having the given pattern, or zero if pattern is variable
+     */
+    private double getInvariantSiteFrequency(int[] pattern, double[] frequencies) {
+        for (int i=1; i<pattern.length; i++)
+            if (pattern[i] != pattern[0])
+                return 0.0;
+
+        if (alignment.getDataType().isAmbiguousState(pattern[0])) {
+            if (!useAmbiguitiesInput.get())
+                return 0.0;
+
+            double freq = 0.0;
+            for (int state : alignment.getDataType().getStatesForCode(pattern[0]))
+                freq += frequencies[state];
+            return freq;
+        }
+
+        return frequencies[pattern[0]];
+    }
+
+    /**
+     * Ensure pattern counts are up to date for each region whose log
+     * likelihood must be computed.  Pattern sets are obtained from the
+     * shared pattern dictionary.
      */
     private void updatePatterns() {
         List<Region> regionList = acg.getRegions(locus);
@@ -183,143 +930,331 @@ public class ACGLikelihood extends GenericTreeLikelihood {
         patterns.keySet().retainAll(regionList);
         patternLogLikelihoods.keySet().retainAll(regionList);
         rootPartials.keySet().retainAll(regionList);
-        constantPatterns.keySet().retainAll(regionList);
+        if (leafGroups != null)
+            leafGroups.keySet().retainAll(regionList);
+        regionCacheBytes.keySet().retainAll(regionList);
+        evictedRegions.retainAll(regionList);
 
         for (Region region : regionList) {
 
-            if (patterns.containsKey(region))
+            if (patterns.containsKey(region) || isDirectRegion(region)
+                    || regionLogLikelihoods.containsKey(region))
                 continue;
 
             // Add new pattern set
-            Multiset<int[]> patSet = LinkedHashMultiset.create();
-            for (int j=region.leftBoundary; j<region.rightBoundary; j++) {
-                int [] pat = alignment.getPattern(alignment.getPatternIndex(j));
-                patSet.add(pat);
-            }
-            patterns.put(region, patSet);
+            PatternDictionary.Entry entry = snpAlignment != null
+                    ? patternDictionary.acquire(snpAlignment,
+                            region.leftBoundary, region.rightBoundary)
+                    : patternDictionary.acquire(alignment,
+                            region.leftBoundary, region.rightBoundary);
+
+            // A single reference is held for each entry in use.
+            if (!heldPatternEntries.add(entry))
+                patternDictionary.release(entry);
+
+            patterns.put(region, entry);
 
             // Allocate memory for corresponding log likelihoods and root partials
-            patternLogLikelihoods.put(region, new double[patSet.elementSet().size()]);
-            rootPartials.put(region, new double[patSet.elementSet().size()*nStates]);
-
-            // Compute corresponding constant pattern list
-            List<Integer> constantPatternList = new ArrayList<>();
-
-            int patternIdx = 0;
-            for (int[] pattern : patSet.elementSet()) {
-                boolean isConstant = true;
-                for (int i=1; i<pattern.length; i++)
-                    if (pattern[i] != pattern[0]) {
-                        isConstant = false;
-                        break;
-                    }
+            patternLogLikelihoods.put(region, new double[entry.getPatternCount()]);
+            rootPartials.put(region, new double[entry.getPatternCount()*nStates]);
+        }
 
-                if (isConstant) {
-                    if (alignment.getDataType().isAmbiguousState(pattern[0])) {
-                        if (useAmbiguitiesInput.get()) {
-                            for (int state : alignment.getDataType().getStatesForCode(pattern[0]))
-                                constantPatternList.add(patternIdx * nStates + state);
-                        }
-                    } else {
-                        constantPatternList.add(patternIdx * nStates + pattern[0]);
-                    }
-                }
+        releaseUnusedPatternEntries();
+    }
 
-                patternIdx += 1;
+    /**
+     * Release dictionary entries no longer used by either the current or
+     * the stored state.
+     */
+    private void releaseUnusedPatternEntries() {
+        Set<PatternDictionary.Entry> usedEntries = Collections.newSetFromMap(new IdentityHashMap<>());
+        usedEntries.addAll(patterns.values());
+        usedEntries.addAll(storedPatterns.values());
+
+        Iterator<PatternDictionary.Entry> it = heldPatternEntries.iterator();
+        while (it.hasNext()) {
+            PatternDictionary.Entry entry = it.next();
+            if (!usedEntries.contains(entry)) {
+                patternDictionary.release(entry);
+                it.remove();
             }
+        }
+    }
 
-            constantPatterns.put(region, constantPatternList);
+    /**
+     * Discard all pattern sets, cores and cached region log likelihoods,
+     * releasing the pattern dictionary entries and off-heap memory held
+     * by this likelihood.  Should be called when the likelihood is no
+     * longer needed.  The likelihood remains usable: the discarded data
+     * is rebuilt when it is next evaluated.
+     */
+    public void releasePatternEntries() {
+        if (offHeapArena != null) {
+            Set<LikelihoodCore> releasedCores = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (LikelihoodCore core : likelihoodCores.values()) {
+                releaseCore(core, releasedCores);
+                releasedCores.add(core);
+            }
+            for (LikelihoodCore core : storedLikelihoodCores.values()) {
+                releaseCore(core, releasedCores);
+                releasedCores.add(core);
+            }
+            releaseCore(streamingCore, releasedCores);
         }
+        streamingCore = null;
+        streamingCapacity = 0;
+
+        likelihoodCores.clear();
+        storedLikelihoodCores.clear();
+        patterns.clear();
+        storedPatterns.clear();
+        patternLogLikelihoods.clear();
+        storedPatternLogLikelihoods.clear();
+        rootPartials.clear();
+        storedRootPartials.clear();
+        regionLogLikelihoods.clear();
+        storedRegionLogLikelihoods.clear();
+        regionCacheBytes.clear();
+        storedRegionCacheBytes.clear();
+        evictedRegions.clear();
+        if (leafGroups != null)
+            leafGroups.clear();
+
+        releaseUnusedPatternEntries();
     }
-    
-    
+
     /**
-     * Initialize likelihood cores.
+     * Initialize likelihood cores for each region whose log likelihood
+     * must be computed.
      */
     private void updateCores() {
 
         List<Region> regionList = acg.getRegions(locus);
+
+        if (offHeapArena != null) {
+            Set<LikelihoodCore> liveCores = Collections.newSetFromMap(new IdentityHashMap<>());
+            liveCores.addAll(storedLikelihoodCores.values());
+            Set<Region> regionSet = new HashSet<>(regionList);
+            for (Map.Entry<Region, LikelihoodCore> entry : likelihoodCores.entrySet()) {
+                if (!regionSet.contains(entry.getKey()))
+                    releaseCore(entry.getValue(), liveCores);
+            }
+        }
         likelihoodCores.keySet().retainAll(regionList);
 
         for (Region region : regionList) {
 
-            if (likelihoodCores.containsKey(region))
+            if (likelihoodCores.containsKey(region) || isDirectRegion(region)
+                    || regionLogLikelihoods.containsKey(region))
                 continue;
 
-            LikelihoodCore likelihoodCore;
-            if (nStates==4)
-                likelihoodCore = new BeerLikelihoodCore4();
-            else
-                likelihoodCore = new BeerLikelihoodCore(nStates);
-                
+            LikelihoodCore likelihoodCore = createCore();
             likelihoodCores.put(region, likelihoodCore);
 
-            likelihoodCore.initialize(acg.getNodeCount(),
-                    patterns.get(region).elementSet().size(),
-                    siteModel.getCategoryCount(),
-                    true, false);
+            initializeCore(likelihoodCore, region);
+
+            regionCacheBytes.put(region,
+                    estimateRegionBytes(patterns.get(region).getPatternCount()));
+            if (evictedRegions.remove(region))
+                regionCacheRebuilds += 1;
+        }
+    }
+
+    /**
+     * Estimate the memory held by the pattern set, pattern likelihoods,
+     * root partials and likelihood core of a region.
+     *
+     * @param nPatterns number of distinct patterns in region
+     * @return estimated size in bytes
+     */
+    protected long estimateRegionBytes(int nPatterns) {
+        int nNodes = acg.getNodeCount();
+        int nLeaves = acg.getLeafNodeCount();
+        int nCategories = siteModel.getCategoryCount();
+
+        // Beer cores double-buffer partials and matrices.
+        boolean isBeer = offHeapArena == null
+                && coreTypeInput.get() != CoreType.FLOAT;
+        int nBuffers = isBeer ? 2 : 1;
+        int valueBytes = coreTypeInput.get() == CoreType.FLOAT ? 4 : 8;
+
+        long partialsBytes = (long)nCategories*nPatterns*nStates*valueBytes;
+        long bytes = (long)nBuffers*(nNodes - nLeaves)*partialsBytes;
+        if (useAmbiguitiesInput.get())
+            bytes += nBuffers*nLeaves*partialsBytes;
+        else
+            bytes += (long)nLeaves*nPatterns*4;
+        bytes += (long)nBuffers*nNodes*nCategories*nStates*nStates*valueBytes;
+
+        // Pattern entries (possibly shared with other likelihoods),
+        // pattern log likelihoods and root partials
+        bytes += (long)nPatterns*(48 + 8 + 8*nStates);
+
+        return bytes;
+    }
+
+    /**
+     * @return estimated memory currently held for cached regions, in bytes
+     */
+    public long getRegionCacheBytes() {
+        long bytes = 0;
+        for (long regionBytes : regionCacheBytes.values())
+            bytes += regionBytes;
+
+        return bytes;
+    }
+
+    /**
+     * Discard the pattern sets and cores of the least recently evaluated
+     * regions until the memory held is within the budget.  Region log
+     * likelihoods are kept, so discarded regions are only rebuilt when
+     * they must be re-evaluated.
+     */
+    private void evictRegions() {
+        long bytes = getRegionCacheBytes();
+        if (bytes <= regionCacheBudget)
+            return;
+
+        Set<LikelihoodCore> liveCores = null;
+        if (offHeapArena != null) {
+            liveCores = Collections.newSetFromMap(new IdentityHashMap<>());
+            liveCores.addAll(storedLikelihoodCores.values());
+        }
+
+        Iterator<Map.Entry<Region, Long>> it = regionCacheBytes.entrySet().iterator();
+        while (bytes > regionCacheBudget && it.hasNext()) {
+            Map.Entry<Region, Long> entry = it.next();
+            Region region = entry.getKey();
+
+            patterns.remove(region);
+            patternLogLikelihoods.remove(region);
+            rootPartials.remove(region);
+            if (leafGroups != null)
+                leafGroups.remove(region);
+
+            LikelihoodCore core = likelihoodCores.remove(region);
+            if (liveCores != null)
+                releaseCore(core, liveCores);
 
+            bytes -= entry.getValue();
+            it.remove();
+
+            evictedRegions.add(region);
+            regionCacheEvictions += 1;
+        }
+
+        releaseUnusedPatternEntries();
+    }
+
+    /**
+     * @return number of regions whose cached data has been discarded
+     * to keep within the memory budget
+     */
+    public long getRegionCacheEvictions() {
+        return regionCacheEvictions;
+    }
+
+    /**
+     * @return number of discarded regions which have been rebuilt
+     */
+    public long getRegionCacheRebuilds() {
+        return regionCacheRebuilds;
+    }
+
+    /**
+     * @return new likelihood core of the requested type
+     */
+    private LikelihoodCore createCore() {
+        switch (coreTypeInput.get()) {
+            case OFFHEAP:
+                return new OffHeapLikelihoodCore(offHeapArena, nStates);
+
+            case FLOAT:
+                return new FloatLikelihoodCore(nStates);
+
+            case VECTOR:
+                if (useVectorCore)
+                    return new VectorLikelihoodCore4();
+                break;
+
+            default:
+                break;
+        }
+
+        if (nStates==4)
+            return new BeerLikelihoodCore4();
+        else
+            return new BeerLikelihoodCore(nStates);
+    }
+
+    /**
+     * Allocate memory in a core for the given region and set its leaf
+     * states or partials.
+     *
+     * @param likelihoodCore core to initialize
+     * @param region region
+     */
+    private void initializeCore(LikelihoodCore likelihoodCore, Region region) {
+        PatternDictionary.Entry entry = patterns.get(region);
+        initializeCore(likelihoodCore, entry.getPatternCount());
+
+        // Cores copy leaf data, so the dictionary's arrays can be shared.
+        for (Node node : acg.getExternalNodes()) {
+            int taxon = leafTaxonIndices[node.getNr()];
             if (useAmbiguitiesInput.get())
-                setPartials(likelihoodCore, patterns.get(region));
+                likelihoodCore.setNodePartials(node.getNr(), entry.getTipPartials(taxon));
             else
-                setStates(likelihoodCore, patterns.get(region));
-            
-            int intNodeCount = acg.getNodeCount()/2;
-            for (int i=0; i<intNodeCount; i++)
-                likelihoodCore.createNodePartials(intNodeCount+1+i);
+                likelihoodCore.setNodeStates(node.getNr(), entry.getTipStates(taxon));
         }
     }
+
+    /**
+     * Allocate memory in a core for the given number of patterns.
+     *
+     * @param likelihoodCore core to initialize
+     * @param nPatterns number of patterns
+     */
+    private void initializeCore(LikelihoodCore likelihoodCore, int nPatterns) {
+        likelihoodCore.initialize(acg.getNodeCount(), nPatterns,
+                siteModel.getCategoryCount(),
+                true, false);
+
+        int intNodeCount = acg.getNodeCount()/2;
+        for (int i=0; i<intNodeCount; i++)
+            likelihoodCore.createNodePartials(intNodeCount+1+i);
+    }
     
     
     /**
-     * Set leaf states in a likelihood core.
-     * 
-     * @param lhc       likelihood core object
-     * @param patterns  leaf state patterns
+     * Determine whether the vectorized core can be used by this JVM.
+     * This requires the Java 17 version of VectorLikelihoodCore4 to be
+     * loaded from the multi-release jar and the jdk.incubator.vector
+     * module to be present.
+     *
+     * @return true if vectorized core is available
      */
-    void setStates(LikelihoodCore lhc, Multiset<int[]> patterns) {
-        
-        for (Node node : acg.getExternalNodes()) {
-            int[] states = new int[patterns.size()];
-            int taxon = alignment.getTaxonIndex(node.getID());
-            int i=0;
-            for (int [] pattern : patterns.elementSet()) {
-                int code = pattern[taxon];
-                int[] statesForCode = alignment.getDataType().getStatesForCode(code);
-                if (statesForCode.length==1)
-                    states[i] = statesForCode[0];
-                else
-                    states[i] = code; // Causes ambiguous states to be ignored.
-                
-                i += 1;
+    public static synchronized boolean vectorCoreIsAvailable() {
+        if (vectorCoreAvailable == null) {
+            try {
+                vectorCoreAvailable = VectorLikelihoodCore4.isVectorized();
+            } catch (LinkageError e) {
+                vectorCoreAvailable = false;
             }
-            lhc.setNodeStates(node.getNr(), states);
         }
-    }
 
+        return vectorCoreAvailable;
+    }
 
     /**
-     * Set leaf partials in likelihood core.
+     * Return the off-heap memory of a core to the arena, unless the core
+     * is still in use.
      *
-     * @param lhc likelihood core object
-     * @param patterns leaf state patterns
+     * @param core core to release
+     * @param liveCores cores still in use
      */
-    protected void setPartials(LikelihoodCore lhc, Multiset<int[]> patterns) {
-        for (Node node : acg.getExternalNodes()) {
-            Alignment data = dataInput.get();
-            int nStates = data.getDataType().getStateCount();
-            double[] partials = new double[patterns.size() * nStates];
-            int k = 0;
-            int iTaxon = alignment.getTaxonIndex(node.getID());
-            for (int[] pattern : patterns.elementSet()) {
-                int code = pattern[iTaxon];
-                boolean[] stateSet = alignment.getDataType().getStateSet(code);
-                for (int iState = 0; iState < nStates; iState++) {
-                    partials[k++] = (stateSet[iState] ? 1.0 : 0.0);
-                }
-            }
-            lhc.setNodePartials(node.getNr(), partials);
-        }
+    private void releaseCore(LikelihoodCore core, Set<LikelihoodCore> liveCores) {
+        if (core instanceof OffHeapLikelihoodCore && !liveCores.contains(core))
+            ((OffHeapLikelihoodCore) core).release();
     }
 
     /**
@@ -381,6 +1316,18 @@ public class ACGLikelihood extends GenericTreeLikelihood {
         }
     }
 
+    /**
+     * @param node non-root marginal tree node
+     * @return true if the edge above node coincides with a clonal frame
+     * edge, so that cached transition probabilities can be used
+     */
+    boolean isCFEdge(MarginalNode node) {
+        return node.cfNodeNr>=0
+                && !acg.getNode(node.cfNodeNr).isRoot()
+                && acg.getNode(node.cfNodeNr).getParent().getNr()
+                   == ((MarginalNode)node.getParent()).cfNodeNr;
+    }
+
     /**
      * Traverse a marginal tree, computing partial likelihoods on the way.
      * This version avoids potentially-expensive recursive function calls.
@@ -389,22 +1336,45 @@ public class ACGLikelihood extends GenericTreeLikelihood {
      * @param region region
      */
     void traverseNoRecurse(MarginalNode root, Region region) {
+        traverseNoRecurse(root, region, likelihoodCores.get(region),
+                patterns.get(region).getConstantPatterns(useAmbiguitiesInput.get()),
+                rootPartials.get(region), patternLogLikelihoods.get(region));
+    }
+
+    /**
+     * Traverse a marginal tree, computing partial likelihoods using the
+     * given core.
+     *
+     * @param root Tree node
+     * @param region region
+     * @param lhc likelihood core holding region's leaf data
+     * @param constantPatternList root partials indices receiving the
+     *                            invariant site contribution
+     * @param rootPartials array to hold root partials
+     * @param patternLogLikelihoods array to hold pattern log likelihoods
+     */
+    void traverseNoRecurse(MarginalNode root, Region region, LikelihoodCore lhc,
+                           List<Integer> constantPatternList,
+                           double[] rootPartials, double[] patternLogLikelihoods) {
 
         computePostOrder(root);
 
-        LikelihoodCore lhc = likelihoodCores.get(region);
+        boolean collapse = collapseIdenticalTips && !isDirectRegion(region);
+        if (collapse)
+            computeNodeGroups(getLeafGroups(region));
 
-        for (MarginalNode node : postOrderNodes) {
+        for (int nodeIdx=0; nodeIdx<postOrderNodes.length; nodeIdx++) {
+            MarginalNode node = postOrderNodes[nodeIdx];
+
+            // Nodes strictly within collapsed clades are skipped.
+            if (collapse && !node.isRoot()
+                    && nodeGroups[node.getParent().getNr()] >= 0)
+                continue;
 
             if (!node.isRoot()) {
                 lhc.setNodeMatrixForUpdate(node.getNr());
 
-                boolean cfEdge = node.cfNodeNr>=0
-                        && !acg.getNode(node.cfNodeNr).isRoot()
-                        && acg.getNode(node.cfNodeNr).getParent().getNr()
-                           == ((MarginalNode)node.getParent()).cfNodeNr;
-
-                if (!cfEdge) {
+                if (!isCFEdge(node)) {
                     cacheMisses += 1;
 
                     for (int i = 0; i < siteModel.getCategoryCount(); i++) {
@@ -432,31 +1402,66 @@ public class ACGLikelihood extends GenericTreeLikelihood {
 
             if (!node.isLeaf()) {
 
-                // LikelihoodCore only supports binary trees.
-                List<Node> children = node.getChildren();
-                lhc.setNodePartialsForUpdate(node.getNr());
-                lhc.setNodeStatesForUpdate(node.getNr());
-                lhc.calculatePartials(children.get(0).getNr(),
-                        children.get(1).getNr(), node.getNr());
+                // Partials are not double-buffered (setNodePartialsForUpdate
+                // is never called) as cores are stored and restored whole.
+                // This keeps partials assigned using setNodePartials() in
+                // the buffer read by calculatePartials().
+                if (collapse && nodeGroups[node.getNr()] >= 0) {
+                    setCollapsedCladePartials(node, nodeIdx, region, lhc);
+                } else {
+                    // LikelihoodCore only supports binary trees.
+                    List<Node> children = node.getChildren();
+                    lhc.setNodeStatesForUpdate(node.getNr());
+                    lhc.calculatePartials(children.get(0).getNr(),
+                            children.get(1).getNr(), node.getNr());
+                }
 
                 if (node.isRoot()) {
                     double[] frequencies = substitutionModel.getFrequencies();
                     double[] proportions = siteModel.getCategoryProportions(node);
                     lhc.integratePartials(node.getNr(), proportions,
-                            rootPartials.get(region));
+                            rootPartials);
 
-                    for (int idx : constantPatterns.get(region)) {
-                        rootPartials.get(region)[idx]
-                                += siteModel.getProportionInvariant();
+                    // Invariant site contribution must be scaled in the
+                    // same way as the root partials.
+                    for (int idx : constantPatternList) {
+                        rootPartials[idx] += siteModel.getProportionInvariant()
+                                * Math.exp(-lhc.getLogScalingFactor(idx/nStates));
                     }
 
-                    lhc.calculateLogLikelihoods(rootPartials.get(region),
-                            frequencies, patternLogLikelihoods.get(region));
+                    lhc.calculateLogLikelihoods(rootPartials,
+                            frequencies, patternLogLikelihoods);
                 }
             }
         }
     }
 
+    /**
+     * Sum log likelihoods of regions which do not require re-evaluation.
+     * These are summed before any regions are evaluated so that the
+     * threshold used for early termination is applied as soon as
+     * possible.
+     *
+     * @return sum of cached region log likelihoods
+     */
+    private double sumCachedRegionLogLikelihoods() {
+        double cachedLogP = 0.0;
+        for (double regionLogP : regionLogLikelihoods.values())
+            cachedLogP += regionLogP;
+
+        return cachedLogP;
+    }
+
+    @Override
+    public void setLogPThreshold(double logPThreshold) {
+        this.logPThreshold = logPThreshold;
+    }
+
+    @Override
+    public boolean evaluationTerminatedEarly() {
+        return terminatedEarly;
+    }
+
     @Override
     public List<String> getArguments() {
         throw new UnsupportedOperationException("Not supported yet.");
@@ -480,32 +1485,67 @@ public class ACGLikelihood extends GenericTreeLikelihood {
         return true;
     }
 
+    @Override
+    public void init(PrintStream out) {
+        super.init(out);
+
+        if (validatePrecision)
+            out.print(getID() + ".maxPrecisionError\t");
+
+        if (regionCacheBudget > 0)
+            out.print(getID() + ".cacheBytes\t"
+                    + getID() + ".cacheEvictions\t"
+                    + getID() + ".cacheRebuilds\t");
+    }
+
+    @Override
+    public void log(int nSample, PrintStream out) {
+        super.log(nSample, out);
+
+        if (validatePrecision)
+            out.print(maxPrecisionError + "\t");
+
+        if (regionCacheBudget > 0)
+            out.print(getRegionCacheBytes() + "\t"
+                    + regionCacheEvictions + "\t"
+                    + regionCacheRebuilds + "\t");
+    }
+
     @Override
     public void store() {
         storedPatterns.clear();
         storedPatterns.putAll(patterns);
+        releaseUnusedPatternEntries();
 
         storedPatternLogLikelihoods.clear();
         storedPatternLogLikelihoods.putAll(patternLogLikelihoods);
 
-        storedConstantPatterns.clear();
-        storedConstantPatterns.putAll(constantPatterns);
-
         storedRootPartials.clear();
         storedRootPartials.putAll(rootPartials);
 
+        if (offHeapArena != null) {
+            // Cores only held by the previous stored state are now unused.
+            Set<LikelihoodCore> liveCores = Collections.newSetFromMap(new IdentityHashMap<>());
+            liveCores.addAll(likelihoodCores.values());
+            for (LikelihoodCore core : storedLikelihoodCores.values())
+                releaseCore(core, liveCores);
+        }
+
         storedLikelihoodCores.clear();
         storedLikelihoodCores.putAll(likelihoodCores);
 
         storedRegionLogLikelihoods.clear();
         storedRegionLogLikelihoods.putAll(regionLogLikelihoods);
 
+        storedRegionCacheBytes.clear();
+        storedRegionCacheBytes.putAll(regionCacheBytes);
+
         super.store();
     }
 
     @Override
     public void restore() {
-        Map<Region, Multiset<int[]>> tmpPatterns = patterns;
+        Map<Region, PatternDictionary.Entry> tmpPatterns = patterns;
         patterns = storedPatterns;
         storedPatterns = tmpPatterns;
 
@@ -521,14 +1561,14 @@ public class ACGLikelihood extends GenericTreeLikelihood {
         likelihoodCores = storedLikelihoodCores;
         storedLikelihoodCores = tmpLikelihoodCores;
 
-        Map<Region, List<Integer>> tmpConstantPatterns = constantPatterns;
-        constantPatterns = storedConstantPatterns;
-        storedConstantPatterns = tmpConstantPatterns;
-
         Map<Region, Double> tmpRegionLogLikelihoods = regionLogLikelihoods;
         regionLogLikelihoods = storedRegionLogLikelihoods;
         storedRegionLogLikelihoods = tmpRegionLogLikelihoods;
 
+        LinkedHashMap<Region, Long> tmpRegionCacheBytes = regionCacheBytes;
+        regionCacheBytes = storedRegionCacheBytes;
+        storedRegionCacheBytes = tmpRegionCacheBytes;
+
         super.restore();
     }
 }
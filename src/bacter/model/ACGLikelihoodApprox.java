@@ -38,13 +38,27 @@ public class ACGLikelihoodApprox extends Distribution {
             "Locus alignment is associated with.",
             Input.Validate.REQUIRED);
 
-    private int nLeaves;
-    private int[][] cumulativeHD;
-    private int[] pairNrLookup;
+    private int nLeaves, wordsPerSet;
+    private int[] segregatingSites;
+    private int[] stateSetOffsets;
+    private long[] stateSets;
     private Alignment alignment;
     ConversionGraph acg;
     Locus locus;
 
+    // Working storage reused by getCoalescenceHeights()
+    private AncestryPool ancestryPool;
+    private SiteAncestry[] activeCFNodes;
+    private final Map<Conversion, SiteAncestry> activeConversions = new HashMap<>();
+    private final Map<Double, Coalescence> heightMap = new HashMap<>();
+
+    // Pairwise distance sums depend only on the sites and leaves involved
+    // in a coalescence, so are cached by coalescence content and survive
+    // changes to event heights and to unrelated parts of the ACG.
+    private final Map<Coalescence, long[]> distanceSumCache = new HashMap<>();
+    private Set<long[]> usedDistanceSums = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Set<long[]> storedUsedDistanceSums = Collections.newSetFromMap(new IdentityHashMap<>());
+
     public ACGLikelihoodApprox() { }
 
     @Override
@@ -54,7 +68,9 @@ public class ACGLikelihoodApprox extends Distribution {
         acg = acgInput.get();
         locus = locusInput.get();
 
-        computePairwiseDistances();
+        computeStateSets();
+
+        ancestryPool = new AncestryPool(acg.getLeafNodeCount());
     }
 
 
@@ -64,28 +80,36 @@ public class ACGLikelihoodApprox extends Distribution {
 
         Map<Double, Coalescence> heightMap = getCoalescenceHeights();
 
+        usedDistanceSums.clear();
+
         for (Map.Entry<Double, Coalescence> entry : heightMap.entrySet()) {
             double height = entry.getKey();
             Coalescence coalescence = entry.getValue();
+            long[] distanceSums = getPairwiseDistanceSums(coalescence);
 
             for (int i=0; i<coalescence.getIntervalCount(); i++) {
-                BitSet dl1 = coalescence.descendantLeaves1.get(i);
-                BitSet dl2 = coalescence.descendantLeaves2.get(i);
-                int x = coalescence.siteRanges.get(2*i);
-                int y = coalescence.siteRanges.get(2*i + 1);
-
-                double time = 0;
-                double h = 0;
-                for (int nr1 = dl1.nextSetBit(0); nr1>=0; nr1 = dl1.nextSetBit(nr1+1)) {
-                    for (int nr2 = dl2.nextSetBit(0); nr2>=0; nr2 = dl2.nextSetBit(nr2+1)) {
-                        time += 2*height
-                                - acg.getNode(nr1).getHeight()
-                                - acg.getNode(nr2).getHeight();
-
-                        h += getPairwiseDistance(nr1, nr2, x, y);
-                    }
-                }
-                int nPairs = dl1.cardinality()*dl2.cardinality();
+                int x = coalescence.getIntervalStart(i);
+                int y = coalescence.getIntervalEnd(i);
+
+                int nLeaves1 = coalescence.getDescendantLeafCount1(i);
+                int nLeaves2 = coalescence.getDescendantLeafCount2(i);
+
+                double heightSum1 = 0.0;
+                for (int nr1 = coalescence.nextDescendantLeaf1(i, 0); nr1>=0;
+                     nr1 = coalescence.nextDescendantLeaf1(i, nr1+1))
+                    heightSum1 += acg.getNode(nr1).getHeight();
+
+                double heightSum2 = 0.0;
+                for (int nr2 = coalescence.nextDescendantLeaf2(i, 0); nr2>=0;
+                     nr2 = coalescence.nextDescendantLeaf2(i, nr2+1))
+                    heightSum2 += acg.getNode(nr2).getHeight();
+
+                // Sums over all pairs of leaves drawn from the two sets
+                double time = 2*height*nLeaves1*nLeaves2
+                        - nLeaves2*heightSum1 - nLeaves1*heightSum2;
+                double h = distanceSums[i];
+
+                int nPairs = nLeaves1*nLeaves2;
                 h /= nPairs;
                 time /= nPairs;
 
@@ -93,9 +117,40 @@ public class ACGLikelihoodApprox extends Distribution {
             }
         }
 
+        // Discard sums required by neither the current nor the stored state.
+        distanceSumCache.values().removeIf(distanceSums ->
+                !usedDistanceSums.contains(distanceSums)
+                        && !storedUsedDistanceSums.contains(distanceSums));
+
         return logP;
     }
 
+    /**
+     * Retrieve the pairwise distance sums for each interval of the given
+     * coalescence, computing them only if no coalescence involving the
+     * same sites and leaves has been seen in the current or stored state.
+     *
+     * @param coalescence coalescence
+     * @return array of pairwise distance sums, one per interval
+     */
+    private long[] getPairwiseDistanceSums(Coalescence coalescence) {
+        long[] distanceSums = distanceSumCache.get(coalescence);
+
+        if (distanceSums == null) {
+            distanceSums = new long[coalescence.getIntervalCount()];
+            for (int i=0; i<distanceSums.length; i++) {
+                distanceSums[i] = getPairwiseDistanceSum(coalescence, i,
+                        coalescence.getIntervalStart(i),
+                        coalescence.getIntervalEnd(i));
+            }
+            distanceSumCache.put(coalescence.copy(), distanceSums);
+        }
+
+        usedDistanceSums.add(distanceSums);
+
+        return distanceSums;
+    }
+
     /**
      * Returns the (log) probability of observing h segregating sites out of
      * a total of siteCount sites when the sequence is left to evolve for
@@ -115,22 +170,26 @@ public class ACGLikelihoodApprox extends Distribution {
 
     /**
      * @return map from heights of coalescences to objects describing
-     * the sites and samples they involve.
+     * the sites and samples they involve.  The Coalescence objects are
+     * drawn from a pool and are only valid until the next call.
      */
     Map<Double, Coalescence> getCoalescenceHeights() {
 
-        Map<Double, Coalescence> heightMap = new HashMap<>();
+        ancestryPool.reset();
+        heightMap.clear();
+        activeConversions.clear();
 
-        Map<Node, SiteAncestry> activeCFNodes = new HashMap<>();
-        Map<Conversion, SiteAncestry> activeConversions = new HashMap<>();
+        if (activeCFNodes == null || activeCFNodes.length != acg.getNodeCount())
+            activeCFNodes = new SiteAncestry[acg.getNodeCount()];
 
-        ACGEventList acgEventList = new ACGEventList(acg, locus);
+        ACGEventList acgEventList = acg.getACGEventList(locus);
 
         for (ACGEventList.Event event : acgEventList.getACGEvents()) {
 
             switch (event.type) {
                 case CF_LEAF:
-                    activeCFNodes.put(event.node, new SiteAncestry(event.node, locus));
+                    activeCFNodes[event.node.getNr()] = ancestryPool.getLeafSiteAncestry(
+                            event.node.getNr(), locus.getSiteCount());
 
                     break;
 
@@ -138,14 +197,14 @@ public class ACGLikelihoodApprox extends Distribution {
                     Node node1 = event.node.getLeft();
                     Node node2 = event.node.getRight();
 
-                    SiteAncestry ancestryCF = new SiteAncestry();
-                    Coalescence coalescenceCF = new Coalescence();
-                    activeCFNodes.get(node1).merge(activeCFNodes.get(node2),
+                    SiteAncestry ancestryCF = ancestryPool.getSiteAncestry();
+                    Coalescence coalescenceCF = ancestryPool.getCoalescence();
+                    activeCFNodes[node1.getNr()].merge(activeCFNodes[node2.getNr()],
                             coalescenceCF, ancestryCF);
 
-                    activeCFNodes.remove(node1);
-                    activeCFNodes.remove(node2);
-                    activeCFNodes.put(event.node, ancestryCF);
+                    activeCFNodes[node1.getNr()] = null;
+                    activeCFNodes[node2.getNr()] = null;
+                    activeCFNodes[event.node.getNr()] = ancestryCF;
 
                     if (coalescenceCF.getIntervalCount()>0)
                         heightMap.put(event.t, coalescenceCF);
@@ -153,15 +212,15 @@ public class ACGLikelihoodApprox extends Distribution {
                     break;
 
                 case CONV_DEPART:
-                    SiteAncestry inside = new SiteAncestry();
-                    SiteAncestry outside = new SiteAncestry();
-                    activeCFNodes.get(event.node).split(
+                    SiteAncestry inside = ancestryPool.getSiteAncestry();
+                    SiteAncestry outside = ancestryPool.getSiteAncestry();
+                    activeCFNodes[event.node.getNr()].split(
                             event.conversion.getStartSite(),
                             event.conversion.getEndSite()+1,
                             inside, outside);
 
                     if (inside.getIntervalCount()>0) {
-                        activeCFNodes.put(event.node, outside);
+                        activeCFNodes[event.node.getNr()] = outside;
                         activeConversions.put(event.conversion, inside);
                     }
 
@@ -172,12 +231,12 @@ public class ACGLikelihoodApprox extends Distribution {
                     if (!activeConversions.containsKey(event.conversion))
                         continue;
 
-                    SiteAncestry ancestry = new SiteAncestry();
-                    Coalescence coalescence = new Coalescence();
-                    activeCFNodes.get(event.node).merge(activeConversions.get(event.conversion),
+                    SiteAncestry ancestry = ancestryPool.getSiteAncestry();
+                    Coalescence coalescence = ancestryPool.getCoalescence();
+                    activeCFNodes[event.node.getNr()].merge(activeConversions.get(event.conversion),
                             coalescence, ancestry);
 
-                    activeCFNodes.put(event.node, ancestry);
+                    activeCFNodes[event.node.getNr()] = ancestry;
                     activeConversions.remove(event.conversion);
 
                     if (coalescence.getIntervalCount()>0)
@@ -191,42 +250,170 @@ public class ACGLikelihoodApprox extends Distribution {
         return heightMap;
     }
 
-    private void computePairwiseDistances() {
-        // Pre-compute pairwise distance tables
+    /**
+     * Pre-compute the states of each leaf at each segregating site.  For
+     * every segregating site we record, for all but the first distinct
+     * state found there, a bit set identifying the leaves having that
+     * state.  Leaves belonging to none of these sets have the first
+     * state.  Memory therefore scales with the number of segregating
+     * sites rather than with the length of the alignment.
+     */
+    private void computeStateSets() {
 
         nLeaves = acg.getLeafNodeCount();
-        int nPairs = nLeaves*(nLeaves-1)/2;
-        cumulativeHD = new int[nPairs][alignment.getSiteCount()+1];
-        pairNrLookup = new int[nLeaves*nLeaves];
-
-        for (int siteBoundary=0; siteBoundary<alignment.getSiteCount()+1; siteBoundary++) {
-            int pair = 0;
-            for (int tIdx1=0; tIdx1<nLeaves; tIdx1++) {
-                for (int tIdx2=tIdx1+1; tIdx2<nLeaves; tIdx2++) {
-                    pairNrLookup[tIdx1 + tIdx2*nLeaves] = pair;
-                    pairNrLookup[tIdx2 + tIdx1*nLeaves] = pair;
-                    if (siteBoundary == 0)
-                        cumulativeHD[pair][siteBoundary] = 0;
-                    else
-                        cumulativeHD[pair][siteBoundary] = cumulativeHD[pair][siteBoundary - 1];
-
-                    if (siteBoundary > 0) {
-                        int patternIdx = alignment.getPatternIndex(siteBoundary - 1);
-
-                        if (alignment.getPattern(tIdx1, patternIdx)
-                                != alignment.getPattern(tIdx2, patternIdx))
-                            cumulativeHD[pair][siteBoundary] += 1;
-                    }
+        wordsPerSet = Math.max(1, (nLeaves + 63)/64);
+
+        List<Integer> segregatingSiteList = new ArrayList<>();
+        List<Integer> stateSetOffsetList = new ArrayList<>();
+        List<long[]> stateSetList = new ArrayList<>();
+
+        int[] states = new int[nLeaves];
+        int[] leafStateIndices = new int[nLeaves];
+        for (int site=0; site<alignment.getSiteCount(); site++) {
+            int patternIdx = alignment.getPatternIndex(site);
 
-                    pair += 1;
+            int nStates = 0;
+            for (int tIdx=0; tIdx<nLeaves; tIdx++) {
+                int state = alignment.getPattern(tIdx, patternIdx);
+
+                int stateIdx = 0;
+                while (stateIdx < nStates && states[stateIdx] != state)
+                    stateIdx += 1;
+
+                if (stateIdx == nStates) {
+                    states[nStates] = state;
+                    nStates += 1;
                 }
+                leafStateIndices[tIdx] = stateIdx;
+            }
+
+            if (nStates == 1)
+                continue;
+
+            segregatingSiteList.add(site);
+            stateSetOffsetList.add(stateSetList.size());
+
+            long[][] siteStateSets = new long[nStates-1][wordsPerSet];
+            for (int tIdx=0; tIdx<nLeaves; tIdx++) {
+                if (leafStateIndices[tIdx] > 0)
+                    siteStateSets[leafStateIndices[tIdx]-1][tIdx >>> 6] |= 1L << tIdx;
+            }
+            stateSetList.addAll(Arrays.asList(siteStateSets));
+        }
+        stateSetOffsetList.add(stateSetList.size());
+
+        segregatingSites = new int[segregatingSiteList.size()];
+        for (int i=0; i<segregatingSites.length; i++)
+            segregatingSites[i] = segregatingSiteList.get(i);
+
+        stateSetOffsets = new int[stateSetOffsetList.size()];
+        for (int i=0; i<stateSetOffsets.length; i++)
+            stateSetOffsets[i] = stateSetOffsetList.get(i);
+
+        stateSets = new long[stateSetList.size()*wordsPerSet];
+        for (int i=0; i<stateSetList.size(); i++)
+            System.arraycopy(stateSetList.get(i), 0, stateSets, i*wordsPerSet, wordsPerSet);
+    }
+
+    /**
+     * @param site site index
+     * @return index of first segregating site at or beyond site
+     */
+    private int getSegregatingSiteIndex(int site) {
+        int idx = Arrays.binarySearch(segregatingSites, site);
+        return idx < 0 ? -(idx + 1) : idx;
+    }
+
+    /**
+     * Compute the sum of the Hamming distances over sites [x,y) between
+     * every pair of leaves drawn from the two coalescing leaf sets of an
+     * interval.  Rather than visiting each pair, we use the fact that at
+     * each site this sum is |A||B| - sum_s a_s*b_s, where a_s and b_s are
+     * the number of leaves in each set having state s.
+     *
+     * @param coalescence coalescence
+     * @param i interval index
+     * @param x first site
+     * @param y site beyond last site
+     * @return sum of pairwise Hamming distances
+     */
+    long getPairwiseDistanceSum(Coalescence coalescence, int i, int x, int y) {
+        int nLeaves1 = coalescence.getDescendantLeafCount1(i);
+        int nLeaves2 = coalescence.getDescendantLeafCount2(i);
+        long nPairs = (long)nLeaves1*nLeaves2;
+
+        long distanceSum = 0;
+        for (int siteIdx = getSegregatingSiteIndex(x),
+             endIdx = getSegregatingSiteIndex(y); siteIdx < endIdx; siteIdx++) {
+
+            long samePairs = 0;
+            int remaining1 = nLeaves1, remaining2 = nLeaves2;
+            for (int set=stateSetOffsets[siteIdx]; set<stateSetOffsets[siteIdx+1]; set++) {
+                int count1 = coalescence.getDescendantLeafCount1(i,
+                        stateSets, set*wordsPerSet, wordsPerSet);
+                int count2 = coalescence.getDescendantLeafCount2(i,
+                        stateSets, set*wordsPerSet, wordsPerSet);
+
+                samePairs += (long)count1*count2;
+                remaining1 -= count1;
+                remaining2 -= count2;
             }
+
+            // Leaves with first state
+            samePairs += (long)remaining1*remaining2;
+
+            distanceSum += nPairs - samePairs;
+        }
+
+        return distanceSum;
+    }
+
+    /**
+     * @param nr leaf node number
+     * @param siteIdx segregating site index
+     * @return index of state set containing leaf, or -1 if leaf has the
+     * first state
+     */
+    private int getStateSetIndex(int nr, int siteIdx) {
+        for (int set=stateSetOffsets[siteIdx]; set<stateSetOffsets[siteIdx+1]; set++) {
+            if ((stateSets[set*wordsPerSet + (nr >>> 6)] & (1L << nr)) != 0)
+                return set;
         }
+
+        return -1;
     }
 
     int getPairwiseDistance(int node1Nr, int node2Nr, int x, int y) {
-        int pairNr = pairNrLookup[node1Nr*nLeaves + node2Nr];
-        return cumulativeHD[pairNr][y] - cumulativeHD[pairNr][x];
+        int distance = 0;
+        for (int siteIdx = getSegregatingSiteIndex(x),
+             endIdx = getSegregatingSiteIndex(y); siteIdx < endIdx; siteIdx++) {
+            if (getStateSetIndex(node1Nr, siteIdx) != getStateSetIndex(node2Nr, siteIdx))
+                distance += 1;
+        }
+
+        return distance;
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        return acg.somethingIsDirty() || substRateInput.get().somethingIsDirty();
+    }
+
+    @Override
+    public void store() {
+        storedUsedDistanceSums.clear();
+        storedUsedDistanceSums.addAll(usedDistanceSums);
+
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        Set<long[]> tmp = usedDistanceSums;
+        usedDistanceSums = storedUsedDistanceSums;
+        storedUsedDistanceSums = tmp;
+
+        super.restore();
     }
 
     @Override
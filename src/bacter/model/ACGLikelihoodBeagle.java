@@ -18,7 +18,6 @@ package bacter.model;
 
 import bacter.*;
 import beagle.Beagle;
-import beagle.BeagleFactory;
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.State;
@@ -30,20 +29,21 @@ import beast.evolution.sitemodel.SiteModel;
 import beast.evolution.substitutionmodel.EigenDecomposition;
 import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.tree.Node;
-import com.google.common.collect.LinkedHashMultiset;
-import com.google.common.collect.Multiset;
 
 import java.util.*;
 
 /**
  * ACGLikelihood that uses libhmsbeagle to compute marginal tree likelihoods.
- * This is EXPERIMENTAL, and may actually incur a performance hit over the
- * java ACGLikelihood due to the cost of spinning up beagle instances.
+ * This is EXPERIMENTAL.  A single beagle instance holds the patterns of
+ * all regions of the locus, with each region occupying its own pattern
+ * partition, so that all regions requiring evaluation are handled by a
+ * single batch of beagle calls.
  *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 @Description("Probability of sequence data given recombination graph.")
-public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
+public class ACGLikelihoodBeagle extends GenericTreeLikelihood
+        implements EarlyTerminatingLikelihood {
 
     public Input<Locus> locusInput = new Input<>(
             "locus",
@@ -64,17 +64,34 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
     protected Locus locus;
     protected int nStates;
 
-    protected Map<Region, Multiset<int[]>> patterns;
-    protected Map<Region, Multiset<int[]>> storedPatterns;
-    protected Map<Region, List<Integer>> constantPatterns;
-    protected Map<Region, List<Integer>> storedConstantPatterns;
-    protected Map<Region, Beagle> beagleInstances;
+    protected PatternDictionary patternDictionary;
+    protected Set<PatternDictionary.Entry> heldPatternEntries;
+    protected Map<Region, PatternDictionary.Entry> patterns;
+    protected Map<Region, PatternDictionary.Entry> storedPatterns;
     protected Map<Region, Double> regionLogLikelihoods;
     protected Map<Region, Double> storedRegionLogLikelihoods;
 
-    int[] nodeNrs;
+    protected double logPThreshold = Double.NEGATIVE_INFINITY;
+    protected boolean terminatedEarly;
+
+    protected BeagleInstancePool.Instance beagleInstance;
+    protected Beagle beagle;
+    protected int patternCapacity, regionCapacity;
+
+    // Regions in order of their pattern partitions within the instance
+    protected List<Region> partitionRegions = new ArrayList<>();
+    protected Map<Region, Integer> regionPartitions = new HashMap<>();
+    protected Map<Region, Integer> patternOffsets = new HashMap<>();
+    protected int patternCount;
+
+    List<Region> dirtyRegions = new ArrayList<>();
+    int[] matrixIndices;
     double[] edgeLengths;
-    int[] operationList, operationListIdx;
+    int matrixCount;
+    int[] operationList;
+    int operationCount;
+    int[] rootNrs, partitionIndices, modelIndices, cumulativeScaleIndices;
+    double[] dirtyRegionLogPs;
 
     public ACGLikelihoodBeagle() {
         // We allow alignments to be specified using Locus objects.
@@ -116,80 +133,100 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
         } else
             branchRateModel = new StrictClockModel();
 
+        patternDictionary = PatternDictionary.getSharedDictionary();
+        heldPatternEntries = Collections.newSetFromMap(new IdentityHashMap<>());
         patterns = new HashMap<>();
         storedPatterns = new HashMap<>();
-        constantPatterns = new HashMap<>();
-        storedConstantPatterns = new HashMap<>();
-        beagleInstances = new HashMap<>();
         regionLogLikelihoods = new HashMap<>();
         storedRegionLogLikelihoods = new HashMap<>();
-
-        edgeLengths = new double[acg.getNodeCount()-1];
-        nodeNrs = new int[acg.getNodeCount()-1];
-        for (int i=0; i<nodeNrs.length; i++)
-            nodeNrs[i] = i;
-
-        operationList = new int[acg.getInternalNodeCount() * Beagle.OPERATION_TUPLE_SIZE];
-        operationListIdx = new int[1];
     }
 
     @Override
     public double calculateLogP() {
         updatePatterns();
-        updateBeagleInstances();
+        updateBeagleInstance();
 
-        logP = 0.0;
+        terminatedEarly = false;
 
-        regionLogLikelihoods.keySet().retainAll(acg.getRegions(locus));
+        List<Region> regionList = acg.getRegions(locus);
+        regionLogLikelihoods.keySet().retainAll(regionList);
 
-        int rootNr = acg.getRoot().getNr();
-        double[] regionLogP = new double[1];
+        logP = sumCachedRegionLogLikelihoods();
 
-        for (Region region : acg.getRegions(locus)) {
+        dirtyRegions.clear();
+        for (Region region : regionList) {
+            if (!regionLogLikelihoods.containsKey(region))
+                dirtyRegions.add(region);
+        }
 
-            if (!regionLogLikelihoods.containsKey(region)) {
-                Beagle beagle = beagleInstances.get(region);
-                MarginalTree marginalTree = new MarginalTree(acg, region);
+        if (dirtyRegions.isEmpty())
+            return logP;
 
-                operationListIdx[0] = 0;
-                buildOperationList(beagle, marginalTree.getRoot(), region);
+        // All regions are evaluated in a single batch, so the threshold
+        // can only be applied before the batch is started.
+        if (logP < logPThreshold) {
+            terminatedEarly = true;
+            return logP;
+        }
 
-                beagle.setCategoryRates(siteModel.getCategoryRates(null));
-                beagle.setCategoryWeights(0, siteModel.getCategoryProportions(null));
-                beagle.setStateFrequencies(0, substitutionModel.getFrequencies());
+        ensureRegionCapacity(dirtyRegions.size());
 
-                beagle.updateTransitionMatrices(0, nodeNrs,
-                        null, null, edgeLengths, edgeLengths.length);
+        matrixCount = 0;
+        operationCount = 0;
+        for (int k=0; k<dirtyRegions.size(); k++) {
+            Region region = dirtyRegions.get(k);
+            MarginalTree marginalTree = new MarginalTree(acg, region);
 
-                beagle.updatePartials(operationList, operationListIdx[0], Beagle.NONE);
+            buildOperationList(marginalTree.getRoot(), k, regionPartitions.get(region));
 
-                beagle.calculateRootLogLikelihoods(
-                        new int[]{rootNr},
-                        new int[]{0},
-                        new int[]{0},
-                        new int[]{Beagle.NONE},
-                        1,
-                        regionLogP);
+            rootNrs[k] = marginalTree.getRoot().getNr();
+            partitionIndices[k] = regionPartitions.get(region);
+        }
 
-                regionLogLikelihoods.put(region, regionLogP[0]);
-                logP += regionLogP[0];
-            } else {
-                logP += regionLogLikelihoods.get(region);
-            }
+        EigenDecomposition ed = substitutionModel.getEigenDecomposition(null);
+        beagle.setEigenDecomposition(0,
+                ed.getEigenVectors(),
+                ed.getInverseEigenVectors(),
+                ed.getEigenValues());
+
+        beagle.setCategoryRates(siteModel.getCategoryRates(null));
+        beagle.setCategoryWeights(0, siteModel.getCategoryProportions(null));
+        beagle.setStateFrequencies(0, substitutionModel.getFrequencies());
+
+        beagle.updateTransitionMatrices(0, matrixIndices,
+                null, null, edgeLengths, matrixCount);
+
+        beagle.updatePartialsByPartition(operationList, operationCount);
+
+        double[] sumLogP = new double[1];
+        beagle.calculateRootLogLikelihoodsByPartition(
+                rootNrs,
+                modelIndices,
+                modelIndices,
+                cumulativeScaleIndices,
+                partitionIndices,
+                dirtyRegions.size(),
+                1,
+                dirtyRegionLogPs,
+                sumLogP);
+
+        for (int k=0; k<dirtyRegions.size(); k++) {
+            regionLogLikelihoods.put(dirtyRegions.get(k), dirtyRegionLogPs[k]);
+            logP += dirtyRegionLogPs[k];
         }
 
         return logP;
     }
 
     /**
-     * Ensure pattern counts are up to date.
+     * Ensure pattern counts are up to date.  Pattern sets are obtained
+     * from the shared pattern dictionary.
      */
     private void updatePatterns() {
         List<Region> regionList = acg.getRegions(locus);
 
         // Remove stale pattern sets
         patterns.keySet().retainAll(regionList);
-        constantPatterns.keySet().retainAll(regionList);
 
         for (Region region : regionList) {
 
@@ -197,116 +234,200 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
                 continue;
 
             // Add new pattern set
-            Multiset<int[]> patSet = LinkedHashMultiset.create();
-            for (int j=region.leftBoundary; j<region.rightBoundary; j++) {
-                int [] pat = alignment.getPattern(alignment.getPatternIndex(j));
-                patSet.add(pat);
-            }
-            patterns.put(region, patSet);
-
-            // Compute corresponding constant pattern list
-            List<Integer> constantPatternList = new ArrayList<>();
-
-            int patternIdx = 0;
-            for (int[] pattern : patSet.elementSet()) {
-                boolean isConstant = true;
-                for (int i=1; i<pattern.length; i++)
-                    if (pattern[i] != pattern[0]) {
-                        isConstant = false;
-                        break;
-                    }
-
-                if (isConstant) {
-                    if (alignment.getDataType().isAmbiguousState(pattern[0])) {
-                        if (useAmbiguitiesInput.get()) {
-                            for (int state : alignment.getDataType().getStatesForCode(pattern[0]))
-                                constantPatternList.add(patternIdx * nStates + state);
-                        }
-                    } else {
-                        constantPatternList.add(patternIdx * nStates + pattern[0]);
-                    }
-                }
-
-                patternIdx += 1;
-            }
+            PatternDictionary.Entry entry = patternDictionary.acquire(alignment,
+                    region.leftBoundary, region.rightBoundary);
 
-            constantPatterns.put(region, constantPatternList);
+            // A single reference is held for each entry in use.
+            if (!heldPatternEntries.add(entry))
+                patternDictionary.release(entry);
+
+            patterns.put(region, entry);
         }
+
+        releaseUnusedPatternEntries();
     }
-    
+
+    /**
+     * Release dictionary entries no longer used by either the current or
+     * the stored state.
+     */
+    private void releaseUnusedPatternEntries() {
+        Set<PatternDictionary.Entry> usedEntries = Collections.newSetFromMap(new IdentityHashMap<>());
+        usedEntries.addAll(patterns.values());
+        usedEntries.addAll(storedPatterns.values());
+
+        Iterator<PatternDictionary.Entry> it = heldPatternEntries.iterator();
+        while (it.hasNext()) {
+            PatternDictionary.Entry entry = it.next();
+            if (!usedEntries.contains(entry)) {
+                patternDictionary.release(entry);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Discard all pattern sets and cached region log likelihoods,
+     * releasing the pattern dictionary entries and beagle instance held
+     * by this likelihood.  Should be called when the likelihood is no
+     * longer needed.  The likelihood remains usable: the discarded data
+     * is rebuilt when it is next evaluated.
+     */
+    public void releasePatternEntries() {
+        releaseBeagleInstance();
+
+        patterns.clear();
+        storedPatterns.clear();
+        regionLogLikelihoods.clear();
+        storedRegionLogLikelihoods.clear();
+
+        releaseUnusedPatternEntries();
+    }
+
     
     /**
-     * Initialize beagle instances.
+     * Ensure the beagle instance holds the patterns of exactly the
+     * current regions, one partition per region.  Tip data and pattern
+     * weights are only uploaded when the set of regions changes, and a
+     * new instance is created only when the existing one is too small.
      */
-    private void updateBeagleInstances() {
+    private void updateBeagleInstance() {
 
         List<Region> regionList = acg.getRegions(locus);
-        beagleInstances.keySet().retainAll(regionList);
+        if (beagle != null && regionList.equals(partitionRegions))
+            return;
+
+        partitionRegions.clear();
+        partitionRegions.addAll(regionList);
+        regionPartitions.clear();
+        patternOffsets.clear();
+
+        patternCount = 0;
+        for (int i=0; i<partitionRegions.size(); i++) {
+            Region region = partitionRegions.get(i);
+            regionPartitions.put(region, i);
+            patternOffsets.put(region, patternCount);
+            patternCount += patterns.get(region).getPatternCount();
+        }
 
-        for (Region region : regionList) {
-            Beagle beagleInstance = BeagleFactory.loadBeagleInstance(
-                    acg.getLeafNodeCount(), // Number of tips
-                    acg.getNodeCount(), // Number of partials
-                    useAmbiguitiesInput.get() ? 0 : acg.getLeafNodeCount(), // Number of compacts
-                    nStates, // Number of discrete states in model (4 for DNA)
-                    patterns.get(region).elementSet().size(), // Number of patterns
-                    1, // Number of eigen decompositions
-                    acg.getNodeCount()-1, // Number of transition matrices (one per edge)
-                    siteModel.getCategoryCount(), // Number of rate categories
-                    0, // Number of scaling buffers (0 means not needed)
-                    null, // Potential resource list (null -> no restriction)
-                    0, // bit flags indicating preferred implementation characteristics
-                    0); // bit flags indicating required implementation characteristics
-
-            if (useAmbiguitiesInput.get()) {
-                setPartials(beagleInstance, patterns.get(region));
-            } else {
-                setStates(beagleInstance, patterns.get(region));
+        if (beagle == null || patternCount > patternCapacity) {
+            patternCapacity = Math.max(patternCount,
+                    Math.min(2*patternCapacity, alignment.getSiteCount()));
+            createBeagleInstance();
+        }
+
+        // Unused patterns are assigned to an extra partition which is
+        // never evaluated.
+        int[] patternPartitions = new int[patternCapacity];
+        double[] weights = new double[patternCapacity];
+        Arrays.fill(patternPartitions, partitionRegions.size());
+        for (Region region : partitionRegions) {
+            PatternDictionary.Entry entry = patterns.get(region);
+            int offset = patternOffsets.get(region);
+            for (int i=0; i<entry.getPatternCount(); i++) {
+                patternPartitions[offset + i] = regionPartitions.get(region);
+                weights[offset + i] = entry.getWeight(i);
             }
+        }
+        beagle.setPatternPartitions(partitionRegions.size()+1, patternPartitions);
+        beagle.setPatternWeights(weights);
+
+        if (useAmbiguitiesInput.get()) {
+            setPartials(beagle);
+        } else {
+            setStates(beagle);
+        }
+    }
 
-            double weights[] = new double[patterns.get(region).elementSet().size()];
-            int i=0;
-            for (int[] pattern : patterns.get(region).elementSet())
-                weights[i++] = patterns.get(region).count(pattern);
-            beagleInstance.setPatternWeights(weights);
+    /**
+     * Replace the beagle instance with one able to hold patternCapacity
+     * patterns and the transition matrices of regionCapacity regions.
+     * Instances are obtained from and returned to the shared pool, so
+     * an instance released by another likelihood may be recycled here.
+     */
+    private void createBeagleInstance() {
+        if (regionCapacity == 0)
+            regionCapacity = 1;
+
+        if (beagleInstance != null)
+            BeagleInstancePool.getSharedPool().release(beagleInstance);
+
+        int edgeCount = acg.getNodeCount()-1;
+        beagleInstance = BeagleInstancePool.getSharedPool().acquire(
+                acg.getLeafNodeCount(), // Number of tips
+                acg.getNodeCount(), // Number of partials (shared between partitions)
+                useAmbiguitiesInput.get() ? 0 : acg.getLeafNodeCount(), // Number of compacts
+                nStates, // Number of discrete states in model (4 for DNA)
+                patternCapacity, // Number of patterns (all partitions)
+                regionCapacity*edgeCount, // Number of transition matrices (one per edge per region)
+                siteModel.getCategoryCount()); // Number of rate categories
+
+        beagle = beagleInstance.getBeagle();
+
+        // A recycled instance may be larger than requested.
+        patternCapacity = beagleInstance.getPatternCount();
+        regionCapacity = beagleInstance.getMatrixCount()/edgeCount;
+
+        matrixIndices = new int[regionCapacity*(acg.getNodeCount()-1)];
+        edgeLengths = new double[matrixIndices.length];
+        operationList = new int[regionCapacity*acg.getInternalNodeCount()
+                *Beagle.PARTITION_OPERATION_TUPLE_SIZE];
+
+        rootNrs = new int[regionCapacity];
+        partitionIndices = new int[regionCapacity];
+        modelIndices = new int[regionCapacity];
+        cumulativeScaleIndices = new int[regionCapacity];
+        Arrays.fill(cumulativeScaleIndices, Beagle.NONE);
+        dirtyRegionLogPs = new double[regionCapacity];
+    }
 
-            EigenDecomposition ed = substitutionModel.getEigenDecomposition(null);
-            beagleInstance.setEigenDecomposition(0,
-                    ed.getEigenVectors(),
-                    ed.getInverseEigenVectors(),
-                    ed.getEigenValues());
+    /**
+     * Return the beagle instance used by this likelihood to the shared
+     * pool.  A new instance will be obtained if the likelihood is
+     * evaluated again.
+     */
+    public void releaseBeagleInstance() {
+        if (beagleInstance == null)
+            return;
+
+        BeagleInstancePool.getSharedPool().release(beagleInstance);
+        beagleInstance = null;
+        beagle = null;
+        partitionRegions.clear();
+    }
 
-            beagleInstance.setCategoryRates(siteModel.getCategoryRates(null));
-            beagleInstance.setCategoryWeights(0, siteModel.getCategoryProportions(null));
-            beagleInstance.setStateFrequencies(0, substitutionModel.getFrequencies());
+    /**
+     * Ensure that the beagle instance can hold the transition matrices
+     * required to evaluate the given number of regions at once.
+     *
+     * @param nRegions number of regions
+     */
+    private void ensureRegionCapacity(int nRegions) {
+        if (nRegions <= regionCapacity)
+            return;
 
-            beagleInstances.put(region, beagleInstance);
-        }
+        regionCapacity = Math.max(nRegions, 2*regionCapacity);
+        createBeagleInstance();
+
+        // New instance requires all data to be uploaded again.
+        partitionRegions.clear();
+        updateBeagleInstance();
     }
-    
-    
+
     /**
      * Set leaf states in a Beagle instance
      * 
      * @param beagle beagle instance object
-     * @param patterns leaf state patterns
      */
-    void setStates(Beagle beagle, Multiset<int[]> patterns) {
+    void setStates(Beagle beagle) {
         
         for (Node node : acg.getExternalNodes()) {
-            int[] states = new int[patterns.size()];
+            int[] states = new int[patternCapacity];
             int taxon = alignment.getTaxonIndex(node.getID());
-            int i=0;
-            for (int [] pattern : patterns.elementSet()) {
-//                int code = pattern[taxon];
-//                int[] statesForCode = alignment.getDataType().getStatesForCode(code);
-//                if (statesForCode.length==1)
-//                    states[i] = statesForCode[0];
-//                else
-//                    states[i] = code; // Causes ambiguous states to be ignored.
-                states[i] = pattern[taxon];
-
-                i += 1;
+            for (Region region : partitionRegions) {
+                int[] regionStates = patterns.get(region).getTipStates(taxon);
+                System.arraycopy(regionStates, 0,
+                        states, patternOffsets.get(region), regionStates.length);
             }
             beagle.setTipStates(node.getNr(), states);
         }
@@ -317,24 +438,20 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
      * Set leaf partials in a Beagle instance
      *
      * @param beagle beagle instance object
-     * @param patterns leaf state patterns
      */
-    protected void setPartials(Beagle beagle, Multiset<int[]> patterns) {
+    protected void setPartials(Beagle beagle) {
+        int n = patternCapacity*nStates;
+
         for (Node node : acg.getExternalNodes()) {
-            Alignment data = dataInput.get();
-            int nStates = data.getDataType().getStateCount();
-            double[] partials = new double[patterns.elementSet().size() * nStates * siteModel.getCategoryCount()];
-            int k = 0;
+            double[] partials = new double[n * siteModel.getCategoryCount()];
             int iTaxon = alignment.getTaxonIndex(node.getID());
-            for (int[] pattern : patterns.elementSet()) {
-                int code = pattern[iTaxon];
-                boolean[] stateSet = alignment.getDataType().getStateSet(code);
-                for (int iState = 0; iState < nStates; iState++) {
-                    partials[k++] = (stateSet[iState] ? 1.0 : 0.0);
-                }
+            for (Region region : partitionRegions) {
+                double[] regionPartials = patterns.get(region).getTipPartials(iTaxon);
+                System.arraycopy(regionPartials, 0,
+                        partials, patternOffsets.get(region)*nStates,
+                        regionPartials.length);
             }
 
-            int n = patterns.elementSet().size()*siteModel.getCategoryCount();
             for (int cIdx = 1; cIdx<siteModel.getCategoryCount(); cIdx++) {
                 System.arraycopy(partials, 0, partials, n*cIdx, n);
             }
@@ -343,9 +460,21 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
         }
     }
 
-    protected void buildOperationList(Beagle beagle, MarginalNode node, Region region) {
+    /**
+     * Add the operations required to compute the partials of the given
+     * marginal tree to the operation list.  Partials buffers are shared
+     * between regions, as each region writes only its own partition, but
+     * each region requires its own transition matrices.
+     *
+     * @param node marginal tree node
+     * @param k index of region within current batch
+     * @param partition pattern partition of region
+     */
+    protected void buildOperationList(MarginalNode node, int k, int partition) {
         if (!node.isRoot()) {
-            edgeLengths[node.getNr()] = node.getLength() * branchRateModel.getRateForBranch(node);
+            matrixIndices[matrixCount] = getMatrixIndex(node, k);
+            edgeLengths[matrixCount] = node.getLength() * branchRateModel.getRateForBranch(node);
+            matrixCount += 1;
         }
 
         if (!node.isLeaf()) {
@@ -353,23 +482,60 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
             MarginalNode leftChild = (MarginalNode)node.getLeft();
             MarginalNode rightChild = (MarginalNode)node.getRight();
 
-            buildOperationList(beagle, leftChild, region);
-            buildOperationList(beagle, rightChild, region);
+            buildOperationList(leftChild, k, partition);
+            buildOperationList(rightChild, k, partition);
 
-            int opIdx = operationListIdx[0]*Beagle.OPERATION_TUPLE_SIZE;
+            int opIdx = operationCount*Beagle.PARTITION_OPERATION_TUPLE_SIZE;
 
             operationList[opIdx + 0] = node.getNr();
             operationList[opIdx + 1] = Beagle.NONE;
             operationList[opIdx + 2] = Beagle.NONE;
             operationList[opIdx + 3] = leftChild.getNr();
-            operationList[opIdx + 4] = leftChild.getNr();
+            operationList[opIdx + 4] = getMatrixIndex(leftChild, k);
             operationList[opIdx + 5] = rightChild.getNr();
-            operationList[opIdx + 6] = rightChild.getNr();
+            operationList[opIdx + 6] = getMatrixIndex(rightChild, k);
+            operationList[opIdx + 7] = partition;
+            operationList[opIdx + 8] = Beagle.NONE;
 
-            operationListIdx[0] += 1;
+            operationCount += 1;
         }
     }
 
+    /**
+     * @param node non-root marginal tree node
+     * @param k index of region within current batch
+     * @return index of transition matrix for edge above node
+     */
+    private int getMatrixIndex(MarginalNode node, int k) {
+        return k*(acg.getNodeCount()-1) + node.getNr();
+    }
+
+    /**
+     * Sum log likelihoods of regions which do not require re-evaluation.
+     * These are summed before any regions are evaluated so that the
+     * threshold used for early termination is applied as soon as
+     * possible.
+     *
+     * @return sum of cached region log likelihoods
+     */
+    private double sumCachedRegionLogLikelihoods() {
+        double cachedLogP = 0.0;
+        for (double regionLogP : regionLogLikelihoods.values())
+            cachedLogP += regionLogP;
+
+        return cachedLogP;
+    }
+
+    @Override
+    public void setLogPThreshold(double logPThreshold) {
+        this.logPThreshold = logPThreshold;
+    }
+
+    @Override
+    public boolean evaluationTerminatedEarly() {
+        return terminatedEarly;
+    }
+
     @Override
     public List<String> getArguments() {
         throw new UnsupportedOperationException("Not supported yet.");
@@ -397,9 +563,7 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
     public void store() {
         storedPatterns.clear();
         storedPatterns.putAll(patterns);
-
-        storedConstantPatterns.clear();
-        storedConstantPatterns.putAll(constantPatterns);
+        releaseUnusedPatternEntries();
 
         storedRegionLogLikelihoods.clear();
         storedRegionLogLikelihoods.putAll(regionLogLikelihoods);
@@ -409,14 +573,10 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
 
     @Override
     public void restore() {
-        Map<Region, Multiset<int[]>> tmpPatterns = patterns;
+        Map<Region, PatternDictionary.Entry> tmpPatterns = patterns;
         patterns = storedPatterns;
         storedPatterns = tmpPatterns;
 
-        Map<Region, List<Integer>> tmpConstantPatterns = constantPatterns;
-        constantPatterns = storedConstantPatterns;
-        storedConstantPatterns = tmpConstantPatterns;
-
         Map<Region, Double> tmpRegionLogLikelihoods = regionLogLikelihoods;
         regionLogLikelihoods = storedRegionLogLikelihoods;
         storedRegionLogLikelihoods = tmpRegionLogLikelihoods;
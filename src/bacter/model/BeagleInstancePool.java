@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import beagle.Beagle;
+import beagle.BeagleFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pool of native beagle instances.  Instances released to the pool are
+ * handed out again in place of new instances whenever they are large
+ * enough, and are finalized explicitly (rather than being left to the
+ * garbage collector) when the pool holds too many idle instances, when
+ * finalizeIdleInstances() is called, or when the JVM exits.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class BeagleInstancePool {
+
+    private static final BeagleInstancePool sharedPool = new BeagleInstancePool(4);
+
+    /**
+     * A beagle instance together with the dimensions it was created with.
+     */
+    public static class Instance {
+        private final Beagle beagle;
+        private final int tipCount, partialsCount, compactCount, stateCount;
+        private final int patternCount, matrixCount, categoryCount;
+
+        private Instance(Beagle beagle, int tipCount, int partialsCount,
+                         int compactCount, int stateCount, int patternCount,
+                         int matrixCount, int categoryCount) {
+            this.beagle = beagle;
+            this.tipCount = tipCount;
+            this.partialsCount = partialsCount;
+            this.compactCount = compactCount;
+            this.stateCount = stateCount;
+            this.patternCount = patternCount;
+            this.matrixCount = matrixCount;
+            this.categoryCount = categoryCount;
+        }
+
+        public Beagle getBeagle() {
+            return beagle;
+        }
+
+        /**
+         * @return number of patterns instance can hold (may exceed the
+         * number requested)
+         */
+        public int getPatternCount() {
+            return patternCount;
+        }
+
+        /**
+         * @return number of transition matrices instance can hold (may
+         * exceed the number requested)
+         */
+        public int getMatrixCount() {
+            return matrixCount;
+        }
+
+        private boolean isCompatible(int tipCount, int partialsCount,
+                                     int compactCount, int stateCount,
+                                     int patternCount, int matrixCount,
+                                     int categoryCount) {
+            return this.tipCount == tipCount
+                    && this.partialsCount == partialsCount
+                    && this.compactCount == compactCount
+                    && this.stateCount == stateCount
+                    && this.categoryCount == categoryCount
+                    && this.patternCount >= patternCount
+                    && this.matrixCount >= matrixCount;
+        }
+    }
+
+    private final int maxIdleCount;
+    private final List<Instance> idleInstances = new ArrayList<>();
+    private final Set<Instance> liveInstances = new HashSet<>();
+    private long creationCount, reuseCount, finalizationCount;
+
+    /**
+     * @param maxIdleCount maximum number of idle instances to retain
+     */
+    public BeagleInstancePool(int maxIdleCount) {
+        this.maxIdleCount = maxIdleCount;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::finalizeAllInstances));
+    }
+
+    /**
+     * @return pool shared by all likelihoods in this JVM
+     */
+    public static BeagleInstancePool getSharedPool() {
+        return sharedPool;
+    }
+
+    /**
+     * Obtain an instance able to hold at least the given number of
+     * patterns and transition matrices, reusing an idle instance if one
+     * is available.  Data held by a reused instance is not cleared.
+     *
+     * @param tipCount number of tips
+     * @param partialsCount number of partials buffers
+     * @param compactCount number of compact state buffers
+     * @param stateCount number of states
+     * @param patternCount minimum number of patterns
+     * @param matrixCount minimum number of transition matrices
+     * @param categoryCount number of rate categories
+     * @return instance
+     */
+    public synchronized Instance acquire(int tipCount, int partialsCount,
+                                         int compactCount, int stateCount,
+                                         int patternCount, int matrixCount,
+                                         int categoryCount) {
+
+        // Use smallest compatible idle instance
+        Instance bestInstance = null;
+        for (Instance instance : idleInstances) {
+            if (instance.isCompatible(tipCount, partialsCount, compactCount,
+                    stateCount, patternCount, matrixCount, categoryCount)
+                    && (bestInstance == null
+                    || instance.patternCount < bestInstance.patternCount)) {
+                bestInstance = instance;
+            }
+        }
+
+        if (bestInstance != null) {
+            idleInstances.remove(bestInstance);
+            reuseCount += 1;
+            return bestInstance;
+        }
+
+        Beagle beagle = BeagleFactory.loadBeagleInstance(
+                tipCount, // Number of tips
+                partialsCount, // Number of partials
+                compactCount, // Number of compacts
+                stateCount, // Number of discrete states in model (4 for DNA)
+                patternCount, // Number of patterns
+                1, // Number of eigen decompositions
+                matrixCount, // Number of transition matrices
+                categoryCount, // Number of rate categories
+                0, // Number of scaling buffers (0 means not needed)
+                null, // Potential resource list (null -> no restriction)
+                0, // bit flags indicating preferred implementation characteristics
+                0); // bit flags indicating required implementation characteristics
+
+        Instance instance = new Instance(beagle, tipCount, partialsCount,
+                compactCount, stateCount, patternCount, matrixCount, categoryCount);
+        liveInstances.add(instance);
+        creationCount += 1;
+
+        return instance;
+    }
+
+    /**
+     * Return an instance to the pool.  The caller must not use the
+     * instance after releasing it.
+     *
+     * @param instance instance to release
+     */
+    public synchronized void release(Instance instance) {
+        if (!liveInstances.contains(instance) || idleInstances.contains(instance))
+            return;
+
+        idleInstances.add(instance);
+
+        while (idleInstances.size() > maxIdleCount)
+            finalizeInstance(idleInstances.remove(0));
+    }
+
+    /**
+     * Finalize all instances not currently in use.
+     */
+    public synchronized void finalizeIdleInstances() {
+        for (Instance instance : idleInstances)
+            finalizeInstance(instance);
+
+        idleInstances.clear();
+    }
+
+    /**
+     * Finalize all instances, including those in use.
+     */
+    private synchronized void finalizeAllInstances() {
+        for (Instance instance : new ArrayList<>(liveInstances))
+            finalizeInstance(instance);
+
+        idleInstances.clear();
+    }
+
+    private void finalizeInstance(Instance instance) {
+        try {
+            instance.beagle.finalize();
+        } catch (Throwable e) {
+            throw new RuntimeException("Error finalizing beagle instance.", e);
+        }
+
+        liveInstances.remove(instance);
+        finalizationCount += 1;
+    }
+
+    /**
+     * @return number of native instances created by this pool
+     */
+    public synchronized long getCreationCount() {
+        return creationCount;
+    }
+
+    /**
+     * @return number of requests satisfied using an idle instance
+     */
+    public synchronized long getReuseCount() {
+        return reuseCount;
+    }
+
+    /**
+     * @return number of native instances created but not yet finalized
+     */
+    public synchronized int getLiveInstanceCount() {
+        return liveInstances.size();
+    }
+
+    /**
+     * @return number of native instances finalized by this pool
+     */
+    public synchronized long getFinalizationCount() {
+        return finalizationCount;
+    }
+}
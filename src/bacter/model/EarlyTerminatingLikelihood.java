@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+/**
+ * Interface for likelihoods built from a sum of non-positive terms, which
+ * may therefore abandon evaluation once the partial sum falls below a
+ * threshold supplied by the caller.
+ *
+ * When evaluation is abandoned, the value returned by calculateLogP() is
+ * only an upper bound on the true log likelihood and the likelihood's
+ * caches are incomplete.  The caller must then reject the proposed state
+ * so that the likelihood is restored.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public interface EarlyTerminatingLikelihood {
+
+    /**
+     * Set the log likelihood below which evaluation may be abandoned.
+     * Double.NEGATIVE_INFINITY (the default) disables early termination.
+     *
+     * @param logPThreshold threshold log likelihood
+     */
+    void setLogPThreshold(double logPThreshold);
+
+    /**
+     * @return true if the most recent evaluation was abandoned because
+     * the log likelihood fell below the threshold
+     */
+    boolean evaluationTerminatedEarly();
+}
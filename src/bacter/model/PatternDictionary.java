@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import bacter.SNPAlignment;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.datatype.DataType;
+import com.google.common.collect.LinkedHashMultiset;
+import com.google.common.collect.Multiset;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * Dictionary of the site patterns found in ranges of sites of an
+ * alignment.  Entries are immutable and reference counted, so that
+ * likelihoods evaluating the same range of the same data (for instance
+ * regions sharing boundaries, or the chains of an MC^3 analysis run in a
+ * single JVM) share a single copy of the patterns, their weights and the
+ * corresponding tip states and partials.  Alignments having identical
+ * content are treated as the same alignment.
+ *
+ * Entries remain in the dictionary while any acquired reference to them
+ * is unreleased.  Likelihoods release their references as regions
+ * disappear and should release the remainder when discarded (see
+ * ACGLikelihood.releasePatternEntries()).  As the dictionary holds its
+ * entries only weakly, entries whose holders are garbage collected
+ * without releasing them are nevertheless removed.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class PatternDictionary {
+
+    private static final PatternDictionary sharedDictionary = new PatternDictionary();
+
+    /**
+     * Immutable set of distinct patterns, in order of first appearance,
+     * together with their weights.  Arrays returned by the methods of
+     * this class are shared and must not be modified.
+     */
+    public static class Entry {
+        private final Key key;
+        private final DataType dataType;
+        private final int[][] patterns;
+        private final int[] weights;
+
+        private int[][] tipStates;
+        private double[][] tipPartials;
+        private List<Integer> constantPatterns, ambiguousConstantPatterns;
+
+        private int referenceCount;
+
+        private Entry(Key key, DataType dataType, Multiset<int[]> patSet) {
+            this.key = key;
+            this.dataType = dataType;
+
+            patterns = new int[patSet.elementSet().size()][];
+            weights = new int[patterns.length];
+            int i = 0;
+            for (int[] pattern : patSet.elementSet()) {
+                patterns[i] = pattern;
+                weights[i] = patSet.count(pattern);
+                i += 1;
+            }
+
+            int nTaxa = patterns.length > 0 ? patterns[0].length : 0;
+            tipStates = new int[nTaxa][];
+            tipPartials = new double[nTaxa][];
+        }
+
+        /**
+         * @return number of distinct patterns
+         */
+        public int getPatternCount() {
+            return patterns.length;
+        }
+
+        /**
+         * @param i pattern index
+         * @return character codes of pattern
+         */
+        public int[] getPattern(int i) {
+            return patterns[i];
+        }
+
+        /**
+         * @param i pattern index
+         * @return number of sites having pattern
+         */
+        public int getWeight(int i) {
+            return weights[i];
+        }
+
+        /**
+         * @return distinct patterns
+         */
+        public List<int[]> getPatterns() {
+            return Collections.unmodifiableList(Arrays.asList(patterns));
+        }
+
+        /**
+         * Obtain leaf states suitable for passing to a likelihood core.
+         * Ambiguous characters are represented by their codes, which
+         * causes them to be ignored.
+         *
+         * @param taxon taxon index
+         * @return state of taxon at each pattern
+         */
+        public synchronized int[] getTipStates(int taxon) {
+            if (tipStates[taxon] == null) {
+                int[] states = new int[patterns.length];
+                for (int i=0; i<patterns.length; i++) {
+                    int code = patterns[i][taxon];
+                    int[] statesForCode = dataType.getStatesForCode(code);
+                    states[i] = statesForCode.length == 1 ? statesForCode[0] : code;
+                }
+                tipStates[taxon] = states;
+            }
+
+            return tipStates[taxon];
+        }
+
+        /**
+         * @param taxon taxon index
+         * @return partials of taxon at each pattern
+         */
+        public synchronized double[] getTipPartials(int taxon) {
+            if (tipPartials[taxon] == null) {
+                int nStates = dataType.getStateCount();
+                double[] partials = new double[patterns.length*nStates];
+                int k = 0;
+                for (int[] pattern : patterns) {
+                    boolean[] stateSet = dataType.getStateSet(pattern[taxon]);
+                    for (int s=0; s<nStates; s++)
+                        partials[k++] = stateSet[s] ? 1.0 : 0.0;
+                }
+                tipPartials[taxon] = partials;
+            }
+
+            return tipPartials[taxon];
+        }
+
+        /**
+         * @param useAmbiguities whether ambiguous constant patterns are
+         *                       considered invariant
+         * @return indices into root partials (pattern index times state
+         * count plus state) to which the invariant site probability is
+         * added
+         */
+        public synchronized List<Integer> getConstantPatterns(boolean useAmbiguities) {
+            if (useAmbiguities) {
+                if (ambiguousConstantPatterns == null)
+                    ambiguousConstantPatterns = Collections.unmodifiableList(
+                            PatternDictionary.getConstantPatterns(getPatterns(), dataType, true));
+                return ambiguousConstantPatterns;
+            } else {
+                if (constantPatterns == null)
+                    constantPatterns = Collections.unmodifiableList(
+                            PatternDictionary.getConstantPatterns(getPatterns(), dataType, false));
+                return constantPatterns;
+            }
+        }
+    }
+
+    /**
+     * @param patterns distinct site patterns
+     * @param dataType data type of patterns
+     * @param useAmbiguities whether ambiguous constant patterns are
+     *                       considered invariant
+     * @return indices into root partials (pattern index times state
+     * count plus state) to which the invariant site probability is added
+     */
+    public static List<Integer> getConstantPatterns(Collection<int[]> patterns,
+                                                    DataType dataType,
+                                                    boolean useAmbiguities) {
+        int nStates = dataType.getStateCount();
+        List<Integer> constantPatternList = new ArrayList<>();
+
+        int patternIdx = 0;
+        for (int[] pattern : patterns) {
+            boolean isConstant = true;
+            for (int i=1; i<pattern.length; i++)
+                if (pattern[i] != pattern[0]) {
+                    isConstant = false;
+                    break;
+                }
+
+            if (isConstant) {
+                if (dataType.isAmbiguousState(pattern[0])) {
+                    if (useAmbiguities) {
+                        for (int state : dataType.getStatesForCode(pattern[0]))
+                            constantPatternList.add(patternIdx * nStates + state);
+                    }
+                } else {
+                    constantPatternList.add(patternIdx * nStates + pattern[0]);
+                }
+            }
+
+            patternIdx += 1;
+        }
+
+        return constantPatternList;
+    }
+
+    /**
+     * Data source and range of sites identifying an entry.
+     */
+    private static class Key {
+        private final Object source;
+        private final int leftBoundary, rightBoundary;
+
+        private Key(Object source, int leftBoundary, int rightBoundary) {
+            this.source = source;
+            this.leftBoundary = leftBoundary;
+            this.rightBoundary = rightBoundary;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            return source == key.source
+                    && leftBoundary == key.leftBoundary
+                    && rightBoundary == key.rightBoundary;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(source);
+            result = 31 * result + leftBoundary;
+            result = 31 * result + rightBoundary;
+            return result;
+        }
+    }
+
+    /**
+     * Weak reference to an entry which records the entry's key, so that
+     * the dictionary slot can be cleared once the entry is collected.
+     */
+    private static class EntryReference extends WeakReference<Entry> {
+        private final Key key;
+
+        private EntryReference(Entry entry, ReferenceQueue<Entry> queue) {
+            super(entry, queue);
+            key = entry.key;
+        }
+    }
+
+    private final Map<Key, EntryReference> entries = new HashMap<>();
+    private final ReferenceQueue<Entry> collectedEntries = new ReferenceQueue<>();
+
+    private final Map<Alignment, WeakReference<Alignment>> canonicalAlignments = new WeakHashMap<>();
+    private final Map<Alignment, Long> canonicalFingerprints = new WeakHashMap<>();
+
+    private long creationCount, reuseCount;
+
+    /**
+     * @return dictionary shared by all likelihoods in this JVM
+     */
+    public static PatternDictionary getSharedDictionary() {
+        return sharedDictionary;
+    }
+
+    /**
+     * Obtain the patterns of a range of sites of an alignment.  Each
+     * call must be balanced by a call to release().
+     *
+     * @param alignment alignment
+     * @param leftBoundary first site in range
+     * @param rightBoundary site following last site in range
+     * @return entry
+     */
+    public synchronized Entry acquire(Alignment alignment, int leftBoundary, int rightBoundary) {
+        Alignment canonical = getCanonicalAlignment(alignment);
+
+        Entry entry = getEntry(new Key(canonical, leftBoundary, rightBoundary));
+        if (entry == null) {
+            Multiset<int[]> patSet = LinkedHashMultiset.create();
+            for (int j=leftBoundary; j<rightBoundary; j++)
+                patSet.add(canonical.getPattern(canonical.getPatternIndex(j)));
+
+            entry = addEntry(new Key(canonical, leftBoundary, rightBoundary),
+                    canonical.getDataType(), patSet);
+        } else
+            reuseCount += 1;
+
+        entry.referenceCount += 1;
+        return entry;
+    }
+
+    /**
+     * Obtain the patterns of a range of sites of an SNP alignment,
+     * including one constant pattern for each state weighted by the
+     * number of invariant sites having that state.  Each call must be
+     * balanced by a call to release().
+     *
+     * @param snpAlignment SNP alignment
+     * @param leftBoundary first site in range
+     * @param rightBoundary site following last site in range
+     * @return entry
+     */
+    public synchronized Entry acquire(SNPAlignment snpAlignment, int leftBoundary, int rightBoundary) {
+        Entry entry = getEntry(new Key(snpAlignment, leftBoundary, rightBoundary));
+        if (entry == null) {
+            Alignment alignment = snpAlignment.getAlignment();
+
+            Multiset<int[]> patSet = LinkedHashMultiset.create();
+            int end = snpAlignment.getVariableSiteIndex(rightBoundary);
+            for (int j=snpAlignment.getVariableSiteIndex(leftBoundary); j<end; j++)
+                patSet.add(alignment.getPattern(alignment.getPatternIndex(j)));
+
+            for (int s=0; s<alignment.getMaxStateCount(); s++) {
+                int count = snpAlignment.getInvariantSiteCount(s,
+                        leftBoundary, rightBoundary);
+                if (count > 0) {
+                    int[] invariantPattern = new int[alignment.getTaxonCount()];
+                    Arrays.fill(invariantPattern, s);
+                    patSet.add(invariantPattern, count);
+                }
+            }
+
+            entry = addEntry(new Key(snpAlignment, leftBoundary, rightBoundary),
+                    alignment.getDataType(), patSet);
+        } else
+            reuseCount += 1;
+
+        entry.referenceCount += 1;
+        return entry;
+    }
+
+    private Entry addEntry(Key key, DataType dataType, Multiset<int[]> patSet) {
+        Entry entry = new Entry(key, dataType, patSet);
+        entries.put(key, new EntryReference(entry, collectedEntries));
+        creationCount += 1;
+
+        return entry;
+    }
+
+    /**
+     * @param key entry key
+     * @return entry having key, or null if there is no such entry
+     */
+    private Entry getEntry(Key key) {
+        expungeCollectedEntries();
+
+        EntryReference ref = entries.get(key);
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * Remove slots whose entries have been garbage collected.
+     */
+    private void expungeCollectedEntries() {
+        Reference<? extends Entry> ref;
+        while ((ref = collectedEntries.poll()) != null) {
+            Key key = ((EntryReference) ref).key;
+            if (entries.get(key) == ref)
+                entries.remove(key);
+        }
+    }
+
+    /**
+     * Release a reference to an entry.  The entry is removed from the
+     * dictionary once no references remain, though it remains usable by
+     * anything still holding it.
+     *
+     * @param entry entry to release
+     */
+    public synchronized void release(Entry entry) {
+        entry.referenceCount -= 1;
+        if (entry.referenceCount == 0) {
+            EntryReference ref = entries.get(entry.key);
+            if (ref != null && ref.get() == entry)
+                entries.remove(entry.key);
+        }
+    }
+
+    /**
+     * Find an alignment whose content is identical to the given one and
+     * which is already used as a dictionary key.  Content is compared
+     * only with alignments having the same fingerprint.
+     *
+     * @param alignment alignment
+     * @return alignment to use as key
+     */
+    private Alignment getCanonicalAlignment(Alignment alignment) {
+        WeakReference<Alignment> ref = canonicalAlignments.get(alignment);
+        Alignment canonical = ref != null ? ref.get() : null;
+        if (canonical != null)
+            return canonical;
+
+        long fingerprint = getFingerprint(alignment);
+
+        canonical = alignment;
+        for (Map.Entry<Alignment, Long> other : canonicalFingerprints.entrySet()) {
+            if (other.getValue() == fingerprint && other.getKey() != alignment
+                    && alignmentsIdentical(alignment, other.getKey())) {
+                canonical = other.getKey();
+                break;
+            }
+        }
+
+        if (canonical == alignment)
+            canonicalFingerprints.put(alignment, fingerprint);
+
+        canonicalAlignments.put(alignment, new WeakReference<>(canonical));
+        return canonical;
+    }
+
+    /**
+     * @param alignment alignment
+     * @return hash of the taxa, data type and character codes of the
+     * alignment
+     */
+    private static long getFingerprint(Alignment alignment) {
+        long fingerprint = alignment.getDataType().getClass().getName().hashCode();
+        fingerprint = 31*fingerprint + alignment.getTaxaNames().hashCode();
+        for (int j=0; j<alignment.getSiteCount(); j++)
+            fingerprint = 31*fingerprint
+                    + Arrays.hashCode(alignment.getPattern(alignment.getPatternIndex(j)));
+
+        return fingerprint;
+    }
+
+    /**
+     * @param a first alignment
+     * @param b second alignment
+     * @return true if alignments have the same taxa, data type and
+     * character codes at every site
+     */
+    private static boolean alignmentsIdentical(Alignment a, Alignment b) {
+        if (a.getSiteCount() != b.getSiteCount()
+                || !a.getTaxaNames().equals(b.getTaxaNames())
+                || a.getDataType().getClass() != b.getDataType().getClass())
+            return false;
+
+        for (int j=0; j<a.getSiteCount(); j++) {
+            if (!Arrays.equals(a.getPattern(a.getPatternIndex(j)),
+                    b.getPattern(b.getPatternIndex(j))))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return number of entries currently held
+     */
+    public synchronized int getEntryCount() {
+        expungeCollectedEntries();
+        return entries.size();
+    }
+
+    /**
+     * @param alignment alignment
+     * @param leftBoundary first site in range
+     * @param rightBoundary site following last site in range
+     * @return true if the dictionary holds an entry for the given range
+     * of sites of the alignment (or of one with identical content)
+     */
+    public synchronized boolean containsEntry(Alignment alignment,
+                                              int leftBoundary, int rightBoundary) {
+        return getEntry(new Key(getCanonicalAlignment(alignment),
+                leftBoundary, rightBoundary)) != null;
+    }
+
+    /**
+     * @return number of entries created
+     */
+    public synchronized long getCreationCount() {
+        return creationCount;
+    }
+
+    /**
+     * @return number of requests satisfied using an existing entry
+     */
+    public synchronized long getReuseCount() {
+        return reuseCount;
+    }
+}
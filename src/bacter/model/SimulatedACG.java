@@ -297,19 +297,13 @@ public class SimulatedACG extends ConversionGraph {
                 double interval = eventList.get(eidx+1).getHeight() - event.getHeight();
                 
                 if (u<interval*event.getLineageCount()) {
-                    for (Node node : getNodesAsArray()) {
-                        if (!node.isRoot()
-                                && node.getHeight()<=event.getHeight()
-                                && node.getParent().getHeight()>event.getHeight()) {
-                            
-                            if (u<interval) {
-                                conv.setNode1(node);
-                                conv.setHeight1(event.getHeight() + u);
-                                break;
-                            } else
-                                u -= interval;
-                            
-                        }
+                    for (Node node : cfEventList.getLineages(eidx)) {
+                        if (u<interval) {
+                            conv.setNode1(node);
+                            conv.setHeight1(event.getHeight() + u);
+                            break;
+                        } else
+                            u -= interval;
                     }
                     started = true;
                     u = Randomizer.nextExponential(1.0);
@@ -335,18 +329,8 @@ public class SimulatedACG extends ConversionGraph {
                     conv.setHeight2(tEnd);                    
                     
                     // Choose particular lineage to attach to
-                    int nodeNumber = Randomizer.nextInt(event.getLineageCount());
-                    for (Node node : getNodesAsArray()) {
-                        if (node.getHeight()<=event.getHeight()
-                                && (node.isRoot() || node.getParent().getHeight()>event.getHeight())) {
-                            
-                            if (nodeNumber == 0) {
-                                conv.setNode2(node);
-                                break;
-                            } else
-                                nodeNumber -= 1;
-                        }
-                    }
+                    Node[] lineages = cfEventList.getLineages(eidx);
+                    conv.setNode2(lineages[Randomizer.nextInt(lineages.length)]);
                     break;
                 } else
                     u -= intervalArea*event.getLineageCount();
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model.likelihood;
+
+import beast.evolution.alignment.Alignment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Site-major copy of an alignment holding one byte per taxon per site,
+ * so that the characters at a site occupy a contiguous block.  The data
+ * is held either on the heap or in a file which is memory-mapped, in
+ * which case it is paged in by the operating system as sites are read.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class CompactAlignment {
+
+    // Sites are split between buffers so that no buffer exceeds this size.
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private final int taxonCount, siteCount, sitesPerSegment;
+    private final ByteBuffer[] segments;
+
+    /**
+     * Create compact copy of alignment held on the heap.
+     *
+     * @param alignment alignment to copy
+     */
+    public CompactAlignment(Alignment alignment) {
+        this(alignment, null);
+    }
+
+    /**
+     * Create compact copy of alignment.
+     *
+     * @param alignment alignment to copy
+     * @param file file to which data is written and from which it is
+     *             memory-mapped, or null to hold data on the heap
+     */
+    public CompactAlignment(Alignment alignment, File file) {
+        taxonCount = alignment.getTaxonCount();
+        siteCount = alignment.getSiteCount();
+        sitesPerSegment = Math.max(1, MAX_SEGMENT_SIZE/taxonCount);
+
+        segments = new ByteBuffer[(siteCount + sitesPerSegment - 1)/sitesPerSegment];
+
+        if (file == null) {
+            for (int s=0; s<segments.length; s++)
+                segments[s] = ByteBuffer.allocate(getSegmentSize(s));
+            fill(alignment);
+        } else {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                raf.setLength((long)siteCount*taxonCount);
+                for (int s=0; s<segments.length; s++) {
+                    segments[s] = channel.map(FileChannel.MapMode.READ_WRITE,
+                            (long)s*sitesPerSegment*taxonCount, getSegmentSize(s));
+                }
+                fill(alignment);
+            } catch (IOException e) {
+                throw new RuntimeException("Error mapping compact alignment " +
+                        "file " + file + ".", e);
+            }
+        }
+    }
+
+    /**
+     * @param segment segment index
+     * @return size of segment in bytes
+     */
+    private int getSegmentSize(int segment) {
+        int firstSite = segment*sitesPerSegment;
+        return Math.min(sitesPerSegment, siteCount - firstSite)*taxonCount;
+    }
+
+    /**
+     * Copy character codes from alignment.
+     *
+     * @param alignment alignment
+     */
+    private void fill(Alignment alignment) {
+        for (int j=0; j<siteCount; j++) {
+            int[] pattern = alignment.getPattern(alignment.getPatternIndex(j));
+            ByteBuffer segment = segments[j/sitesPerSegment];
+            int offset = (j%sitesPerSegment)*taxonCount;
+            for (int t=0; t<taxonCount; t++) {
+                if (pattern[t] < 0 || pattern[t] > 255)
+                    throw new IllegalArgumentException("Character code "
+                            + pattern[t] + " cannot be held in a compact " +
+                            "alignment.");
+                segment.put(offset + t, (byte)pattern[t]);
+            }
+        }
+    }
+
+    /**
+     * @return number of taxa
+     */
+    public int getTaxonCount() {
+        return taxonCount;
+    }
+
+    /**
+     * @return number of sites
+     */
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    /**
+     * Obtain the characters at a site.  The returned buffer shares the
+     * underlying data, and as ByteBuffer equality and hash codes depend
+     * only on the remaining content it can be used directly as a key
+     * when counting site patterns.
+     *
+     * @param site site index
+     * @return read-only buffer holding character of each taxon at site
+     */
+    public ByteBuffer getSite(int site) {
+        ByteBuffer buf = segments[site/sitesPerSegment].asReadOnlyBuffer();
+        int offset = (site%sitesPerSegment)*taxonCount;
+        buf.limit(offset + taxonCount);
+        buf.position(offset);
+        return buf.slice();
+    }
+
+    /**
+     * Decode the characters at a site.
+     *
+     * @param siteData buffer obtained from getSite()
+     * @param pattern array to hold character code of each taxon
+     */
+    public void getPattern(ByteBuffer siteData, int[] pattern) {
+        for (int t=0; t<taxonCount; t++)
+            pattern[t] = siteData.get(t) & 0xff;
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model.likelihood;
+
+import beast.evolution.likelihood.LikelihoodCore;
+
+/**
+ * Likelihood core which holds partials and transition matrices in single
+ * precision, halving the memory and bandwidth required relative to
+ * BeerLikelihoodCore.  Pruning otherwise follows BeerLikelihoodCore:
+ * states outside the range [0,nStates) are treated as missing data.
+ *
+ * To avoid underflow, the partials of each pattern at each node are
+ * rescaled by a power of two whenever their maximum falls below a
+ * threshold.  Powers of two are used so that rescaling introduces no
+ * rounding error, and the exponents are accumulated into the log
+ * scaling factors returned by getLogScalingFactor().
+ *
+ * As with OffHeapLikelihoodCore, only a single copy of the partials and
+ * matrices is held, as ACGLikelihood stores and restores whole cores
+ * rather than their contents.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class FloatLikelihoodCore extends LikelihoodCore {
+
+    private static final float SCALING_THRESHOLD = 0x1p-20f;
+
+    protected final int nStates;
+
+    protected int nNodes, nPatterns, nMatrices, partialsSize, matrixSize;
+    protected boolean integrateCategories;
+
+    protected float[][] partials, matrices;
+    protected int[][] states;
+    protected int[][] scaleExponents;
+
+    protected int[] scaleExponentSums;
+
+    /**
+     * @param nStates number of states
+     */
+    public FloatLikelihoodCore(int nStates) {
+        this.nStates = nStates;
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount,
+                           boolean integrateCategories, boolean useAmbiguities) {
+        this.nNodes = nodeCount;
+        this.nPatterns = patternCount;
+        this.nMatrices = matrixCount;
+        this.integrateCategories = integrateCategories;
+
+        partialsSize = patternCount * nStates * (integrateCategories ? matrixCount : 1);
+        matrixSize = nStates * nStates;
+
+        partials = new float[nodeCount][];
+        states = new int[nodeCount][];
+        scaleExponents = new int[nodeCount][];
+        matrices = new float[nodeCount][matrixCount * matrixSize];
+
+        scaleExponentSums = new int[patternCount];
+    }
+
+    @Override
+    public void finalize() throws Throwable {
+        partials = null;
+        states = null;
+        scaleExponents = null;
+        matrices = null;
+    }
+
+    @Override
+    public void createNodePartials(int nodeIndex) {
+        if (partials[nodeIndex] != null)
+            return;
+
+        partials[nodeIndex] = new float[partialsSize];
+        scaleExponents[nodeIndex] = new int[nPatterns];
+    }
+
+    @Override
+    public void setNodePartials(int nodeIndex, double[] partials) {
+        createNodePartials(nodeIndex);
+
+        float[] dest = this.partials[nodeIndex];
+        if (partials.length < partialsSize) {
+            int k = 0;
+            for (int i=0; i<nMatrices; i++) {
+                for (int j=0; j<partials.length; j++)
+                    dest[k++] = (float)partials[j];
+            }
+        } else {
+            for (int j=0; j<partialsSize; j++)
+                dest[j] = (float)partials[j];
+        }
+    }
+
+    @Override
+    public void getNodePartials(int nodeIndex, double[] partials) {
+        for (int j=0; j<partialsSize; j++)
+            partials[j] = this.partials[nodeIndex][j];
+    }
+
+    @Override
+    public void setNodeStates(int nodeIndex, int[] states) {
+        if (this.states[nodeIndex] == null)
+            this.states[nodeIndex] = new int[nPatterns];
+
+        System.arraycopy(states, 0, this.states[nodeIndex], 0, nPatterns);
+    }
+
+    @Override
+    public void getNodeStates(int nodeIndex, int[] states) {
+        System.arraycopy(this.states[nodeIndex], 0, states, 0, nPatterns);
+    }
+
+    @Override
+    public void setNodeMatrixForUpdate(int nodeIndex) { }
+
+    @Override
+    public void setNodeStatesForUpdate(int nodeIndex) { }
+
+    @Override
+    public void setNodePartialsForUpdate(int nodeIndex) { }
+
+    @Override
+    public void setNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+        int offset = matrixIndex * matrixSize;
+        for (int i=0; i<matrixSize; i++)
+            matrices[nodeIndex][offset + i] = (float)matrix[i];
+    }
+
+    @Override
+    public void getNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+        int offset = matrixIndex * matrixSize;
+        for (int i=0; i<matrixSize; i++)
+            matrix[i] = matrices[nodeIndex][offset + i];
+    }
+
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        if (states[nodeIndex1] != null) {
+            if (states[nodeIndex2] != null) {
+                calculateStatesStatesPruning(
+                        states[nodeIndex1], matrices[nodeIndex1],
+                        states[nodeIndex2], matrices[nodeIndex2],
+                        partials[nodeIndex3]);
+            } else {
+                calculateStatesPartialsPruning(
+                        states[nodeIndex1], matrices[nodeIndex1],
+                        partials[nodeIndex2], matrices[nodeIndex2],
+                        partials[nodeIndex3]);
+            }
+        } else {
+            if (states[nodeIndex2] != null) {
+                calculateStatesPartialsPruning(
+                        states[nodeIndex2], matrices[nodeIndex2],
+                        partials[nodeIndex1], matrices[nodeIndex1],
+                        partials[nodeIndex3]);
+            } else {
+                calculatePartialsPartialsPruning(
+                        partials[nodeIndex1], matrices[nodeIndex1],
+                        partials[nodeIndex2], matrices[nodeIndex2],
+                        partials[nodeIndex3]);
+            }
+        }
+
+        scalePartials(nodeIndex3);
+    }
+
+    protected void calculateStatesStatesPruning(int[] states1, float[] matrices1,
+                                                int[] states2, float[] matrices2,
+                                                float[] partials3) {
+        int v = 0;
+        for (int l = 0; l < nMatrices; l++) {
+            for (int k = 0; k < nPatterns; k++) {
+                int state1 = states1[k];
+                int state2 = states2[k];
+
+                int w = l * matrixSize;
+                for (int i = 0; i < nStates; i++) {
+                    float p1 = state1 < nStates ? matrices1[w + state1] : 1.0f;
+                    float p2 = state2 < nStates ? matrices2[w + state2] : 1.0f;
+                    partials3[v] = p1 * p2;
+
+                    v++;
+                    w += nStates;
+                }
+            }
+        }
+    }
+
+    protected void calculateStatesPartialsPruning(int[] states1, float[] matrices1,
+                                                  float[] partials2, float[] matrices2,
+                                                  float[] partials3) {
+        int u = 0;
+        int v = 0;
+        for (int l = 0; l < nMatrices; l++) {
+            for (int k = 0; k < nPatterns; k++) {
+                int state1 = states1[k];
+
+                int w = l * matrixSize;
+                for (int i = 0; i < nStates; i++) {
+                    float tmp = state1 < nStates ? matrices1[w + state1] : 1.0f;
+
+                    float sum = 0.0f;
+                    for (int j = 0; j < nStates; j++)
+                        sum += matrices2[w + j] * partials2[v + j];
+
+                    partials3[u] = tmp * sum;
+                    u++;
+                    w += nStates;
+                }
+
+                v += nStates;
+            }
+        }
+    }
+
+    protected void calculatePartialsPartialsPruning(float[] partials1, float[] matrices1,
+                                                    float[] partials2, float[] matrices2,
+                                                    float[] partials3) {
+        int u = 0;
+        int v = 0;
+        for (int l = 0; l < nMatrices; l++) {
+            for (int k = 0; k < nPatterns; k++) {
+
+                int w = l * matrixSize;
+                for (int i = 0; i < nStates; i++) {
+                    float sum1 = 0.0f, sum2 = 0.0f;
+                    for (int j = 0; j < nStates; j++) {
+                        sum1 += matrices1[w + j] * partials1[v + j];
+                        sum2 += matrices2[w + j] * partials2[v + j];
+                    }
+
+                    partials3[u] = sum1 * sum2;
+                    u++;
+                    w += nStates;
+                }
+
+                v += nStates;
+            }
+        }
+    }
+
+    /**
+     * Rescale the partials of each pattern at a node by a power of two
+     * if their maximum over states and categories is below the scaling
+     * threshold.
+     *
+     * @param nodeIndex index of node
+     */
+    protected void scalePartials(int nodeIndex) {
+        float[] nodePartials = partials[nodeIndex];
+        int[] nodeExponents = scaleExponents[nodeIndex];
+        int categoryStride = nPatterns * nStates;
+
+        for (int k = 0; k < nPatterns; k++) {
+            float max = 0.0f;
+            for (int l = 0; l < nMatrices; l++) {
+                int v = l * categoryStride + k * nStates;
+                for (int i = 0; i < nStates; i++)
+                    max = Math.max(max, nodePartials[v + i]);
+            }
+
+            if (max >= SCALING_THRESHOLD || max == 0.0f) {
+                nodeExponents[k] = 0;
+                continue;
+            }
+
+            int exponent = Math.getExponent(max);
+            float factor = Math.scalb(1.0f, -exponent);
+            for (int l = 0; l < nMatrices; l++) {
+                int v = l * categoryStride + k * nStates;
+                for (int i = 0; i < nStates; i++)
+                    nodePartials[v + i] *= factor;
+            }
+
+            nodeExponents[k] = exponent;
+        }
+    }
+
+    @Override
+    public void integratePartials(int nodeIndex, double[] proportions, double[] outPartials) {
+        float[] nodePartials = partials[nodeIndex];
+
+        int u = 0;
+        for (int k = 0; k < nPatterns; k++) {
+            for (int i = 0; i < nStates; i++) {
+                outPartials[u] = nodePartials[u] * proportions[0];
+                u++;
+            }
+        }
+
+        for (int l = 1; l < nMatrices; l++) {
+            u = 0;
+            int v = l * nPatterns * nStates;
+            for (int k = 0; k < nPatterns; k++) {
+                for (int i = 0; i < nStates; i++) {
+                    outPartials[u] += nodePartials[v] * proportions[l];
+                    u++;
+                    v++;
+                }
+            }
+        }
+
+        // All nodes below the root have now been pruned, so the total
+        // scaling applied to each pattern is fixed.
+        sumScaleExponents();
+    }
+
+    /**
+     * Sum the scaling exponents of each pattern over all nodes.
+     */
+    protected void sumScaleExponents() {
+        for (int k = 0; k < nPatterns; k++)
+            scaleExponentSums[k] = 0;
+
+        for (int[] nodeExponents : scaleExponents) {
+            if (nodeExponents == null)
+                continue;
+
+            for (int k = 0; k < nPatterns; k++)
+                scaleExponentSums[k] += nodeExponents[k];
+        }
+    }
+
+    @Override
+    public void calculateLogLikelihoods(double[] partials, double[] frequencies,
+                                        double[] outLogLikelihoods) {
+        int v = 0;
+        for (int k = 0; k < nPatterns; k++) {
+            double sum = 0.0;
+            for (int i = 0; i < nStates; i++) {
+                sum += frequencies[i] * partials[v];
+                v++;
+            }
+            outLogLikelihoods[k] = Math.log(sum) + getLogScalingFactor(k);
+        }
+    }
+
+    /**
+     * Partials held by this core are rescaled automatically whenever
+     * they approach underflow, so the requested scale is ignored.
+     *
+     * @param scale ignored
+     */
+    @Override
+    public void setUseScaling(double scale) {
+    }
+
+    /**
+     * @param patternIndex index of pattern
+     * @return log of factor by which the root partials of the pattern
+     * must be multiplied to undo scaling, as of the last call to
+     * integratePartials()
+     */
+    @Override
+    public double getLogScalingFactor(int patternIndex) {
+        return scaleExponentSums[patternIndex] * Math.log(2.0);
+    }
+
+    // ACGLikelihood stores and restores whole cores, so there is no
+    // second copy of the partials or matrices to swap.
+
+    @Override
+    public void store() { }
+
+    @Override
+    public void unstore() { }
+
+    @Override
+    public void restore() { }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model.likelihood;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Arena of off-heap memory from which likelihood cores draw their
+ * partials, matrices and states.  Memory is carved from large direct
+ * ByteBuffer slabs in blocks whose sizes are rounded up to powers of two.
+ * Freed blocks are kept on a free list for their size and handed out
+ * again in preference to carving new blocks, so slabs are never
+ * returned to the operating system while the arena is in use.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class OffHeapArena {
+
+    private static final int MIN_BLOCK_SIZE = 64;
+
+    private final int slabSize;
+    private ByteBuffer currentSlab;
+
+    private final Map<Integer, Deque<ByteBuffer>> freeBlocks = new HashMap<>();
+
+    private long allocatedBytes, usedBytes;
+
+    /**
+     * @param slabSize size in bytes of each slab
+     */
+    public OffHeapArena(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    public OffHeapArena() {
+        this(1 << 26);
+    }
+
+    /**
+     * @param size requested block size in bytes
+     * @return size class (a power of two) used to hold block
+     */
+    private static int getBlockSize(int size) {
+        if (size <= MIN_BLOCK_SIZE)
+            return MIN_BLOCK_SIZE;
+
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * Allocate a block of at least the given size.  The contents of the
+     * block are undefined.
+     *
+     * @param size size in bytes
+     * @return block, with position zero and limit equal to size
+     */
+    public synchronized ByteBuffer allocate(int size) {
+        int blockSize = getBlockSize(size);
+
+        ByteBuffer block;
+        Deque<ByteBuffer> free = freeBlocks.get(blockSize);
+        if (free != null && !free.isEmpty()) {
+            block = free.pop();
+        } else if (blockSize > slabSize) {
+            block = ByteBuffer.allocateDirect(blockSize);
+            allocatedBytes += blockSize;
+        } else {
+            if (currentSlab == null || currentSlab.remaining() < blockSize) {
+                currentSlab = ByteBuffer.allocateDirect(slabSize);
+                allocatedBytes += slabSize;
+            }
+
+            currentSlab.limit(currentSlab.position() + blockSize);
+            block = currentSlab.slice();
+            currentSlab.position(currentSlab.limit());
+            currentSlab.limit(currentSlab.capacity());
+        }
+
+        usedBytes += blockSize;
+
+        block.clear();
+        block.limit(size);
+        return block.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Return a block to the arena.  The block must have been obtained
+     * from this arena and must not be used after it is freed.
+     *
+     * @param block block to free
+     */
+    public synchronized void free(ByteBuffer block) {
+        int blockSize = block.capacity();
+        freeBlocks.computeIfAbsent(blockSize, k -> new ArrayDeque<>()).push(block);
+        usedBytes -= blockSize;
+    }
+
+    /**
+     * @return total off-heap memory reserved by the arena, in bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return off-heap memory currently handed out by the arena, in bytes
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model.likelihood;
+
+import beast.evolution.likelihood.LikelihoodCore;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Likelihood core which keeps partials, transition matrices and leaf
+ * states in off-heap memory drawn from an OffHeapArena, so that the
+ * heap holds only small buffer handles.  Pruning follows
+ * BeerLikelihoodCore exactly: states outside the range [0,nStates) are
+ * treated as missing data.
+ *
+ * Unlike BeerLikelihoodCore, only a single copy of the partials and
+ * matrices is held, as ACGLikelihood stores and restores whole cores
+ * rather than their contents.  Memory must be returned to the arena by
+ * calling release() once the core is no longer required.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class OffHeapLikelihoodCore extends LikelihoodCore {
+
+    protected final OffHeapArena arena;
+    protected final int nStates;
+
+    protected int nNodes, nPatterns, nMatrices, partialsSize, matrixSize;
+    protected boolean integrateCategories;
+
+    protected ByteBuffer[] partialsBlocks, matrixBlocks, statesBlocks;
+    protected DoubleBuffer[] partials, matrices;
+    protected IntBuffer[] states;
+
+    /**
+     * @param arena arena from which memory is drawn
+     * @param nStates number of states
+     */
+    public OffHeapLikelihoodCore(OffHeapArena arena, int nStates) {
+        this.arena = arena;
+        this.nStates = nStates;
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount,
+                           boolean integrateCategories, boolean useAmbiguities) {
+        release();
+
+        this.nNodes = nodeCount;
+        this.nPatterns = patternCount;
+        this.nMatrices = matrixCount;
+        this.integrateCategories = integrateCategories;
+
+        partialsSize = patternCount * nStates * (integrateCategories ? matrixCount : 1);
+        matrixSize = nStates * nStates;
+
+        partialsBlocks = new ByteBuffer[nodeCount];
+        partials = new DoubleBuffer[nodeCount];
+        statesBlocks = new ByteBuffer[nodeCount];
+        states = new IntBuffer[nodeCount];
+
+        matrixBlocks = new ByteBuffer[nodeCount];
+        matrices = new DoubleBuffer[nodeCount];
+        for (int i=0; i<nodeCount; i++) {
+            matrixBlocks[i] = arena.allocate(matrixCount * matrixSize * Double.BYTES);
+            matrices[i] = matrixBlocks[i].asDoubleBuffer();
+        }
+    }
+
+    /**
+     * Return all memory held by this core to the arena.
+     */
+    public void release() {
+        if (partialsBlocks == null)
+            return;
+
+        for (ByteBuffer[] blocks : new ByteBuffer[][] {partialsBlocks, matrixBlocks, statesBlocks}) {
+            for (int i=0; i<blocks.length; i++) {
+                if (blocks[i] != null) {
+                    arena.free(blocks[i]);
+                    blocks[i] = null;
+                }
+            }
+        }
+
+        partialsBlocks = null;
+        matrixBlocks = null;
+        statesBlocks = null;
+        partials = null;
+        matrices = null;
+        states = null;
+    }
+
+    @Override
+    public void finalize() throws Throwable {
+        release();
+    }
+
+    @Override
+    public void createNodePartials(int nodeIndex) {
+        if (partials[nodeIndex] != null)
+            return;
+
+        partialsBlocks[nodeIndex] = arena.allocate(partialsSize * Double.BYTES);
+        partials[nodeIndex] = partialsBlocks[nodeIndex].asDoubleBuffer();
+    }
+
+    @Override
+    public void setNodePartials(int nodeIndex, double[] partials) {
+        createNodePartials(nodeIndex);
+
+        DoubleBuffer dest = this.partials[nodeIndex];
+        if (partials.length < partialsSize) {
+            int k = 0;
+            for (int i=0; i<nMatrices; i++) {
+                for (int j=0; j<partials.length; j++)
+                    dest.put(k++, partials[j]);
+            }
+        } else {
+            for (int j=0; j<partialsSize; j++)
+                dest.put(j, partials[j]);
+        }
+    }
+
+    @Override
+    public void getNodePartials(int nodeIndex, double[] partials) {
+        for (int j=0; j<partialsSize; j++)
+            partials[j] = this.partials[nodeIndex].get(j);
+    }
+
+    @Override
+    public void setNodeStates(int nodeIndex, int[] states) {
+        if (this.states[nodeIndex] == null) {
+            statesBlocks[nodeIndex] = arena.allocate(nPatterns * Integer.BYTES);
+            this.states[nodeIndex] = statesBlocks[nodeIndex].asIntBuffer();
+        }
+
+        for (int k=0; k<nPatterns; k++)
+            this.states[nodeIndex].put(k, states[k]);
+    }
+
+    @Override
+    public void getNodeStates(int nodeIndex, int[] states) {
+        for (int k=0; k<nPatterns; k++)
+            states[k] = this.states[nodeIndex].get(k);
+    }
+
+    @Override
+    public void setNodeMatrixForUpdate(int nodeIndex) { }
+
+    @Override
+    public void setNodeStatesForUpdate(int nodeIndex) { }
+
+    @Override
+    public void setNodePartialsForUpdate(int nodeIndex) { }
+
+    @Override
+    public void setNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+        int offset = matrixIndex * matrixSize;
+        for (int i=0; i<matrixSize; i++)
+            matrices[nodeIndex].put(offset + i, matrix[i]);
+    }
+
+    @Override
+    public void getNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+        int offset = matrixIndex * matrixSize;
+        for (int i=0; i<matrixSize; i++)
+            matrix[i] = matrices[nodeIndex].get(offset + i);
+    }
+
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        if (states[nodeIndex1] != null) {
+            if (states[nodeIndex2] != null) {
+                calculateStatesStatesPruning(
+                        states[nodeIndex1], matrices[nodeIndex1],
+                        states[nodeIndex2], matrices[nodeIndex2],
+                        partials[nodeIndex3]);
+            } else {
+                calculateStatesPartialsPruning(
+                        states[nodeIndex1], matrices[nodeIndex1],
+                        partials[nodeIndex2], matrices[nodeIndex2],
+                        partials[nodeIndex3]);
+            }
+        } else {
+            if (states[nodeIndex2] != null) {
+                calculateStatesPartialsPruning(
+                        states[nodeIndex2], matrices[nodeIndex2],
+                        partials[nodeIndex1], matrices[nodeIndex1],
+                        partials[nodeIndex3]);
+            } else {
+                calculatePartialsPartialsPruning(
+                        partials[nodeIndex1], matrices[nodeIndex1],
+                        partials[nodeIndex2], matrices[nodeIndex2],
+                        partials[nodeIndex3]);
+            }
+        }
+    }
+
+    protected void calculateStatesStatesPruning(IntBuffer states1, DoubleBuffer matrices1,
+                                                IntBuffer states2, DoubleBuffer matrices2,
+                                                DoubleBuffer partials3) {
+        int v = 0;
+        for (int l = 0; l < nMatrices; l++) {
+            for (int k = 0; k < nPatterns; k++) {
+                int state1 = states1.get(k);
+                int state2 = states2.get(k);
+
+                int w = l * matrixSize;
+                for (int i = 0; i < nStates; i++) {
+                    double p1 = state1 < nStates ? matrices1.get(w + state1) : 1.0;
+                    double p2 = state2 < nStates ? matrices2.get(w + state2) : 1.0;
+                    partials3.put(v, p1 * p2);
+
+                    v++;
+                    w += nStates;
+                }
+            }
+        }
+    }
+
+    protected void calculateStatesPartialsPruning(IntBuffer states1, DoubleBuffer matrices1,
+                                                  DoubleBuffer partials2, DoubleBuffer matrices2,
+                                                  DoubleBuffer partials3) {
+        int u = 0;
+        int v = 0;
+        for (int l = 0; l < nMatrices; l++) {
+            for (int k = 0; k < nPatterns; k++) {
+                int state1 = states1.get(k);
+
+                int w = l * matrixSize;
+                for (int i = 0; i < nStates; i++) {
+                    double tmp = state1 < nStates ? matrices1.get(w + state1) : 1.0;
+
+                    double sum = 0.0;
+                    for (int j = 0; j < nStates; j++)
+                        sum += matrices2.get(w + j) * partials2.get(v + j);
+
+                    partials3.put(u, tmp * sum);
+                    u++;
+                    w += nStates;
+                }
+
+                v += nStates;
+            }
+        }
+    }
+
+    protected void calculatePartialsPartialsPruning(DoubleBuffer partials1, DoubleBuffer matrices1,
+                                                    DoubleBuffer partials2, DoubleBuffer matrices2,
+                                                    DoubleBuffer partials3) {
+        int u = 0;
+        int v = 0;
+        for (int l = 0; l < nMatrices; l++) {
+            for (int k = 0; k < nPatterns; k++) {
+
+                int w = l * matrixSize;
+                for (int i = 0; i < nStates; i++) {
+                    double sum1 = 0.0, sum2 = 0.0;
+                    for (int j = 0; j < nStates; j++) {
+                        sum1 += matrices1.get(w + j) * partials1.get(v + j);
+                        sum2 += matrices2.get(w + j) * partials2.get(v + j);
+                    }
+
+                    partials3.put(u, sum1 * sum2);
+                    u++;
+                    w += nStates;
+                }
+
+                v += nStates;
+            }
+        }
+    }
+
+    @Override
+    public void integratePartials(int nodeIndex, double[] proportions, double[] outPartials) {
+        DoubleBuffer nodePartials = partials[nodeIndex];
+
+        int u = 0;
+        for (int k = 0; k < nPatterns; k++) {
+            for (int i = 0; i < nStates; i++) {
+                outPartials[u] = nodePartials.get(u) * proportions[0];
+                u++;
+            }
+        }
+
+        for (int l = 1; l < nMatrices; l++) {
+            u = 0;
+            int v = l * nPatterns * nStates;
+            for (int k = 0; k < nPatterns; k++) {
+                for (int i = 0; i < nStates; i++) {
+                    outPartials[u] += nodePartials.get(v) * proportions[l];
+                    u++;
+                    v++;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void calculateLogLikelihoods(double[] partials, double[] frequencies,
+                                        double[] outLogLikelihoods) {
+        int v = 0;
+        for (int k = 0; k < nPatterns; k++) {
+            double sum = 0.0;
+            for (int i = 0; i < nStates; i++) {
+                sum += frequencies[i] * partials[v];
+                v++;
+            }
+            outLogLikelihoods[k] = Math.log(sum) + getLogScalingFactor(k);
+        }
+    }
+
+    /**
+     * Partials held by this core are never scaled, so the requested
+     * scale is ignored.
+     *
+     * @param scale ignored
+     */
+    @Override
+    public void setUseScaling(double scale) {
+    }
+
+    @Override
+    public double getLogScalingFactor(int patternIndex) {
+        return 0.0;
+    }
+
+    // ACGLikelihood stores and restores whole cores, so there is no
+    // second copy of the partials or matrices to swap.
+
+    @Override
+    public void store() { }
+
+    @Override
+    public void unstore() { }
+
+    @Override
+    public void restore() { }
+}
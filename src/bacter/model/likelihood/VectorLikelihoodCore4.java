@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model.likelihood;
+
+import beast.evolution.likelihood.BeerLikelihoodCore4;
+
+/**
+ * Four-state likelihood core whose pruning kernels use the
+ * jdk.incubator.vector API.  This is the Java 8 version of the class,
+ * which simply inherits the scalar kernels of BeerLikelihoodCore4.  The
+ * vectorized version lives in src-java17 and is placed in the
+ * META-INF/versions/17 layer of the multi-release package jar, where it
+ * takes the place of this class on Java 17 and later.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class VectorLikelihoodCore4 extends BeerLikelihoodCore4 {
+
+    /**
+     * @return true if this class provides vectorized kernels
+     */
+    public static boolean isVectorized() {
+        return false;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model.pop;
+
+/**
+ * Interface for population functions able to evaluate themselves at many
+ * time points in a single pass.  The arguments to each method must be
+ * sorted in ascending order, and results must agree with the
+ * corresponding single-point PopulationFunction methods.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public interface BatchPopulationFunction {
+
+    /**
+     * @param sortedTimes times at which to evaluate population size
+     * @param out array to hold population sizes
+     */
+    void getPopSizes(double[] sortedTimes, double[] out);
+
+    /**
+     * @param sortedTimes times at which to evaluate intensity
+     * @param out array to hold intensities
+     */
+    void getIntensities(double[] sortedTimes, double[] out);
+
+    /**
+     * @param sortedIntensities intensities at which to evaluate inverse
+     * @param out array to hold times
+     */
+    void getInverseIntensities(double[] sortedIntensities, double[] out);
+}
@@ -44,7 +44,8 @@ import java.util.List;
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 @Description("Piecewise constant/linear population function.")
-public class PiecewisePopulationFunction extends PopulationFunction.Abstract implements Loggable {
+public class PiecewisePopulationFunction extends PopulationFunction.Abstract
+        implements BatchPopulationFunction, Loggable {
 
     public Input<RealParameter> popSizesInput = new Input<>("popSizes",
             "Population sizes in intervals", Input.Validate.REQUIRED);
@@ -54,8 +55,11 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
 
     RealParameter popSizes, changeTimes;
 
+    private boolean dirty;
+
     double[] intensities;
     double[] groupBoundaries;
+    double[] popSizeValues;
 
     @Override
     public void initAndValidate() {
@@ -64,6 +68,9 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
 
         groupBoundaries = new double[popSizes.getDimension()];
         intensities = new double[popSizes.getDimension()];
+        popSizeValues = new double[popSizes.getDimension()];
+
+        dirty = true;
 
         super.initAndValidate();
     }
@@ -80,6 +87,12 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
     @Override
     public void prepare() {
 
+        if (!dirty)
+            return;
+
+        for (int i=0; i<popSizeValues.length; i++)
+            popSizeValues[i] = popSizes.getValue(i);
+
         groupBoundaries[0] = 0.0;
         for (int i=1; i<groupBoundaries.length; i++)
             groupBoundaries[i] = changeTimes.getValue(i-1);
@@ -88,22 +101,27 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
 
         for (int i = 1; i < intensities.length; i++) {
             intensities[i] = intensities[i - 1]
-                    + (groupBoundaries[i] - groupBoundaries[i-1]) / popSizes.getValue(i - 1);
+                    + (groupBoundaries[i] - groupBoundaries[i-1]) / popSizeValues[i - 1];
         }
+
+        dirty = false;
     }
 
     @Override
     protected boolean requiresRecalculation() {
+        dirty = true;
         return true;
     }
 
     @Override
     protected void store() {
+        dirty = true;
         super.store();
     }
 
     @Override
     protected void restore() {
+        dirty = true;
         super.restore();
     }
 
@@ -112,17 +130,17 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
         prepare();
 
         if (t <= 0)
-            return popSizes.getValue(0);
+            return popSizeValues[0];
 
         if (t >= groupBoundaries[groupBoundaries.length-1])
-            return popSizes.getValue(popSizes.getDimension()-1);
+            return popSizeValues[popSizeValues.length-1];
 
         int interval = Arrays.binarySearch(groupBoundaries, t);
 
         if (interval<0)
             interval = -(interval + 1) - 1;  // boundary to the left of time.
 
-        return popSizes.getValue(interval);
+        return popSizeValues[interval];
     }
 
     @Override
@@ -130,19 +148,17 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
         prepare();
 
         if (t <= 0 )
-            return -t/popSizes.getValue(0);
+            return -t/popSizeValues[0];
 
         if (t >= groupBoundaries[groupBoundaries.length-1])
-            return intensities[intensities.length-1]
-                    + (t-groupBoundaries[intensities.length-1])
-                    /popSizes.getValue(popSizes.getDimension()-1);
+            return getIntensity(groupBoundaries.length-1, t);
 
         int interval = Arrays.binarySearch(groupBoundaries, t);
 
         if (interval<0)
             interval = -(interval + 1) - 1; // boundary to the left of time.
 
-        return intensities[interval] + (t-groupBoundaries[interval])/popSizes.getValue(interval);
+        return getIntensity(interval, t);
     }
 
     @Override
@@ -150,20 +166,93 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
         prepare();
 
         if (x<=0.0)
-            return -x*popSizes.getValue(0);
+            return -x*popSizeValues[0];
 
         if (x >= intensities[intensities.length-1])
-            return groupBoundaries[groupBoundaries.length-1]
-                    + (x - intensities[intensities.length-1])
-                    *popSizes.getValue(popSizes.getDimension()-1);
+            return getInverseIntensity(intensities.length-1, x);
 
         int interval = Arrays.binarySearch(intensities, x);
 
         if (interval<0)
             interval = -(interval + 1) - 1; // boundary to the left of x
 
+        return getInverseIntensity(interval, x);
+    }
+
+    // BatchPopulationFunction implementation:
+
+    @Override
+    public void getPopSizes(double[] sortedTimes, double[] out) {
+        prepare();
+
+        int lastBoundary = groupBoundaries.length-1;
+        int interval = 0;
+        for (int i=0; i<sortedTimes.length; i++) {
+            double t = sortedTimes[i];
+
+            if (t <= 0)
+                out[i] = popSizeValues[0];
+            else {
+                while (interval < lastBoundary && groupBoundaries[interval+1] <= t)
+                    interval += 1;
+
+                out[i] = popSizeValues[interval];
+            }
+        }
+    }
+
+    @Override
+    public void getIntensities(double[] sortedTimes, double[] out) {
+        prepare();
+
+        int lastBoundary = groupBoundaries.length-1;
+        int interval = 0;
+        for (int i=0; i<sortedTimes.length; i++) {
+            double t = sortedTimes[i];
+
+            if (t <= 0)
+                out[i] = -t/popSizeValues[0];
+            else {
+                while (interval < lastBoundary && groupBoundaries[interval+1] <= t)
+                    interval += 1;
+
+                out[i] = getIntensity(interval, t);
+            }
+        }
+    }
+
+    @Override
+    public void getInverseIntensities(double[] sortedIntensities, double[] out) {
+        prepare();
+
+        int lastBoundary = intensities.length-1;
+        int interval = 0;
+        for (int i=0; i<sortedIntensities.length; i++) {
+            double x = sortedIntensities[i];
+
+            if (x <= 0.0)
+                out[i] = -x*popSizeValues[0];
+            else {
+                while (interval < lastBoundary && intensities[interval+1] <= x)
+                    interval += 1;
+
+                out[i] = getInverseIntensity(interval, x);
+            }
+        }
+    }
+
+    /*
+     * Evaluation within a given interval, which may be the final
+     * semi-infinite interval.  These assume prepare() has been called.
+     */
+
+    private double getIntensity(int interval, double t) {
+        return intensities[interval] + (t-groupBoundaries[interval])/popSizeValues[interval];
+    }
+
+    private double getInverseIntensity(int interval, double x) {
         return groupBoundaries[interval]
-                + (x-intensities[interval])*popSizes.getValue(interval);
+                + (x-intensities[interval])*popSizeValues[interval];
     }
 
     // Loggable implementation:
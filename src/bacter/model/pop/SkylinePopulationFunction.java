@@ -46,7 +46,8 @@ import java.util.List;
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 @Description("Piecewise constant/linear population function.")
-public class SkylinePopulationFunction extends PopulationFunction.Abstract implements Loggable {
+public class SkylinePopulationFunction extends PopulationFunction.Abstract
+        implements BatchPopulationFunction, Loggable {
 
     public Input<ConversionGraph> acgInput = new Input<>("acg",
             "Conversion graph", Input.Validate.REQUIRED);
@@ -77,10 +78,20 @@ public class SkylinePopulationFunction extends PopulationFunction.Abstract imple
     RealParameter popSizes;
     IntegerParameter groupSizes;
 
-    private boolean dirty;
+    private boolean dirty, boundariesDirty, storedDirty;
+    private int firstDirtyPopSizeIdx;
 
-    double[] intensities;
-    double[] groupBoundaries;
+    /**
+     * Version of the CF event list from which the group boundaries were
+     * computed.  Operators query the population function during their
+     * proposals, before requiresRecalculation() is called, so clonal
+     * frame edits are detected by comparing versions in prepare().
+     */
+    private long boundariesVersion = -1, storedBoundariesVersion = -1;
+
+    double[] intensities, storedIntensities;
+    double[] groupBoundaries, storedGroupBoundaries;
+    double[] popSizeValues, storedPopSizeValues;
 
     @Override
     public void initAndValidate() {
@@ -114,8 +125,23 @@ public class SkylinePopulationFunction extends PopulationFunction.Abstract imple
 
         groupBoundaries = new double[groupSizes.getDimension()];
         intensities = new double[groupSizes.getDimension()];
+        popSizeValues = new double[popSizes.getDimension()];
+
+        storedGroupBoundaries = new double[groupBoundaries.length];
+        storedIntensities = new double[intensities.length];
+        storedPopSizeValues = new double[popSizeValues.length];
+
+        makeAllDirty();
+    }
 
+    /**
+     * Mark boundaries, population sizes and intensities as all requiring
+     * recomputation.
+     */
+    private void makeAllDirty() {
         dirty = true;
+        boundariesDirty = true;
+        firstDirtyPopSizeIdx = 0;
     }
 
     @Override
@@ -131,9 +157,67 @@ public class SkylinePopulationFunction extends PopulationFunction.Abstract imple
     @Override
     public void prepare() {
 
+        if (acg.getCFEventList().getVersion() != boundariesVersion) {
+            boundariesDirty = true;
+            dirty = true;
+        }
+
         if (!dirty)
             return;
 
+        // Index of first intensity requiring recomputation.
+        int firstDirtyIntensityIdx = intensities.length;
+
+        for (int i=firstDirtyPopSizeIdx; i<popSizeValues.length; i++) {
+            double popSize = popSizes.getValue(i);
+            if (popSize != popSizeValues[i]) {
+                popSizeValues[i] = popSize;
+                firstDirtyIntensityIdx = Math.min(firstDirtyIntensityIdx, i);
+            }
+        }
+
+        if (boundariesDirty) {
+            boundariesVersion = acg.getCFEventList().getVersion();
+            int firstChangedBoundaryIdx = updateGroupBoundaries();
+            firstDirtyIntensityIdx = Math.min(firstDirtyIntensityIdx, firstChangedBoundaryIdx);
+        }
+
+        // intensities[i] depends only on boundaries i-1 and i and on
+        // population sizes i-1 and i.
+        intensities[0] = 0.0;
+
+        if (!piecewiseLinearInput.get()) {
+            for (int i = Math.max(1, firstDirtyIntensityIdx); i < intensities.length; i++) {
+                intensities[i] = intensities[i - 1]
+                        + (groupBoundaries[i] - groupBoundaries[i-1]) / popSizeValues[i - 1];
+            }
+        } else {
+            for (int i = Math.max(1, firstDirtyIntensityIdx); i < intensities.length; i++) {
+
+                if (popSizeValues[i - 1] != popSizeValues[i])
+                    intensities[i] = intensities[i - 1]
+                            + (groupBoundaries[i] - groupBoundaries[i - 1])
+                            / (popSizeValues[i] - popSizeValues[i - 1])
+                            * Math.log(popSizeValues[i] / popSizeValues[i - 1]);
+                else
+                    intensities[i] = intensities[i-1]
+                            + (groupBoundaries[i] - groupBoundaries[i-1])/popSizeValues[i-1];
+            }
+        }
+
+        dirty = false;
+        boundariesDirty = false;
+        firstDirtyPopSizeIdx = popSizeValues.length;
+    }
+
+    /**
+     * Recompute group boundaries from the clonal frame and group sizes.
+     *
+     * @return index of first boundary whose value changed
+     */
+    private int updateGroupBoundaries() {
+        int firstChangedIdx = groupBoundaries.length;
+
         groupBoundaries[0] = 0.0;
         if (nGridPointsInput.get() == null) {
 
@@ -147,55 +231,97 @@ public class SkylinePopulationFunction extends PopulationFunction.Abstract imple
                         cumulant += 1;
                 } while (cumulant < groupSizes.getValue(i-1));
 
-                groupBoundaries[i] = cfEvents.get(lastEventIdx).getHeight();
+                double boundary = cfEvents.get(lastEventIdx).getHeight();
+                if (boundary != groupBoundaries[i]) {
+                    groupBoundaries[i] = boundary;
+                    firstChangedIdx = Math.min(firstChangedIdx, i);
+                }
             }
         } else {
             for (int i=1; i<groupBoundaries.length; i++) {
-                groupBoundaries[i] = groupBoundaries[i-1]
+                double boundary = groupBoundaries[i-1]
                         + acg.getRoot().getHeight()*relativeOriginHeightInput.get()
                         *groupSizes.getValue(i-1)/nGridPointsInput.get();
+                if (boundary != groupBoundaries[i]) {
+                    groupBoundaries[i] = boundary;
+                    firstChangedIdx = Math.min(firstChangedIdx, i);
+                }
             }
         }
 
-        intensities[0] = 0.0;
+        return firstChangedIdx;
+    }
 
-        if (!piecewiseLinearInput.get()) {
-            for (int i = 1; i < intensities.length; i++) {
-                intensities[i] = intensities[i - 1]
-                        + (groupBoundaries[i] - groupBoundaries[i-1]) / popSizes.getValue(i - 1);
-            }
-        } else {
-            for (int i = 1; i < intensities.length; i++) {
+    @Override
+    protected boolean requiresRecalculation() {
+        boolean changed = false;
+
+        // Boundaries depend only on the clonal frame, so edits confined
+        // to conversions leave them untouched.  Clonal frame edits are
+        // also picked up by prepare().
+        if (groupSizes.somethingIsDirty()
+                || (acg.somethingIsDirty()
+                && (!acg.editsAreRecorded() || acg.clonalFrameWasEdited()))) {
+            boundariesDirty = true;
+            changed = true;
+        }
 
-                if (!popSizes.getValue(i - 1).equals(popSizes.getValue(i)))
-                    intensities[i] = intensities[i - 1]
-                            + (groupBoundaries[i] - groupBoundaries[i - 1])
-                            / (popSizes.getValue(i) - popSizes.getValue(i - 1))
-                            * Math.log(popSizes.getValue(i) / popSizes.getValue(i - 1));
-                else
-                    intensities[i] = intensities[i-1]
-                            + (groupBoundaries[i] - groupBoundaries[i-1])/popSizes.getValue(i-1);
+        if (popSizes.somethingIsDirty()) {
+            int firstDirtyIdx = 0;
+            for (int i=0; i<popSizes.getDimension(); i++) {
+                if (popSizes.isDirty(i)) {
+                    firstDirtyIdx = i;
+                    break;
+                }
             }
+            firstDirtyPopSizeIdx = Math.min(firstDirtyPopSizeIdx, firstDirtyIdx);
+            changed = true;
         }
 
-        dirty = false;
-    }
+        if (changed)
+            dirty = true;
 
-    @Override
-    protected boolean requiresRecalculation() {
-        dirty = true;
-        return true;
+        return changed;
     }
 
     @Override
     protected void store() {
-        dirty = true;
+        System.arraycopy(groupBoundaries, 0, storedGroupBoundaries, 0, groupBoundaries.length);
+        System.arraycopy(intensities, 0, storedIntensities, 0, intensities.length);
+        System.arraycopy(popSizeValues, 0, storedPopSizeValues, 0, popSizeValues.length);
+        storedDirty = dirty;
+        storedBoundariesVersion = boundariesVersion;
+
         super.store();
     }
 
     @Override
     protected void restore() {
-        dirty = true;
+        double[] tmp = groupBoundaries;
+        groupBoundaries = storedGroupBoundaries;
+        storedGroupBoundaries = tmp;
+
+        tmp = intensities;
+        intensities = storedIntensities;
+        storedIntensities = tmp;
+
+        tmp = popSizeValues;
+        popSizeValues = storedPopSizeValues;
+        storedPopSizeValues = tmp;
+
+        long tmpVersion = boundariesVersion;
+        boundariesVersion = storedBoundariesVersion;
+        storedBoundariesVersion = tmpVersion;
+
+        // Stored arrays were only valid if they were up to date when stored.
+        if (storedDirty) {
+            makeAllDirty();
+        } else {
+            dirty = false;
+            boundariesDirty = false;
+            firstDirtyPopSizeIdx = popSizeValues.length;
+        }
+
         super.restore();
     }
 
@@ -204,27 +330,17 @@ public class SkylinePopulationFunction extends PopulationFunction.Abstract imple
         prepare();
 
         if (t <= 0)
-            return popSizes.getValue(0);
+            return popSizeValues[0];
 
         if (t >= groupBoundaries[groupBoundaries.length-1])
-            return popSizes.getValue(popSizes.getDimension()-1);
+            return popSizeValues[popSizeValues.length-1];
 
         int interval = Arrays.binarySearch(groupBoundaries, t);
 
         if (interval<0)
             interval = -(interval + 1) - 1;  // boundary to the left of time.
 
-        if (!piecewiseLinearInput.get())
-            return popSizes.getValue(interval);
-        else {
-            double N0 = popSizes.getValue(interval);
-            double N1 = popSizes.getValue(interval+1);
-
-            double t0 = groupBoundaries[interval];
-            double t1 = groupBoundaries[interval+1];
-
-            return N0 + (t - t0)/(t1 - t0)*(N1 - N0);
-        }
+        return getPopSize(interval, t);
     }
 
     @Override
@@ -232,34 +348,17 @@ public class SkylinePopulationFunction extends PopulationFunction.Abstract imple
         prepare();
 
         if (t <= 0 )
-            return -t/popSizes.getValue(0);
+            return -t/popSizeValues[0];
 
         if (t >= groupBoundaries[groupBoundaries.length-1])
-            return intensities[intensities.length-1]
-                    + (t-groupBoundaries[intensities.length-1])
-                    /popSizes.getValue(popSizes.getDimension()-1);
+            return getIntensityBeyondLastBoundary(t);
 
         int interval = Arrays.binarySearch(groupBoundaries, t);
 
         if (interval<0)
             interval = -(interval + 1) - 1; // boundary to the left of time.
 
-        if (!piecewiseLinearInput.get())
-            return intensities[interval] + (t-groupBoundaries[interval])/popSizes.getValue(interval);
-        else {
-            double N0 = popSizes.getValue(interval);
-            double N1 = popSizes.getValue(interval+1);
-
-            double t0 = groupBoundaries[interval];
-            double t1 = groupBoundaries[interval+1];
-
-            double N = N0 + (t - t0)/(t1 - t0)*(N1 - N0);
-
-            if (N1 != N0)
-                return intensities[interval] + (t1-t0)/(N1-N0)*Math.log(N/N0);
-            else
-                return intensities[interval] + (t - t0)/N0;
-        }
+        return getIntensity(interval, t);
     }
 
     @Override
@@ -267,24 +366,133 @@ public class SkylinePopulationFunction extends PopulationFunction.Abstract imple
         prepare();
 
         if (x<=0.0)
-            return -x*popSizes.getValue(0);
+            return -x*popSizeValues[0];
 
         if (x >= intensities[intensities.length-1])
-            return groupBoundaries[groupBoundaries.length-1]
-                    + (x - intensities[intensities.length-1])
-                    *popSizes.getValue(popSizes.getDimension()-1);
+            return getInverseIntensityBeyondLastBoundary(x);
 
         int interval = Arrays.binarySearch(intensities, x);
 
         if (interval<0)
             interval = -(interval + 1) - 1; // boundary to the left of x
 
+        return getInverseIntensity(interval, x);
+    }
+
+    // BatchPopulationFunction implementation:
+
+    @Override
+    public void getPopSizes(double[] sortedTimes, double[] out) {
+        prepare();
+
+        int lastBoundary = groupBoundaries.length-1;
+        int interval = 0;
+        for (int i=0; i<sortedTimes.length; i++) {
+            double t = sortedTimes[i];
+
+            if (t <= 0)
+                out[i] = popSizeValues[0];
+            else if (t >= groupBoundaries[lastBoundary])
+                out[i] = popSizeValues[popSizeValues.length-1];
+            else {
+                while (groupBoundaries[interval+1] <= t)
+                    interval += 1;
+
+                out[i] = getPopSize(interval, t);
+            }
+        }
+    }
+
+    @Override
+    public void getIntensities(double[] sortedTimes, double[] out) {
+        prepare();
+
+        int lastBoundary = groupBoundaries.length-1;
+        int interval = 0;
+        for (int i=0; i<sortedTimes.length; i++) {
+            double t = sortedTimes[i];
+
+            if (t <= 0)
+                out[i] = -t/popSizeValues[0];
+            else if (t >= groupBoundaries[lastBoundary])
+                out[i] = getIntensityBeyondLastBoundary(t);
+            else {
+                while (groupBoundaries[interval+1] <= t)
+                    interval += 1;
+
+                out[i] = getIntensity(interval, t);
+            }
+        }
+    }
+
+    @Override
+    public void getInverseIntensities(double[] sortedIntensities, double[] out) {
+        prepare();
+
+        int lastBoundary = intensities.length-1;
+        int interval = 0;
+        for (int i=0; i<sortedIntensities.length; i++) {
+            double x = sortedIntensities[i];
+
+            if (x <= 0.0)
+                out[i] = -x*popSizeValues[0];
+            else if (x >= intensities[lastBoundary])
+                out[i] = getInverseIntensityBeyondLastBoundary(x);
+            else {
+                while (intensities[interval+1] <= x)
+                    interval += 1;
+
+                out[i] = getInverseIntensity(interval, x);
+            }
+        }
+    }
+
+    /*
+     * Evaluation within a given group.  These assume prepare() has been
+     * called and that the argument lies between the boundaries of the
+     * group.
+     */
+
+    private double getPopSize(int interval, double t) {
+        if (!piecewiseLinearInput.get())
+            return popSizeValues[interval];
+        else {
+            double N0 = popSizeValues[interval];
+            double N1 = popSizeValues[interval+1];
+
+            double t0 = groupBoundaries[interval];
+            double t1 = groupBoundaries[interval+1];
+
+            return N0 + (t - t0)/(t1 - t0)*(N1 - N0);
+        }
+    }
+
+    private double getIntensity(int interval, double t) {
+        if (!piecewiseLinearInput.get())
+            return intensities[interval] + (t-groupBoundaries[interval])/popSizeValues[interval];
+        else {
+            double N0 = popSizeValues[interval];
+            double N1 = popSizeValues[interval+1];
+
+            double t0 = groupBoundaries[interval];
+            double t1 = groupBoundaries[interval+1];
+
+            double N = N0 + (t - t0)/(t1 - t0)*(N1 - N0);
+
+            if (N1 != N0)
+                return intensities[interval] + (t1-t0)/(N1-N0)*Math.log(N/N0);
+            else
+                return intensities[interval] + (t - t0)/N0;
+        }
+    }
+
+    private double getInverseIntensity(int interval, double x) {
         if (!piecewiseLinearInput.get())
             return groupBoundaries[interval]
-                    + (x-intensities[interval])*popSizes.getValue(interval);
+                    + (x-intensities[interval])*popSizeValues[interval];
         else {
-            double N0 = popSizes.getValue(interval);
-            double N1 = popSizes.getValue(interval+1);
+            double N0 = popSizeValues[interval];
+            double N1 = popSizeValues[interval+1];
 
             double t0 = groupBoundaries[interval];
             double t1 = groupBoundaries[interval+1];
@@ -299,6 +507,18 @@ public class SkylinePopulationFunction extends PopulationFunction.Abstract imple
         }
     }
 
+    private double getIntensityBeyondLastBoundary(double t) {
+        return intensities[intensities.length-1]
+                + (t-groupBoundaries[intensities.length-1])
+                /popSizeValues[popSizeValues.length-1];
+    }
+
+    private double getInverseIntensityBeyondLastBoundary(double x) {
+        return groupBoundaries[groupBoundaries.length-1]
+                + (x - intensities[intensities.length-1])
+                *popSizeValues[popSizeValues.length-1];
+    }
+
     // Loggable implementation:
 
     @Override
@@ -106,12 +106,14 @@ public abstract class EdgeCreationOperator extends ACGOperator {
     public double coalesceEdge(Conversion conv) {
         double logP = 0.0;
         
-        List<CFEventList.Event> events = acg.getCFEvents();
+        CFEventList cfEventList = acg.getCFEventList();
+        List<CFEventList.Event> events = cfEventList.getCFEvents();
         
+        double[] intensities = cfEventList.getIntensities(popFunc);
+
         // Locate event immediately below departure point
-        int startIdx = 0;
-        while (events.get(startIdx+1).getHeight()<conv.getHeight1())
-            startIdx += 1;
+        int startIdx = cfEventList.getIntervalIndex(conv.getHeight1());
+        double intensity1 = popFunc.getIntensity(conv.getHeight1());
                 
         // Choose edge length in dimensionless time.
         double u = Randomizer.nextExponential(1.0);
@@ -121,12 +123,12 @@ public abstract class EdgeCreationOperator extends ACGOperator {
             
             CFEventList.Event event = events.get(i);
             
-            double t = Math.max(conv.getHeight1(), event.getHeight());
+            double intensityA = Math.max(intensity1, intensities[i]);
         
             // Determine length of interval in dimensionless time
             double intervalArea;
             if (i<events.size()-1)
-                intervalArea = popFunc.getIntegral(t, events.get(i+1).getHeight());
+                intervalArea = intensities[i+1] - intensityA;
             else
                 intervalArea = Double.POSITIVE_INFINITY;
             
@@ -135,20 +137,11 @@ public abstract class EdgeCreationOperator extends ACGOperator {
                 
                 // Set arrival point in real time
                 conv.setHeight2(popFunc.getInverseIntensity(
-                        popFunc.getIntensity(t) + u/event.getLineageCount()));
+                        intensityA + u/event.getLineageCount()));
                 
                 // Attach to random clonal frame lineage extant at this time
-                int z = Randomizer.nextInt(event.getLineageCount());
-                for (Node node : acg.getNodesAsArray()) {
-                    if (conv.getHeight2()>node.getHeight() &&
-                            (node.isRoot() || conv.getHeight2()<node.getParent().getHeight())) {
-                        if (z==0) {
-                            conv.setNode2(node);
-                            break;
-                        } else
-                            z -= 1;
-                    }
-                }
+                Node[] lineages = cfEventList.getLineages(i);
+                conv.setNode2(lineages[Randomizer.nextInt(lineages.length)]);
 
                 logP += -u + Math.log(1.0/popFunc.getPopSize(conv.getHeight2()));
                 break;
@@ -172,23 +165,9 @@ public abstract class EdgeCreationOperator extends ACGOperator {
     public double getEdgeCoalescenceProb(Conversion conv) {
         double logP = 0.0;
         
-        List<CFEventList.Event> events = acg.getCFEvents();
-        
-        // Find event immediately below departure point
-        int startIdx = 0;
-        while (events.get(startIdx+1).getHeight()<conv.getHeight1())
-            startIdx += 1;
-        
         // Compute probability of edge length and arrival
-        for (int i=startIdx; i<events.size() && events.get(i).getHeight()<conv.getHeight2(); i++) {           
-            double t1 = Math.max(conv.getHeight1(), events.get(i).getHeight());
-            double t2 = conv.getHeight2();
-            if (i<events.size()-1)
-                t2 = Math.min(t2, events.get(i+1).getHeight());
-        
-            double intervalArea = popFunc.getIntegral(t1, t2);
-            logP += -intervalArea*events.get(i).getLineageCount();
-        }
+        logP += -acg.getCFEventList().getLineageIntensityIntegral(popFunc,
+                conv.getHeight1(), conv.getHeight2());
         
         // Probability of single coalescence event
         logP += Math.log(1.0/popFunc.getPopSize(conv.getHeight2()));
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.util;
+
+import bacter.SNPAlignment;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts a nucleotide FASTA alignment into the XML for an equivalent
+ * SNPAlignment, which can then be used to define a Locus.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SNPAlignmentConverter {
+
+    /**
+     * Read sequences from a FASTA file.
+     *
+     * @param fileName name of FASTA file
+     * @param names list to which sequence names are added
+     * @param sequences list to which sequences are added
+     * @throws IOException on error reading file
+     */
+    public static void readFasta(String fileName, List<String> names,
+                                 List<String> sequences) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            StringBuilder sb = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+
+                if (line.startsWith(">")) {
+                    if (sb != null)
+                        sequences.add(sb.toString());
+                    names.add(line.substring(1).trim().split("\\s+")[0]);
+                    sb = new StringBuilder();
+                } else {
+                    if (sb == null)
+                        throw new IOException("FASTA file must begin with a sequence name.");
+                    sb.append(line);
+                }
+            }
+
+            if (sb != null)
+                sequences.add(sb.toString());
+        }
+
+        if (sequences.isEmpty())
+            throw new IOException("No sequences found in FASTA file.");
+
+        for (String sequence : sequences) {
+            if (sequence.length() != sequences.get(0).length())
+                throw new IOException("Sequences in FASTA file are not aligned.");
+        }
+    }
+
+    /**
+     * Write SNPAlignment XML equivalent to the given aligned sequences.
+     *
+     * @param id ID of SNPAlignment
+     * @param names sequence names
+     * @param sequences aligned nucleotide sequences
+     * @param out stream to which XML is written
+     * @throws IllegalArgumentException if the sequences have no variable
+     * sites
+     */
+    public static void writeSNPAlignmentXML(String id, List<String> names,
+                                            List<String> sequences, PrintStream out) {
+        List<Integer> positions = SNPAlignment.getVariablePositions(sequences);
+        if (positions.isEmpty())
+            throw new IllegalArgumentException("Alignment has no variable " +
+                    "sites: use an ordinary alignment instead of an SNPAlignment.");
+
+        StringBuilder positionsString = new StringBuilder();
+        for (int position : positions) {
+            if (positionsString.length()>0)
+                positionsString.append(" ");
+            positionsString.append(position);
+        }
+
+        // Invariant sites take their state from the first sequence.
+        StringBuilder invariantSequence = new StringBuilder(sequences.get(0).toUpperCase());
+        for (int position : positions)
+            invariantSequence.setCharAt(position, '-');
+
+        out.println("<snpAlignment id=\"" + id + "\" spec=\"bacter.SNPAlignment\"");
+        out.println("    positions=\"" + positionsString + "\"");
+        out.println("    invariantSequence=\"" + invariantSequence + "\">");
+        out.println("    <alignment id=\"" + id + "_variable\" spec=\"Alignment\" dataType=\"nucleotide\">");
+        for (int i=0; i<names.size(); i++) {
+            StringBuilder variableSequence = new StringBuilder();
+            for (int position : positions)
+                variableSequence.append(sequences.get(i).charAt(position));
+
+            out.println("        <sequence taxon=\"" + names.get(i)
+                    + "\" value=\"" + variableSequence + "\"/>");
+        }
+        out.println("    </alignment>");
+        out.println("</snpAlignment>");
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: SNPAlignmentConverter alignment.fasta id [output.xml]");
+            System.exit(0);
+        }
+
+        List<String> names = new ArrayList<>();
+        List<String> sequences = new ArrayList<>();
+        try {
+            readFasta(args[0], names, sequences);
+        } catch (IOException e) {
+            System.out.println("Error reading FASTA file: " + e.getMessage());
+            System.exit(1);
+        }
+
+        if (SNPAlignment.getVariablePositions(sequences).isEmpty()) {
+            System.out.println("Error: FASTA file contains no variable sites, " +
+                    "so cannot be converted to an SNPAlignment.");
+            System.exit(1);
+        }
+
+        try (PrintStream out = args.length > 2 ? new PrintStream(args[2]) : System.out) {
+            writeSNPAlignmentXML(args[1], names, sequences, out);
+        } catch (IOException e) {
+            System.out.println("Error writing output file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
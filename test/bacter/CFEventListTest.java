@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+import beast.evolution.tree.Node;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for incremental updating of the clonal frame event list.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class CFEventListTest {
+
+    String acgString = "[&locus,2,2759,0.3260126313706676,10,2808,0.42839862922656696] "
+            + "[&locus,10,6692,0.3381366423491633,2,6693,0.5683827224649434] "
+            + "(((0:0.04916909893812008,1:0.04916909893812008)10:0.5465237639426681,"
+            + "(4:0.3773111326866937,(((8:0.22180790639747835,"
+            + "(3:0.07561592852503513,6:0.07561592852503513)11:0.14619197787244323)"
+            + "13:0.010206467073885589,9:0.23201437347136394)14:0.116542689187905,"
+            + "(7:0.10746702934931932,5:0.10746702934931932)12:0.24109003330994963)"
+            + "15:0.02875407002742475)16:0.21838173019409446)17:1.1073878800617445,"
+            + "2:1.7030807429425328)18:0.0";
+
+    /**
+     * Checks that the incrementally maintained event list matches one
+     * assembled from scratch.
+     */
+    private void assertEventListsMatch(ConversionGraph acg) {
+        List<CFEventList.Event> events = acg.getCFEvents();
+        List<CFEventList.Event> trueEvents = new CFEventList(acg).getCFEvents();
+
+        assertEquals(trueEvents.size(), events.size());
+        for (int i=0; i<events.size(); i++) {
+            assertEquals(trueEvents.get(i).getHeight(), events.get(i).getHeight(), 0.0);
+            assertEquals(trueEvents.get(i).getType(), events.get(i).getType());
+            assertEquals(trueEvents.get(i).getLineageCount(), events.get(i).getLineageCount());
+            assertTrue(events.get(i).getNode() == acg.getNode(events.get(i).getNode().getNr()));
+        }
+    }
+
+    @Test
+    public void testSingleNodeMove() throws Exception {
+        Locus locus = new Locus("locus", 10000);
+
+        ConversionGraph acg = new ConversionGraph();
+        acg.initByName("fromString", acgString, "locus", locus);
+
+        assertEventListsMatch(acg);
+
+        // Move node 12 above nodes 13 and 14.
+        Node node = acg.getNode(12);
+        node.setHeight(0.3);
+        acg.startEditing(null);
+        assertEventListsMatch(acg);
+
+        // Move node 10 above several other coalescences.
+        node = acg.getNode(10);
+        node.setHeight(0.4);
+        acg.startEditing(null);
+        assertEventListsMatch(acg);
+    }
+
+    @Test
+    public void testMultipleNodeMove() throws Exception {
+        Locus locus = new Locus("locus", 10000);
+
+        ConversionGraph acg = new ConversionGraph();
+        acg.initByName("fromString", acgString, "locus", locus);
+
+        assertEventListsMatch(acg);
+
+        acg.getNode(11).setHeight(0.2);
+        acg.getNode(12).setHeight(0.02);
+        acg.startEditing(null);
+        assertEventListsMatch(acg);
+
+        // Scale entire clonal frame
+        for (Node node : acg.getInternalNodes())
+            node.setHeight(2.0*node.getHeight());
+        acg.startEditing(null);
+        assertEventListsMatch(acg);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+import bacter.model.ACGLikelihood;
+import bacter.util.SNPAlignmentConverter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.evolution.tree.Node;
+import beast.util.ClusterTree;
+import beast.util.Randomizer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SNPAlignmentTest extends TestBase {
+
+    /**
+     * Construct SNP alignment equivalent to a full alignment.
+     *
+     * @param fullAlignment full alignment
+     * @return SNP alignment
+     */
+    private SNPAlignment getSNPAlignment(Alignment fullAlignment) {
+        List<String> sequences = new ArrayList<>();
+        for (Sequence sequence : fullAlignment.sequenceInput.get())
+            sequences.add(sequence.dataInput.get());
+
+        List<Integer> positions = SNPAlignment.getVariablePositions(sequences);
+
+        List<Sequence> variableSequences = new ArrayList<>();
+        for (Sequence sequence : fullAlignment.sequenceInput.get()) {
+            StringBuilder sb = new StringBuilder();
+            for (int position : positions)
+                sb.append(sequence.dataInput.get().charAt(position));
+            variableSequences.add(new Sequence(sequence.taxonInput.get(), sb.toString()));
+        }
+
+        StringBuilder positionsString = new StringBuilder();
+        for (int position : positions)
+            positionsString.append(position).append(" ");
+
+        SNPAlignment snpAlignment = new SNPAlignment();
+        snpAlignment.initByName(
+                "alignment", new Alignment(variableSequences, "nucleotide"),
+                "positions", positionsString.toString(),
+                "invariantSequence", sequences.get(0));
+
+        return snpAlignment;
+    }
+
+    @Test
+    public void testInvariantSiteCounts() throws Exception {
+        Alignment alignment = getAlignment();
+        SNPAlignment snpAlignment = getSNPAlignment(alignment);
+
+        assertEquals(alignment.getSiteCount(), snpAlignment.getSiteCount());
+
+        List<String> sequences = new ArrayList<>();
+        for (Sequence sequence : alignment.sequenceInput.get())
+            sequences.add(sequence.dataInput.get());
+        List<Integer> positions = SNPAlignment.getVariablePositions(sequences);
+
+        Randomizer.setSeed(1);
+        for (int i=0; i<100; i++) {
+            int start = Randomizer.nextInt(alignment.getSiteCount());
+            int end = start + Randomizer.nextInt(alignment.getSiteCount() - start + 1);
+
+            for (int state=0; state<4; state++) {
+                int count = 0;
+                for (int site=start; site<end; site++) {
+                    if (!positions.contains(site)
+                            && "ACGT".charAt(state) == sequences.get(0).charAt(site))
+                        count += 1;
+                }
+
+                assertEquals(count, snpAlignment.getInvariantSiteCount(state, start, end));
+            }
+        }
+    }
+
+    @Test
+    public void testLikelihood() throws Exception {
+        Locus locus = new Locus("locus", getAlignment());
+        Locus snpLocus = new Locus("snpLocus", getSNPAlignment(getAlignment()));
+
+        // ConversionGraph
+        ConversionGraph acg = new ConversionGraph();
+        ClusterTree tree = new ClusterTree();
+        tree.initByName(
+                "clusterType", "upgma",
+                "taxa", locus.getAlignment());
+
+        acg.assignFrom(tree);
+        acg.initByName("locus", locus);
+
+        ConversionGraph snpACG = new ConversionGraph();
+        snpACG.assignFrom(tree);
+        snpACG.initByName("locus", snpLocus);
+
+        // Site model:
+        JukesCantor jc = new JukesCantor();
+        jc.initByName();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName(
+                "substModel", jc,
+                "gammaCategoryCount", 4,
+                "shape", "0.5",
+                "proportionInvariant", "0.1");
+
+        // Likelihoods
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", locus,
+                "tree", acg,
+                "siteModel", siteModel);
+
+        ACGLikelihood snpLikelihood = new ACGLikelihood();
+        snpLikelihood.initByName(
+                "locus", snpLocus,
+                "tree", snpACG,
+                "siteModel", siteModel);
+
+        double logPtrue = argLikelihood.calculateLogP();
+        double logP = snpLikelihood.calculateLogP();
+
+        assertEquals(logPtrue, logP, 1e-10*Math.abs(logPtrue));
+
+        // Add the same conversion to both graphs
+        Node node1 = acg.getExternalNodes().get(0);
+        Node node2 = node1.getParent();
+        double height1 = 0.5*(node1.getHeight() + node1.getParent().getHeight());
+        double height2 = 0.5*(node2.getHeight() + node2.getParent().getHeight());
+        acg.addConversion(new Conversion(node1, height1, node2, height2,
+                100, 200, acg, locus));
+
+        node1 = snpACG.getNode(node1.getNr());
+        node2 = snpACG.getNode(node2.getNr());
+        snpACG.addConversion(new Conversion(node1, height1, node2, height2,
+                100, 200, snpACG, snpLocus));
+
+        logPtrue = argLikelihood.calculateLogP();
+        logP = snpLikelihood.calculateLogP();
+
+        assertEquals(logPtrue, logP, 1e-10*Math.abs(logPtrue));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConvertInvariantAlignment() throws Exception {
+        List<String> names = new ArrayList<>();
+        List<String> sequences = new ArrayList<>();
+        names.add("t1");
+        sequences.add("ACGTACGT");
+        names.add("t2");
+        sequences.add("ACGTACGT");
+
+        SNPAlignmentConverter.writeSNPAlignmentXML("snps", names, sequences,
+                new PrintStream(new ByteArrayOutputStream()));
+    }
+}
@@ -89,4 +89,23 @@ public class SiteAncestryTest {
                 "[120,150]{0,1} [150,250]{1} [250,300]{1,2} [300,400]{2}")));
         assertTrue(coalescence.equals(new Coalescence("[120,150]{0}{1} [250,300]{1}{2}")));
     }
+
+    @Test
+    public void testPooledMerge() {
+        AncestryPool pool = new AncestryPool(130);
+
+        SiteAncestry a = pool.getLeafSiteAncestry(129, 50);
+        SiteAncestry b = pool.getLeafSiteAncestry(3, 50);
+
+        SiteAncestry union = pool.getSiteAncestry();
+        Coalescence coalescence = pool.getCoalescence();
+        a.merge(b, coalescence, union);
+
+        assertTrue(union.equals(new SiteAncestry("[0,50]{3,129}")));
+        assertTrue(coalescence.equals(new Coalescence("[0,50]{3}{129}")));
+
+        pool.reset();
+        assertTrue(pool.getSiteAncestry().equals(new SiteAncestry("")));
+        assertTrue(pool.getCoalescence().equals(new Coalescence("")));
+    }
 }
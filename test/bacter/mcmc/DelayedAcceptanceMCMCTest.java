@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.mcmc;
+
+import bacter.TestBase;
+import beast.util.Randomizer;
+import beast.util.XMLParser;
+import org.junit.Test;
+import test.beast.beast2vs1.trace.Expectation;
+import test.beast.beast2vs1.trace.LogAnalyser;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class DelayedAcceptanceMCMCTest extends TestBase {
+
+    /**
+     * Sample a normal posterior using both the delayed-acceptance and
+     * the standard MCMC.  The approximate likelihood differs enough from
+     * the true likelihood that an uncorrected chain would fail the
+     * expectations.
+     */
+    @Test
+    public void testExactPosterior() throws Exception {
+        for (String name : new String[] {"delayedAcceptanceTest", "delayedAcceptanceReference"}) {
+            Randomizer.setSeed(1);
+
+            XMLParser parser = new XMLParser();
+            beast.core.Runnable runnable = parser.parseFile(
+                    new File("examples/delayedAcceptanceTests/" + name + ".xml"));
+            disableScreenLog(runnable);
+            runnable.run();
+
+            List<Expectation> expectations = new ArrayList<>();
+            expectations.add(new Expectation("x", 0.5, 5e-2));
+
+            LogAnalyser logAnalyser = new LogAnalyser(name + ".stats",
+                    expectations);
+
+            for (int i=0; i<expectations.size(); i++) {
+                assertTrue(expectations.get(i).isValid());
+                assertTrue(expectations.get(i).isPassed());
+            }
+
+            Files.deleteIfExists(Paths.get(name + ".stats"));
+            Files.deleteIfExists(Paths.get(name + ".xml.state"));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.mcmc;
+
+import bacter.TestBase;
+import beast.util.Randomizer;
+import beast.util.XMLParser;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class EarlyTerminationMCMCTest extends TestBase {
+
+    /**
+     * Run the same chain with and without early termination.  As the
+     * uniform variates are drawn identically in both cases, the two
+     * traces agree sample for sample exactly when termination never
+     * changes an accept/reject decision.
+     */
+    @Test
+    public void testDecisionsUnchanged() throws Exception {
+        EarlyTerminationMCMC terminatingMCMC = runChain("earlyTerminationTest");
+        EarlyTerminationMCMC referenceMCMC = runChain("earlyTerminationReference");
+
+        assertTrue(terminatingMCMC.terminationCount > 0);
+        assertEquals(0, referenceMCMC.terminationCount);
+        assertEquals(referenceMCMC.evaluationCount, terminatingMCMC.evaluationCount);
+
+        assertEquals(readTrace("earlyTerminationReference.stats"),
+                readTrace("earlyTerminationTest.stats"));
+
+        for (String name : new String[] {"earlyTerminationTest", "earlyTerminationReference"}) {
+            Files.deleteIfExists(Paths.get(name + ".stats"));
+            Files.deleteIfExists(Paths.get(name + ".xml.state"));
+        }
+    }
+
+    private EarlyTerminationMCMC runChain(String name) throws Exception {
+        Randomizer.setSeed(1);
+
+        XMLParser parser = new XMLParser();
+        beast.core.Runnable runnable = parser.parseFile(
+                new File("examples/earlyTerminationTests/" + name + ".xml"));
+        disableScreenLog(runnable);
+        runnable.run();
+
+        return (EarlyTerminationMCMC)runnable;
+    }
+
+    private List<String> readTrace(String fileName) throws Exception {
+        return Files.readAllLines(Paths.get(fileName)).stream()
+                .filter(line -> !line.startsWith("#"))
+                .collect(Collectors.toList());
+    }
+}
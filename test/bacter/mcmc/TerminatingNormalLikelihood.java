@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.mcmc;
+
+import bacter.model.EarlyTerminatingLikelihood;
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Product of unit-variance normal densities for a single parameter,
+ * evaluated term by term so that evaluation can be abandoned once the
+ * partial sum falls below the threshold.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Product of normal densities supporting early termination.")
+public class TerminatingNormalLikelihood extends Distribution
+        implements EarlyTerminatingLikelihood {
+
+    public Input<RealParameter> xInput = new Input<>("x",
+            "Parameter to compute density of.", Input.Validate.REQUIRED);
+
+    public Input<RealParameter> meansInput = new Input<>("means",
+            "Means of the normal densities.", Input.Validate.REQUIRED);
+
+    public Input<Boolean> allowTerminationInput = new Input<>(
+            "allowTermination",
+            "Abandon evaluation when the threshold is crossed.", true);
+
+    double logPThreshold = Double.NEGATIVE_INFINITY;
+    boolean terminatedEarly;
+
+    @Override
+    public double calculateLogP() {
+        terminatedEarly = false;
+
+        double x = xInput.get().getValue();
+        RealParameter means = meansInput.get();
+
+        logP = 0.0;
+        for (int i=0; i<means.getDimension(); i++) {
+            double delta = x - means.getValue(i);
+            logP += -0.5*delta*delta - 0.5*Math.log(2*Math.PI);
+
+            if (allowTerminationInput.get() && logP < logPThreshold) {
+                terminatedEarly = true;
+                break;
+            }
+        }
+
+        return logP;
+    }
+
+    @Override
+    public void setLogPThreshold(double logPThreshold) {
+        this.logPThreshold = logPThreshold;
+    }
+
+    @Override
+    public boolean evaluationTerminatedEarly() {
+        return terminatedEarly;
+    }
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+    }
+}
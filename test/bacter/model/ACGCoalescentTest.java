@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package bacter.model;
+
+import bacter.Conversion;
+import bacter.ConversionGraph;
+import bacter.Locus;
+import bacter.TestBase;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.coalescent.ConstantPopulation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ACGCoalescentTest extends TestBase {
+
+    /**
+     * Checks that a step in which an incremental update is followed by a
+     * full recomputation is correctly undone by restore().
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRestoreAfterMixedUpdates() throws Exception {
+
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter("1.0"));
+
+        Locus locus = new Locus("locus", 10000);
+        TaxonSet taxonSet = getTaxonSet(10);
+
+        ConversionGraph acg = new SimulatedACG();
+        acg.initByName(
+                "rho", 5.0/locus.getSiteCount(),
+                "delta", 1000.0,
+                "populationModel", popFunc,
+                "locus", locus,
+                "taxonset", taxonSet);
+
+        Node node1 = acg.getExternalNodes().get(0);
+        Node node2 = node1.getParent();
+        double height1 = 0.5*(node1.getHeight() + node1.getParent().getHeight());
+        double height2 = 0.5*(node2.getHeight() + node2.getParent().getHeight());
+        Conversion conv = new Conversion(node1, height1, node2, height2,
+                500, 600, acg, locus);
+        acg.addConversion(conv);
+
+        State state = new State();
+        state.initByName("stateNode", acg);
+        state.initialise();
+
+        ACGCoalescent coal = new ACGCoalescent();
+        coal.initByName(
+                "tree", acg,
+                "populationModel", popFunc,
+                "rho", new RealParameter(String.valueOf(5.0/locus.getSiteCount())),
+                "delta", new RealParameter("1000.0"));
+
+        coal.calculateLogP();
+
+        // Step in which a conversion edit is evaluated incrementally and
+        // a clonal frame edit then forces a full recomputation.
+        double newHeight1 = 0.5*(height1 + node1.getHeight());
+
+        state.store(0);
+        coal.store();
+
+        conv.setHeight1(newHeight1);
+        coal.calculateLogP();
+
+        acg.startEditing(null);
+        coal.calculateLogP();
+
+        state.restore();
+        coal.restore();
+
+        // Repeating the conversion edit incrementally must agree with a
+        // fresh evaluation.
+        state.store(1);
+        coal.store();
+
+        for (Conversion restoredConv : acg.getConversions(locus)) {
+            if (restoredConv.getID() == conv.getID())
+                restoredConv.setHeight1(newHeight1);
+        }
+        double logP = coal.calculateLogP();
+
+        ACGCoalescent freshCoal = new ACGCoalescent();
+        freshCoal.initByName(
+                "tree", acg,
+                "populationModel", popFunc,
+                "rho", new RealParameter(String.valueOf(5.0/locus.getSiteCount())),
+                "delta", new RealParameter("1000.0"));
+
+        assertEquals(freshCoal.calculateLogP(), logP, 1e-10*Math.abs(logP));
+    }
+
+    /**
+     * Checks that densities maintained incrementally as conversions are
+     * added, edited and deleted agree with a fresh evaluation.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIncrementalUpdates() throws Exception {
+
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter("1.0"));
+
+        Locus locus = new Locus("locus", 10000);
+        TaxonSet taxonSet = getTaxonSet(10);
+
+        ConversionGraph acg = new SimulatedACG();
+        acg.initByName(
+                "rho", 5.0/locus.getSiteCount(),
+                "delta", 1000.0,
+                "populationModel", popFunc,
+                "locus", locus,
+                "taxonset", taxonSet);
+
+        State state = new State();
+        state.initByName("stateNode", acg);
+        state.initialise();
+
+        RealParameter rho = new RealParameter(String.valueOf(5.0/locus.getSiteCount()));
+        RealParameter delta = new RealParameter("1000.0");
+
+        ACGCoalescent coal = new ACGCoalescent();
+        coal.initByName(
+                "tree", acg,
+                "populationModel", popFunc,
+                "rho", rho,
+                "delta", delta);
+
+        assertMatchesFresh(coal, acg, popFunc, rho, delta);
+
+        // Add conversions
+        state.store(0);
+        coal.store();
+
+        Node node1 = acg.getExternalNodes().get(0);
+        Node node2 = node1.getParent();
+        double height1 = 0.5*(node1.getHeight() + node1.getParent().getHeight());
+        double height2 = 0.5*(node2.getHeight() + node2.getParent().getHeight());
+        Conversion conv = new Conversion(node1, height1, node2, height2,
+                500, 600, acg, locus);
+        acg.addConversion(conv);
+        Conversion otherConv = new Conversion(node1, height1, node2, height2,
+                2000, 2500, acg, locus);
+        acg.addConversion(otherConv);
+
+        assertMatchesFresh(coal, acg, popFunc, rho, delta);
+
+        // Edit the sites and heights of the conversion
+        state.store(1);
+        coal.store();
+
+        conv = findConversion(acg, locus, conv.getID());
+        conv.setStartSite(9950);
+        conv.setEndSite(9999);
+        conv.setHeight1(0.5*(height1 + conv.getNode1().getHeight()));
+        conv.setHeight2(0.5*(height2 + conv.getNode2().getParent().getHeight()));
+
+        assertMatchesFresh(coal, acg, popFunc, rho, delta);
+
+        // Undo a deletion
+        state.store(2);
+        coal.store();
+
+        acg.deleteConversion(findConversion(acg, locus, conv.getID()));
+        coal.calculateLogP();
+
+        state.restore();
+        coal.restore();
+
+        assertMatchesFresh(coal, acg, popFunc, rho, delta);
+
+        // Delete both added conversions
+        state.store(3);
+        coal.store();
+
+        acg.deleteConversion(findConversion(acg, locus, conv.getID()));
+        acg.deleteConversion(findConversion(acg, locus, otherConv.getID()));
+
+        assertMatchesFresh(coal, acg, popFunc, rho, delta);
+    }
+
+    /**
+     * @param acg conversion graph
+     * @param locus locus
+     * @param id conversion ID
+     * @return conversion currently attached to acg having the given ID
+     */
+    private Conversion findConversion(ConversionGraph acg, Locus locus, long id) {
+        for (Conversion conv : acg.getConversions(locus)) {
+            if (conv.getID() == id)
+                return conv;
+        }
+
+        throw new IllegalArgumentException("No conversion with ID " + id);
+    }
+
+    /**
+     * Assert that the density of an existing ACGCoalescent agrees with
+     * that of one freshly initialised on a copy of the graph, so that
+     * neither cached event lists nor conversion statistics are shared.
+     */
+    private void assertMatchesFresh(ACGCoalescent coal, ConversionGraph acg,
+                                    ConstantPopulation popFunc,
+                                    RealParameter rho, RealParameter delta) {
+        double logP = coal.calculateLogP();
+
+        ACGCoalescent freshCoal = new ACGCoalescent();
+        freshCoal.initByName(
+                "tree", acg.copy(),
+                "populationModel", popFunc,
+                "rho", rho,
+                "delta", delta);
+
+        assertEquals(freshCoal.calculateLogP(), logP, 1e-10*Math.abs(logP));
+    }
+}
@@ -18,6 +18,7 @@
 package bacter.model;
 
 import bacter.*;
+import beast.core.State;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.alignment.Sequence;
 import beast.util.ClusterTree;
@@ -152,6 +153,154 @@ public class ACGLikelihoodApproxTest {
                 heightMap.get(2.0).equals(new Coalescence("[0,10]{0,2}{1} [10,20]{0,1}{2}")));
     }
 
+    @Test
+    public void testPairwiseDistanceSums() throws Exception {
+
+        List<Sequence> sequences = new ArrayList<>();
+                                        //01234567890123456789
+        sequences.add(new Sequence("t1", "GAGGGGGGGGTGGGGGGGGG"));
+        sequences.add(new Sequence("t2", "CAGGCCCCCCTCCCCCCCCC"));
+        sequences.add(new Sequence("t3", "TCGTTTTTTTTTTTTTTTTT"));
+        sequences.add(new Sequence("t4", "TCGAGGGGGGTGGGGAAAAA"));
+        Alignment alignment = new Alignment(sequences, "nucleotide");
+        Locus locus = new Locus("locus", alignment);
+
+        TreeParser tree = new TreeParser(alignment,
+                "(((t1:1,t2:1):1,t3:2):1,t4:3):0;");
+        ConversionGraph acg = new ConversionGraph();
+        acg.assignFrom(tree);
+        acg.initByName("locus", locus);
+
+        Conversion conversion = new Conversion();
+        conversion.setNode1(acg.getNode(0));
+        conversion.setHeight1(0.5);
+        conversion.setNode2(acg.getNode(3));
+        conversion.setHeight2(2.5);
+        conversion.setStartSite(3);
+        conversion.setEndSite(12);
+        conversion.setLocus(locus);
+        acg.addConversion(conversion);
+
+        ACGLikelihoodApprox likelihoodApprox = new ACGLikelihoodApprox();
+        likelihoodApprox.initByName(
+                "acg", acg,
+                "substitutionRate", "1.0",
+                "alignment", alignment,
+                "locus", locus);
+
+        for (Coalescence coalescence : likelihoodApprox.getCoalescenceHeights().values()) {
+            for (int i=0; i<coalescence.getIntervalCount(); i++) {
+                int x = coalescence.getIntervalStart(i);
+                int y = coalescence.getIntervalEnd(i);
+
+                long expected = 0;
+                for (int nr1 = coalescence.nextDescendantLeaf1(i, 0); nr1>=0;
+                     nr1 = coalescence.nextDescendantLeaf1(i, nr1+1)) {
+                    for (int nr2 = coalescence.nextDescendantLeaf2(i, 0); nr2>=0;
+                         nr2 = coalescence.nextDescendantLeaf2(i, nr2+1)) {
+                        expected += likelihoodApprox.getPairwiseDistance(nr1, nr2, x, y);
+                    }
+                }
+
+                Assert.assertEquals(expected,
+                        likelihoodApprox.getPairwiseDistanceSum(coalescence, i, x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testDistanceSumCache() throws Exception {
+
+        List<Sequence> sequences = new ArrayList<>();
+                                        //01234567890123456789
+        sequences.add(new Sequence("t1", "GAGGGGGGGGTGGGGGGGGG"));
+        sequences.add(new Sequence("t2", "CAGGCCCCCCTCCCCCCCCC"));
+        sequences.add(new Sequence("t3", "TCGTTTTTTTTTTTTTTTTT"));
+        sequences.add(new Sequence("t4", "TCGAGGGGGGTGGGGAAAAA"));
+        Alignment alignment = new Alignment(sequences, "nucleotide");
+        Locus locus = new Locus("locus", alignment);
+
+        TreeParser tree = new TreeParser(alignment,
+                "(((t1:1,t2:1):1,t3:2):1,t4:3):0;");
+        ConversionGraph acg = new ConversionGraph();
+        acg.assignFrom(tree);
+        acg.initByName("locus", locus);
+
+        Conversion conversion = new Conversion();
+        conversion.setNode1(acg.getNode(0));
+        conversion.setHeight1(0.5);
+        conversion.setNode2(acg.getNode(3));
+        conversion.setHeight2(2.5);
+        conversion.setStartSite(3);
+        conversion.setEndSite(12);
+        conversion.setLocus(locus);
+        acg.addConversion(conversion);
+
+        State state = new State();
+        state.initByName("stateNode", acg);
+        state.initialise();
+
+        ACGLikelihoodApprox likelihoodApprox = new ACGLikelihoodApprox();
+        likelihoodApprox.initByName(
+                "acg", acg,
+                "substitutionRate", "1.0",
+                "alignment", alignment,
+                "locus", locus);
+
+        double logP = likelihoodApprox.calculateLogP();
+        Assert.assertEquals(getFreshLogP(acg, alignment, locus), logP, 1e-10);
+
+        // Accepted edit changing the sites involved in coalescences
+        state.store(0);
+        likelihoodApprox.store();
+
+        acg.getConversions(locus).get(0).setEndSite(8);
+        logP = likelihoodApprox.calculateLogP();
+        Assert.assertEquals(getFreshLogP(acg, alignment, locus), logP, 1e-10);
+
+        // Rejected edit: sums of the stored state must survive the
+        // evaluation of the proposed one.
+        state.store(1);
+        likelihoodApprox.store();
+
+        acg.getConversions(locus).get(0).setStartSite(6);
+        acg.getConversions(locus).get(0).setEndSite(15);
+        logP = likelihoodApprox.calculateLogP();
+        Assert.assertEquals(getFreshLogP(acg, alignment, locus), logP, 1e-10);
+
+        state.restore();
+        likelihoodApprox.restore();
+
+        logP = likelihoodApprox.calculateLogP();
+        Assert.assertEquals(getFreshLogP(acg, alignment, locus), logP, 1e-10);
+
+        // Edit following the restore, relying on the swapped record of
+        // sums used by the stored state.
+        state.store(2);
+        likelihoodApprox.store();
+
+        acg.getConversions(locus).get(0).setHeight2(1.5);
+        acg.getConversions(locus).get(0).setNode2(acg.getNode(2));
+        logP = likelihoodApprox.calculateLogP();
+        Assert.assertEquals(getFreshLogP(acg, alignment, locus), logP, 1e-10);
+    }
+
+    /**
+     * @return log likelihood computed by a newly initialised
+     * approximation, which has no cached distance sums
+     */
+    private double getFreshLogP(ConversionGraph acg, Alignment alignment,
+                                Locus locus) {
+        ACGLikelihoodApprox likelihoodApprox = new ACGLikelihoodApprox();
+        likelihoodApprox.initByName(
+                "acg", acg,
+                "substitutionRate", "1.0",
+                "alignment", alignment,
+                "locus", locus);
+
+        return likelihoodApprox.calculateLogP();
+    }
+
     // TODO: Add this test in once approximate likelihood is working.
 //    @Test
 //    public void testTreeLikelihood() throws Exception {
@@ -19,17 +19,30 @@ package bacter.model;
 import bacter.Conversion;
 import bacter.ConversionGraph;
 import bacter.Locus;
+import bacter.Region;
 import bacter.TestBase;
+import beagle.BeagleJNIWrapper;
+import beast.core.Distribution;
 import beast.core.State;
 import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
 import beast.evolution.alignment.TaxonSet;
 import beast.evolution.sitemodel.SiteModel;
 import beast.evolution.substitutionmodel.JukesCantor;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.coalescent.ConstantPopulation;
 import beast.util.ClusterTree;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -124,6 +137,251 @@ public class ACGLikelihoodTest extends TestBase {
         assertTrue(relativeDiff<1e-14);
     }
     
+    @Test
+    public void testOffHeapCore() throws Exception {
+        Fixture fixture = new Fixture(getAlignment(),
+                "gammaCategoryCount", 4,
+                "shape", "0.5");
+
+        ACGLikelihood argLikelihoodOffHeap = fixture.createLikelihood(
+                "coreType", ACGLikelihood.CoreType.OFFHEAP);
+
+        fixture.acg.setEverythingDirty(true);
+        fixture.assertMatchesReference(argLikelihoodOffHeap, 1e-10);
+
+        fixture.addConversion(100, 200);
+        fixture.assertMatchesReference(argLikelihoodOffHeap, 1e-10);
+    }
+
+    @Test
+    public void testVectorCore() throws Exception {
+        Fixture fixture = new Fixture(getAlignment(),
+                "gammaCategoryCount", 4,
+                "shape", "0.5");
+
+        // Falls back to the Beer core where the vectorized core is
+        // unavailable; results must agree either way.
+        ACGLikelihood argLikelihoodVector = fixture.createLikelihood(
+                "coreType", ACGLikelihood.CoreType.VECTOR);
+
+        fixture.acg.setEverythingDirty(true);
+        fixture.assertMatchesReference(argLikelihoodVector, 1e-10);
+
+        fixture.addConversion(100, 200);
+        fixture.assertMatchesReference(argLikelihoodVector, 1e-10);
+    }
+
+    /**
+     * Run by the test-java17 build target, where the Java 17 classes are
+     * on the class path and the vector module is available.  Checks that
+     * the vectorized core is really used and agrees with the Beer core.
+     */
+    @Test
+    public void testVectorCoreUsed() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("bacter.test.vectorCore"));
+        assertTrue(ACGLikelihood.vectorCoreIsAvailable());
+
+        Fixture fixture = new Fixture(getAlignment(),
+                "gammaCategoryCount", 4,
+                "shape", "0.5");
+
+        ACGLikelihood argLikelihoodVector = fixture.createLikelihood(
+                "coreType", ACGLikelihood.CoreType.VECTOR);
+        assertTrue(argLikelihoodVector.useVectorCore);
+
+        fixture.acg.setEverythingDirty(true);
+        fixture.assertMatchesReference(argLikelihoodVector, 1e-10);
+
+        fixture.addConversion(100, 200);
+        fixture.assertMatchesReference(argLikelihoodVector, 1e-10);
+    }
+
+    @Test
+    public void testFloatCore() throws Exception {
+        Fixture fixture = new Fixture(getAlignment(),
+                "gammaCategoryCount", 4,
+                "shape", "0.5",
+                "proportionInvariant", "0.1");
+
+        ACGLikelihood argLikelihoodFloat = fixture.createLikelihood(
+                "coreType", ACGLikelihood.CoreType.FLOAT,
+                "validatePrecision", true);
+
+        fixture.acg.setEverythingDirty(true);
+        fixture.assertMatchesReference(argLikelihoodFloat, 1e-6);
+
+        fixture.addConversion(100, 200);
+        double logPtrue = fixture.assertMatchesReference(argLikelihoodFloat, 1e-6);
+
+        // Validation reference agrees with the double precision core.
+        assertTrue(argLikelihoodFloat.getMaxPrecisionError() > 0.0);
+        assertTrue(argLikelihoodFloat.getMaxPrecisionError() < 1e-6*Math.abs(logPtrue));
+    }
+
+    @Test
+    public void testDirectRegions() throws Exception {
+        Fixture fixture = new Fixture(getAlignment(),
+                "gammaCategoryCount", 4,
+                "shape", "0.5",
+                "proportionInvariant", "0.1");
+
+        // Only short conversion regions evaluated directly
+        ACGLikelihood argLikelihoodDirect = fixture.createLikelihood(
+                "maxDirectRegionWidth", 20);
+
+        // All regions evaluated directly
+        ACGLikelihood argLikelihoodAllDirect = fixture.createLikelihood(
+                "maxDirectRegionWidth", fixture.locus.getSiteCount() + 1);
+
+        fixture.addConversion(100, 110);
+
+        Node node1 = fixture.acg.getExternalNodes().get(1);
+        Node node2 = fixture.acg.getRoot();
+        fixture.addConversion(node1, 0.5*(node1.getHeight() + node1.getParent().getHeight()),
+                node2, node2.getHeight() + 1.0, 300, 302);
+
+        fixture.assertMatchesReference(argLikelihoodDirect, 1e-10);
+        fixture.assertMatchesReference(argLikelihoodAllDirect, 1e-10);
+    }
+
+    @Test
+    public void testRegionCacheBudget() throws Exception {
+        Fixture fixture = new Fixture(getAlignment(),
+                "gammaCategoryCount", 4,
+                "shape", "0.5",
+                "proportionInvariant", "0.1");
+
+        // Budget too small to hold any region
+        ACGLikelihood argLikelihoodBudget = fixture.createLikelihood(
+                "regionCacheBudget", 1e-6);
+
+        fixture.addConversion(100, 200);
+
+        fixture.assertMatchesReference(argLikelihoodBudget, 1e-10);
+        assertEquals(0, argLikelihoodBudget.getRegionCacheBytes());
+        assertEquals(fixture.acg.getRegions(fixture.locus).size(),
+                argLikelihoodBudget.getRegionCacheEvictions());
+
+        // Moving the clonal frame invalidates every region, so evicted
+        // regions must be rebuilt when re-evaluated.
+        Node root = fixture.acg.getRoot();
+        fixture.acg.startEditing(null);
+        root.setHeight(1.1*root.getHeight());
+        fixture.referenceLikelihood.requiresRecalculation();
+        argLikelihoodBudget.requiresRecalculation();
+
+        fixture.assertMatchesReference(argLikelihoodBudget, 1e-10);
+        assertEquals(fixture.acg.getRegions(fixture.locus).size(),
+                argLikelihoodBudget.getRegionCacheRebuilds());
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        Fixture fixture = new Fixture(getAlignment(),
+                "gammaCategoryCount", 4,
+                "shape", "0.5",
+                "proportionInvariant", "0.1");
+
+        ACGLikelihood argLikelihoodStreamed = fixture.createLikelihood(
+                "streamingWindowSize", 64);
+
+        File mappedFile = File.createTempFile("compactAlignment", ".dat");
+        mappedFile.deleteOnExit();
+
+        ACGLikelihood argLikelihoodMapped = fixture.createLikelihood(
+                "streamingWindowSize", 100,
+                "streamingFileName", mappedFile.getPath());
+
+        fixture.addConversion(100, 300);
+
+        fixture.assertMatchesReference(argLikelihoodStreamed, 1e-10);
+        fixture.assertMatchesReference(argLikelihoodMapped, 1e-10);
+
+        // Gaps in the alignment are handled as ambiguities.
+        ACGLikelihood argLikelihoodAmbig = fixture.createLikelihood(
+                "useAmbiguities", true);
+        ACGLikelihood argLikelihoodStreamedAmbig = fixture.createLikelihood(
+                "useAmbiguities", true,
+                "streamingWindowSize", 64);
+
+        double logPtrue = argLikelihoodAmbig.calculateLogP();
+        assertEquals(logPtrue, argLikelihoodStreamedAmbig.calculateLogP(),
+                1e-10*Math.abs(logPtrue));
+    }
+
+    @Test
+    public void testCollapseIdenticalTips() throws Exception {
+
+        // Alignment including an exact copy of one sequence and a copy
+        // differing at two sites.
+        List<Sequence> sequences = new ArrayList<>(getAlignment().sequenceInput.get());
+        String seq = sequences.get(2).dataInput.get();
+        String variant = seq.substring(0, 50) + (seq.charAt(50) == 'A' ? 'C' : 'A')
+                + seq.substring(51, 500) + (seq.charAt(500) == 'A' ? 'C' : 'A')
+                + seq.substring(501);
+        sequences.add(new Sequence("Homo_copy", seq));
+        sequences.add(new Sequence("Homo_variant", variant));
+
+        Fixture fixture = new Fixture(new Alignment(sequences, "nucleotide"),
+                "gammaCategoryCount", 4,
+                "shape", "0.5");
+
+        ACGLikelihood argLikelihoodCollapsed = fixture.createLikelihood(
+                "collapseIdenticalTips", true);
+
+        fixture.acg.setEverythingDirty(true);
+        fixture.assertMatchesReference(argLikelihoodCollapsed, 1e-10);
+
+        // Region [100,200] contains neither variable site, so all three
+        // human sequences are identical over it.
+        fixture.addConversion(100, 200);
+        fixture.assertMatchesReference(argLikelihoodCollapsed, 1e-10);
+    }
+
+    @Test
+    public void testPartitionedBeagleLikelihood() throws Exception {
+        assumeBeagleAvailable();
+
+        Fixture fixture = new Fixture(getAlignment());
+
+        ACGLikelihoodBeagle argLikelihoodBeagle = new ACGLikelihoodBeagle();
+        argLikelihoodBeagle.initByName(
+                "locus", fixture.locus,
+                "tree", fixture.acg,
+                "siteModel", fixture.siteModel);
+
+        fixture.acg.setEverythingDirty(true);
+        fixture.assertMatchesReference(argLikelihoodBeagle, 1e-8);
+
+        // Add recombination events, giving several regions which are
+        // evaluated as separate partitions of a single instance.
+        fixture.addConversion(100, 200);
+
+        Node node1 = fixture.acg.getExternalNodes().get(0);
+        Node node2 = fixture.acg.getNode(20);
+        fixture.addConversion(node1, 0.75*(node1.getHeight() + node1.getParent().getHeight()),
+                node2, 0.5*(node2.getHeight() + node2.getParent().getHeight()), 250, 300);
+
+        double logPtrue = fixture.assertMatchesReference(argLikelihoodBeagle, 1e-8);
+
+        // Released instance should be recycled rather than replaced.
+        BeagleInstancePool pool = BeagleInstancePool.getSharedPool();
+        long creationCount = pool.getCreationCount();
+        long reuseCount = pool.getReuseCount();
+
+        argLikelihoodBeagle.releaseBeagleInstance();
+        fixture.acg.setEverythingDirty(true);
+        argLikelihoodBeagle.requiresRecalculation();
+        double logP = argLikelihoodBeagle.calculateLogP();
+
+        assertEquals(logPtrue, logP, 1e-8*Math.abs(logPtrue));
+        assertEquals(creationCount, pool.getCreationCount());
+        assertEquals(reuseCount + 1, pool.getReuseCount());
+
+        argLikelihoodBeagle.releaseBeagleInstance();
+        pool.finalizeIdleInstances();
+    }
+
     @Test
     public void testLikelihoodUsingSimulatedData() throws Exception {
 
@@ -368,4 +626,179 @@ public class ACGLikelihoodTest extends TestBase {
         }
     }
 
+    @Test
+    public void testEarlyTermination() throws Exception {
+        Fixture fixture = new Fixture(getAlignment());
+
+        checkEarlyTermination(fixture, fixture.createLikelihood());
+    }
+
+    @Test
+    public void testBeagleEarlyTermination() throws Exception {
+        assumeBeagleAvailable();
+
+        Fixture fixture = new Fixture(getAlignment());
+
+        ACGLikelihoodBeagle argLikelihoodBeagle = new ACGLikelihoodBeagle();
+        argLikelihoodBeagle.initByName(
+                "locus", fixture.locus,
+                "tree", fixture.acg,
+                "siteModel", fixture.siteModel);
+
+        checkEarlyTermination(fixture, argLikelihoodBeagle);
+        argLikelihoodBeagle.releaseBeagleInstance();
+    }
+
+    /**
+     * Check that an evaluation given a threshold above the true log
+     * likelihood is abandoned with a partial sum no smaller than the
+     * true value, and that the abandoned evaluation is undone by
+     * restore().
+     *
+     * @param fixture fixture
+     * @param likelihood likelihood to check
+     */
+    private <T extends Distribution & EarlyTerminatingLikelihood> void checkEarlyTermination(
+            Fixture fixture, T likelihood) {
+
+        fixture.addConversion(100, 200);
+        fixture.acg.setEverythingDirty(true);
+        fixture.assertMatchesReference(likelihood, 1e-8);
+
+        // Log likelihood of regions unaffected by the next edit
+        double cachedLogP = 0.0;
+        for (Region region : fixture.acg.getRegions(fixture.locus)) {
+            if (region.rightBoundary <= 201)
+                cachedLogP += fixture.referenceLikelihood.regionLogLikelihoods.get(region);
+        }
+
+        likelihood.store();
+
+        Node node1 = fixture.acg.getExternalNodes().get(0);
+        Node node2 = fixture.acg.getNode(20);
+        fixture.addConversion(node1, 0.75*(node1.getHeight() + node1.getParent().getHeight()),
+                node2, 0.5*(node2.getHeight() + node2.getParent().getHeight()), 250, 300);
+
+        double logPtrue = fixture.referenceLikelihood.calculateLogP();
+        double logPThreshold = 0.5*cachedLogP;
+        assertTrue(logPThreshold > logPtrue);
+
+        likelihood.setLogPThreshold(logPThreshold);
+        double partialLogP = likelihood.calculateLogP();
+        assertTrue(likelihood.evaluationTerminatedEarly());
+        assertTrue(partialLogP >= logPtrue);
+
+        likelihood.restore();
+        likelihood.setLogPThreshold(Double.NEGATIVE_INFINITY);
+        fixture.assertMatchesReference(likelihood, 1e-8);
+        assertFalse(likelihood.evaluationTerminatedEarly());
+    }
+
+    /**
+     * Skip the current test if the native BEAGLE library cannot be
+     * loaded.
+     */
+    private void assumeBeagleAvailable() {
+        try {
+            BeagleJNIWrapper.loadBeagleLibrary();
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException("BEAGLE library not available.", e);
+        }
+    }
+
+    /**
+     * UPGMA conversion graph for an alignment together with a reference
+     * likelihood computed using the default ACGLikelihood configuration.
+     */
+    private static class Fixture {
+        Locus locus;
+        ConversionGraph acg;
+        SiteModel siteModel;
+        ACGLikelihood referenceLikelihood;
+
+        /**
+         * @param alignment alignment defining the locus
+         * @param siteModelArgs site model inputs in addition to the
+         *                      Jukes-Cantor substitution model
+         * @throws Exception on initialization failure
+         */
+        Fixture(Alignment alignment, Object... siteModelArgs) throws Exception {
+            locus = new Locus("locus", alignment);
+
+            // ConversionGraph
+            acg = new ConversionGraph();
+            ClusterTree tree = new ClusterTree();
+            tree.initByName(
+                    "clusterType", "upgma",
+                    "taxa", locus.getAlignment());
+
+            acg.assignFrom(tree);
+            acg.initByName("locus", locus);
+
+            // Site model:
+            JukesCantor jc = new JukesCantor();
+            jc.initByName();
+            siteModel = new SiteModel();
+            siteModel.initByName(withArgs(siteModelArgs, "substModel", jc));
+
+            referenceLikelihood = createLikelihood();
+        }
+
+        /**
+         * @param likelihoodArgs inputs in addition to locus, tree and
+         *                       site model
+         * @return new ACGLikelihood for the fixture
+         */
+        ACGLikelihood createLikelihood(Object... likelihoodArgs) {
+            ACGLikelihood likelihood = new ACGLikelihood();
+            likelihood.initByName(withArgs(likelihoodArgs,
+                    "locus", locus,
+                    "tree", acg,
+                    "siteModel", siteModel));
+
+            return likelihood;
+        }
+
+        /**
+         * Add a conversion from the first leaf to its parent edge, with
+         * both ends placed half way along their edges.
+         *
+         * @param startSite first site of converted region
+         * @param endSite last site of converted region
+         */
+        void addConversion(int startSite, int endSite) {
+            Node node1 = acg.getExternalNodes().get(0);
+            Node node2 = node1.getParent();
+            addConversion(node1, 0.5*(node1.getHeight() + node1.getParent().getHeight()),
+                    node2, 0.5*(node2.getHeight() + node2.getParent().getHeight()),
+                    startSite, endSite);
+        }
+
+        void addConversion(Node node1, double height1, Node node2, double height2,
+                           int startSite, int endSite) {
+            acg.addConversion(new Conversion(node1, height1, node2, height2,
+                    startSite, endSite, acg, locus));
+        }
+
+        /**
+         * Assert that the given likelihood agrees with the reference.
+         *
+         * @param likelihood likelihood to check
+         * @param relTol tolerance relative to the reference log likelihood
+         * @return reference log likelihood
+         */
+        double assertMatchesReference(Distribution likelihood, double relTol) {
+            double logPtrue = referenceLikelihood.calculateLogP();
+            assertEquals(logPtrue, likelihood.calculateLogP(),
+                    relTol*Math.abs(logPtrue));
+
+            return logPtrue;
+        }
+
+        private static Object[] withArgs(Object[] extraArgs, Object... args) {
+            Object[] allArgs = Arrays.copyOf(args, args.length + extraArgs.length);
+            System.arraycopy(extraArgs, 0, allArgs, args.length, extraArgs.length);
+            return allArgs;
+        }
+    }
 }
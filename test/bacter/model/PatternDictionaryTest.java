@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import bacter.ConversionGraph;
+import bacter.Locus;
+import bacter.TestBase;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.util.ClusterTree;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class PatternDictionaryTest extends TestBase {
+
+    @Test
+    public void testSharing() throws Exception {
+        PatternDictionary dictionary = new PatternDictionary();
+
+        // Distinct alignment objects with identical content
+        Alignment alignment1 = getAlignment();
+        Alignment alignment2 = getAlignment();
+
+        PatternDictionary.Entry entry1 = dictionary.acquire(alignment1, 100, 300);
+        PatternDictionary.Entry entry2 = dictionary.acquire(alignment2, 100, 300);
+        PatternDictionary.Entry entry3 = dictionary.acquire(alignment1, 100, 301);
+
+        assertSame(entry1, entry2);
+        assertNotSame(entry1, entry3);
+        assertEquals(2, dictionary.getEntryCount());
+        assertEquals(1, dictionary.getReuseCount());
+
+        int totalWeight = 0;
+        for (int i=0; i<entry1.getPatternCount(); i++)
+            totalWeight += entry1.getWeight(i);
+        assertEquals(200, totalWeight);
+
+        // Tip data must match the patterns
+        int taxon = 3;
+        int[] tipStates = entry1.getTipStates(taxon);
+        double[] tipPartials = entry1.getTipPartials(taxon);
+        for (int i=0; i<entry1.getPatternCount(); i++) {
+            int code = entry1.getPattern(i)[taxon];
+            boolean[] stateSet = alignment1.getDataType().getStateSet(code);
+            if (!alignment1.getDataType().isAmbiguousState(code))
+                assertEquals(code, tipStates[i]);
+            for (int s=0; s<4; s++)
+                assertEquals(stateSet[s] ? 1.0 : 0.0, tipPartials[i*4 + s], 0.0);
+        }
+
+        // Entries are discarded once all references are released
+        dictionary.release(entry1);
+        assertEquals(2, dictionary.getEntryCount());
+        dictionary.release(entry2);
+        assertEquals(1, dictionary.getEntryCount());
+        dictionary.release(entry3);
+        assertEquals(0, dictionary.getEntryCount());
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+
+        // Reversed sequences, so that no other test shares the entries
+        // of the shared dictionary used by the likelihoods.
+        List<Sequence> sequences = new ArrayList<>();
+        for (Sequence sequence : getAlignment().sequenceInput.get())
+            sequences.add(new Sequence(sequence.taxonInput.get(),
+                    new StringBuilder(sequence.dataInput.get()).reverse().toString()));
+        Alignment alignment = new Alignment(sequences, "nucleotide");
+
+        Locus locus = new Locus("locus", alignment);
+
+        ConversionGraph acg = new ConversionGraph();
+        ClusterTree tree = new ClusterTree();
+        tree.initByName(
+                "clusterType", "upgma",
+                "taxa", locus.getAlignment());
+        acg.assignFrom(tree);
+        acg.initByName("locus", locus);
+
+        JukesCantor jc = new JukesCantor();
+        jc.initByName();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName(
+                "substModel", jc);
+
+        ACGLikelihood argLikelihood1 = new ACGLikelihood();
+        argLikelihood1.initByName(
+                "locus", locus,
+                "tree", acg,
+                "siteModel", siteModel);
+
+        ACGLikelihood argLikelihood2 = new ACGLikelihood();
+        argLikelihood2.initByName(
+                "locus", locus,
+                "tree", acg,
+                "siteModel", siteModel);
+
+        acg.setEverythingDirty(true);
+        double logP = argLikelihood1.calculateLogP();
+        assertEquals(logP, argLikelihood2.calculateLogP(), 0.0);
+
+        PatternDictionary dictionary = PatternDictionary.getSharedDictionary();
+        int siteCount = alignment.getSiteCount();
+        assertTrue(dictionary.containsEntry(alignment, 0, siteCount));
+
+        // Entry is kept while either likelihood uses it
+        argLikelihood1.releasePatternEntries();
+        assertTrue(dictionary.containsEntry(alignment, 0, siteCount));
+
+        argLikelihood2.releasePatternEntries();
+        assertFalse(dictionary.containsEntry(alignment, 0, siteCount));
+
+        // Released likelihoods rebuild their patterns when evaluated
+        assertEquals(logP, argLikelihood1.calculateLogP(), 0.0);
+        assertTrue(dictionary.containsEntry(alignment, 0, siteCount));
+        argLikelihood1.releasePatternEntries();
+    }
+}
@@ -21,10 +21,12 @@ import bacter.CFEventList;
 import bacter.ConversionGraph;
 import bacter.Locus;
 import bacter.TestBase;
+import beast.core.State;
 import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -147,4 +149,101 @@ public class SkylinePopulationFunctionTest extends TestBase {
             assertTrue(Math.abs(t-skyline.getInverseIntensity(skyline.getIntensity(t)))<1e-14);
         }
     }
+
+    @Test
+    public void testBatch() throws Exception {
+
+        for (boolean piecewiseLinear : new boolean[] {false, true}) {
+            SkylinePopulationFunction skyline = new SkylinePopulationFunction();
+            skyline.initByName(
+                    "acg", acg,
+                    "popSizes", new RealParameter("1.0 1.0 5.0 1.0"),
+                    "groupSizes", new IntegerParameter("0"),
+                    "piecewiseLinear", piecewiseLinear);
+
+            double[] times = new double[1000];
+            for (int i=0; i<times.length; i++)
+                times[i] = 0.01*i;
+
+            double[] popSizes = new double[times.length];
+            double[] intensities = new double[times.length];
+            double[] inverseIntensities = new double[times.length];
+            skyline.getPopSizes(times, popSizes);
+            skyline.getIntensities(times, intensities);
+            skyline.getInverseIntensities(intensities, inverseIntensities);
+
+            for (int i=0; i<times.length; i++) {
+                assertTrue(popSizes[i] == skyline.getPopSize(times[i]));
+                assertTrue(intensities[i] == skyline.getIntensity(times[i]));
+                assertTrue(Math.abs(times[i] - inverseIntensities[i])<1e-14);
+            }
+        }
+    }
+
+    /**
+     * Operators query the population function while proposing clonal
+     * frame edits, before requiresRecalculation() is called.  Checks
+     * that the function already reflects a moved root at that point.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRootMove() throws Exception {
+
+        for (int nGridPoints : new int[] {0, 5}) {
+            Locus locus = new Locus("locus", 10000);
+            ConversionGraph acg = new ConversionGraph();
+            acg.initByName("locus", locus, "fromString", acgString);
+
+            State state = new State();
+            state.initByName("stateNode", acg);
+            state.initialise();
+
+            SkylinePopulationFunction skyline = createSkyline(acg, nGridPoints);
+
+            // Bring the boundaries up to date and store them.
+            skyline.getIntensity(1.0);
+            state.store(0);
+            skyline.store();
+
+            acg.getRoot().setHeight(acg.getRoot().getHeight() + 1.0);
+
+            SkylinePopulationFunction freshSkyline = createSkyline(acg, nGridPoints);
+
+            for (double t = 0.0; t<12; t += 0.01)
+                assertEquals(freshSkyline.getIntensity(t), skyline.getIntensity(t), 1e-12);
+
+            // Rejecting the move must recover the original boundaries.
+            state.restore();
+            skyline.restore();
+
+            SkylinePopulationFunction restoredSkyline = createSkyline(acg, nGridPoints);
+
+            for (double t = 0.0; t<12; t += 0.01)
+                assertEquals(restoredSkyline.getIntensity(t), skyline.getIntensity(t), 1e-12);
+        }
+    }
+
+    /**
+     * @param acg conversion graph
+     * @param nGridPoints number of grid points, or 0 to use CF events
+     * @return skyline population function
+     */
+    private SkylinePopulationFunction createSkyline(ConversionGraph acg,
+                                                    int nGridPoints) {
+        SkylinePopulationFunction skyline = new SkylinePopulationFunction();
+        if (nGridPoints > 0)
+            skyline.initByName(
+                    "acg", acg,
+                    "popSizes", new RealParameter("1.0 2.0 5.0 1.0"),
+                    "groupSizes", new IntegerParameter("0"),
+                    "nGridPoints", nGridPoints);
+        else
+            skyline.initByName(
+                    "acg", acg,
+                    "popSizes", new RealParameter("1.0 2.0 5.0 1.0"),
+                    "groupSizes", new IntegerParameter("0"));
+
+        return skyline;
+    }
 }